@@ -0,0 +1,133 @@
+package com.ahm.capacitor.camera.preview;
+
+import static org.junit.Assert.*;
+
+import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Compares the encode time and the output size of the supported formats on preview-like frames. Results are written to
+ * logcat under the EncodeFormatBenchmark tag, one line per frame size and format.
+ *
+ * Preview frames are encoded two ways: jpeg goes straight from NV21 through YuvImage.compressToJpeg (the yuv-jpeg
+ * rows), the other formats are first converted to a bitmap by PictureEncoder.nv21ToBitmap, whose time is logged as the
+ * nv21-to-bitmap rows and comes on top of their encode time. Reference results are in the README, under "Encoding
+ * benchmark".
+ *
+ * Run with ./gradlew connectedAndroidTest -Pandroid.testInstrumentationRunnerArguments.class=com.ahm.capacitor.camera.preview.EncodeFormatBenchmark
+ */
+@RunWith(AndroidJUnit4.class)
+public class EncodeFormatBenchmark {
+
+    private static final String TAG = "EncodeFormatBenchmark";
+    private static final int RUNS = 5;
+    private static final int QUALITY = 85;
+    private static final int[][] SIZES = { { 640, 480 }, { 1280, 720 }, { 1920, 1080 } };
+    private static final String[] FORMATS = {
+        PictureEncoder.FORMAT_JPEG,
+        PictureEncoder.FORMAT_WEBP_LOSSY,
+        PictureEncoder.FORMAT_WEBP_LOSSLESS,
+    };
+
+    @Test
+    public void compareFormats() throws Exception {
+        Log.i(TAG, "size, format, quality, avg encode ms, bytes");
+
+        for (int[] size : SIZES) {
+            byte[] nv21 = syntheticFrame(size[0], size[1]);
+            logYuvJpeg(nv21, size[0], size[1]);
+
+            // warm up the conversion
+            PictureEncoder.nv21ToBitmap(nv21, size[0], size[1]).recycle();
+            long convertTotal = 0;
+            for (int i = 0; i < RUNS; i++) {
+                long start = SystemClock.elapsedRealtimeNanos();
+                Bitmap converted = PictureEncoder.nv21ToBitmap(nv21, size[0], size[1]);
+                convertTotal += SystemClock.elapsedRealtimeNanos() - start;
+                converted.recycle();
+            }
+            Log.i(TAG, size[0] + "x" + size[1] + ", nv21-to-bitmap, -, " + (convertTotal / RUNS / 1000000.0) + ", -");
+
+            Bitmap frame = PictureEncoder.nv21ToBitmap(nv21, size[0], size[1]);
+
+            for (String format : FORMATS) {
+                // warm up the encoder
+                PictureEncoder.encode(frame, format, QUALITY);
+
+                long total = 0;
+                int bytes = 0;
+                for (int i = 0; i < RUNS; i++) {
+                    long start = SystemClock.elapsedRealtimeNanos();
+                    byte[] data = PictureEncoder.encode(frame, format, QUALITY);
+                    total += SystemClock.elapsedRealtimeNanos() - start;
+                    bytes = data.length;
+                }
+
+                assertTrue(bytes > 0);
+                Log.i(TAG, size[0] + "x" + size[1] + ", " + format + ", " + QUALITY + ", " + (total / RUNS / 1000000.0) + ", " + bytes);
+            }
+
+            frame.recycle();
+        }
+    }
+
+    /**
+     * Times the path preview frames take to jpeg, YuvImage.compressToJpeg without a bitmap conversion.
+     */
+    private static void logYuvJpeg(byte[] nv21, int width, int height) {
+        YuvImage image = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
+        Rect rect = new Rect(0, 0, width, height);
+        // warm up the encoder
+        PictureEncoder.compressYuv(image, rect, QUALITY);
+
+        long total = 0;
+        int bytes = 0;
+        for (int i = 0; i < RUNS; i++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            byte[] data = PictureEncoder.compressYuv(image, rect, QUALITY);
+            total += SystemClock.elapsedRealtimeNanos() - start;
+            bytes = data.length;
+        }
+
+        assertTrue(bytes > 0);
+        Log.i(TAG, width + "x" + height + ", yuv-jpeg, " + QUALITY + ", " + (total / RUNS / 1000000.0) + ", " + bytes);
+    }
+
+    /**
+     * Builds an NV21 frame with smooth gradients, hard edges and sensor-like noise, which is closer to what the camera
+     * delivers than a flat or random image.
+     */
+    private static byte[] syntheticFrame(int width, int height) {
+        byte[] nv21 = new byte[(width * height * 3) / 2];
+        Random random = new Random(42);
+
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                int luma = (i * 255) / width / 2 + (j * 255) / height / 4;
+                if (((i / 64) + (j / 64)) % 2 == 0) {
+                    luma += 60;
+                }
+                luma += random.nextInt(9) - 4;
+                nv21[j * width + i] = (byte) Math.max(16, Math.min(235, luma));
+            }
+        }
+
+        int frameSize = width * height;
+        for (int j = 0; j < height / 2; j++) {
+            for (int i = 0; i < width; i += 2) {
+                nv21[frameSize + j * width + i] = (byte) (128 + (i * 64) / width - 32);
+                nv21[frameSize + j * width + i + 1] = (byte) (128 + (j * 64) / height - 32);
+            }
+        }
+
+        return nv21;
+    }
+}
@@ -0,0 +1,297 @@
+package com.ahm.capacitor.camera.preview;
+
+import android.graphics.ImageFormat;
+import android.os.SystemClock;
+import com.getcapacitor.JSObject;
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.MultiFormatReader;
+import com.google.zxing.PlanarYUVLuminanceSource;
+import com.google.zxing.ReaderException;
+import com.google.zxing.Result;
+import com.google.zxing.common.HybridBinarizer;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decodes QR and barcodes with ZXing straight from the luma plane of the preview frames, runs as a FrameProcessor so a
+ * frame arriving while a decode is in flight is skipped. Only the region of interest is binarized. A code is reported
+ * once while it stays in view, and again once it has been out of view for dedupeMs.
+ */
+class BarcodeScanner implements FrameProcessor {
+
+    interface Listener {
+        /**
+         * Called on the frame processor worker with a code that was not reported within dedupeMs.
+         */
+        void onBarcode(String text, String format, long timestampMs);
+    }
+
+    static class Options {
+
+        // null for every format ZXing reads
+        Collection<BarcodeFormat> formats;
+        // fractions of the upright frame
+        float roiX = 0;
+        float roiY = 0;
+        float roiWidth = 1;
+        float roiHeight = 1;
+        int maxFps = 10;
+        long dedupeMs = 1000;
+        boolean tryHarder = false;
+    }
+
+    static class Stats {
+
+        final long framesDecoded;
+        final long codesDecoded;
+        final long codesReported;
+        final long duplicatesSuppressed;
+        final long decodeTimeMs;
+        final long elapsedMs;
+
+        Stats(
+            long framesDecoded,
+            long codesDecoded,
+            long codesReported,
+            long duplicatesSuppressed,
+            long decodeTimeMs,
+            long elapsedMs
+        ) {
+            this.framesDecoded = framesDecoded;
+            this.codesDecoded = codesDecoded;
+            this.codesReported = codesReported;
+            this.duplicatesSuppressed = duplicatesSuppressed;
+            this.decodeTimeMs = decodeTimeMs;
+            this.elapsedMs = elapsedMs;
+        }
+
+        double decodesPerSecond() {
+            return elapsedMs > 0 ? framesDecoded * 1000.0 / elapsedMs : 0;
+        }
+
+        double averageDecodeMs() {
+            return framesDecoded > 0 ? (double) decodeTimeMs / framesDecoded : 0;
+        }
+    }
+
+    static final String NAME = "barcodeScanner";
+
+    private static final EnumSet<BarcodeFormat> TWO_D_FORMATS = EnumSet.of(
+        BarcodeFormat.AZTEC,
+        BarcodeFormat.DATA_MATRIX,
+        BarcodeFormat.MAXICODE,
+        BarcodeFormat.PDF_417,
+        BarcodeFormat.QR_CODE
+    );
+
+    private final Options options;
+    private final Listener listener;
+    // only touched from the worker running process(), which never runs twice at the same time
+    private final MultiFormatReader reader = new MultiFormatReader();
+    private final boolean linearFormats;
+    private byte[] rotated;
+
+    // guarded by this
+    private final Map<String, Long> lastSeen = new HashMap<>();
+    private final long startedAt = SystemClock.elapsedRealtime();
+    private long framesDecoded;
+    private long codesDecoded;
+    private long codesReported;
+    private long duplicatesSuppressed;
+    private long decodeTimeNs;
+
+    /**
+     * Returns the format named name (a ZXing BarcodeFormat, case insensitive) or null when there is none.
+     */
+    static BarcodeFormat format(String name) {
+        try {
+            return BarcodeFormat.valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException | NullPointerException e) {
+            return null;
+        }
+    }
+
+    BarcodeScanner(Options options, Listener listener) {
+        this.options = options;
+        this.listener = listener;
+
+        Map<DecodeHintType, Object> hints = new EnumMap<>(DecodeHintType.class);
+        if (options.formats != null && !options.formats.isEmpty()) {
+            hints.put(DecodeHintType.POSSIBLE_FORMATS, options.formats);
+        }
+        if (options.tryHarder) {
+            hints.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+        }
+        reader.setHints(hints);
+
+        boolean linear = options.formats == null || options.formats.isEmpty();
+        if (!linear) {
+            for (BarcodeFormat format : options.formats) {
+                linear |= !TWO_D_FORMATS.contains(format);
+            }
+        }
+        linearFormats = linear;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int getMaxFps() {
+        return options.maxFps;
+    }
+
+    @Override
+    public JSObject process(Frame frame) {
+        if (frame.getFormat() != ImageFormat.NV21) {
+            return null;
+        }
+        long start = SystemClock.elapsedRealtimeNanos();
+        int[] roi = regionInFrame(options, frame.getRotation(), frame.getWidth(), frame.getHeight());
+        Result result = decode(
+            new PlanarYUVLuminanceSource(frame.data(), frame.getWidth(), frame.getHeight(), roi[0], roi[1], roi[2], roi[3], false)
+        );
+        if (result == null && linearFormats && frame.getRotation() % 180 != 0) {
+            // the bars of a code held level in a portrait UI run along the rows of the frame, 1D readers need them across
+            result = decode(rotatedRegion(frame, roi));
+        }
+        long end = SystemClock.elapsedRealtimeNanos();
+
+        synchronized (this) {
+            framesDecoded++;
+            decodeTimeNs += end - start;
+        }
+        if (result != null) {
+            long timestampMs = System.currentTimeMillis() - (end - frame.getTimestampNs()) / 1000000;
+            report(result.getText(), result.getBarcodeFormat().name(), timestampMs);
+        }
+        return null;
+    }
+
+    synchronized Stats getStats() {
+        return new Stats(
+            framesDecoded,
+            codesDecoded,
+            codesReported,
+            duplicatesSuppressed,
+            decodeTimeNs / 1000000,
+            SystemClock.elapsedRealtime() - startedAt
+        );
+    }
+
+    /**
+     * Maps the region of interest, in fractions of the upright frame, to a left, top, width, height rectangle of the
+     * frame as delivered, which is upright once turned rotation degrees clockwise.
+     */
+    static int[] regionInFrame(Options options, int rotation, int width, int height) {
+        float x = clamp(options.roiX);
+        float y = clamp(options.roiY);
+        float w = Math.min(clamp(options.roiWidth), 1 - x);
+        float h = Math.min(clamp(options.roiHeight), 1 - y);
+
+        float left;
+        float top;
+        float roiWidth;
+        float roiHeight;
+        switch (((rotation % 360) + 360) % 360) {
+            case 90:
+                left = y;
+                top = 1 - x - w;
+                roiWidth = h;
+                roiHeight = w;
+                break;
+            case 180:
+                left = 1 - x - w;
+                top = 1 - y - h;
+                roiWidth = w;
+                roiHeight = h;
+                break;
+            case 270:
+                left = 1 - y - h;
+                top = x;
+                roiWidth = h;
+                roiHeight = w;
+                break;
+            default:
+                left = x;
+                top = y;
+                roiWidth = w;
+                roiHeight = h;
+                break;
+        }
+
+        int l = Math.min(width - 1, Math.round(left * width));
+        int t = Math.min(height - 1, Math.round(top * height));
+        int r = Math.max(l + 1, Math.min(width, Math.round((left + roiWidth) * width)));
+        int b = Math.max(t + 1, Math.min(height, Math.round((top + roiHeight) * height)));
+        return new int[] { l, t, r - l, b - t };
+    }
+
+    private Result decode(LuminanceSource source) {
+        try {
+            return reader.decodeWithState(new BinaryBitmap(new HybridBinarizer(source)));
+        } catch (ReaderException e) {
+            return null;
+        } finally {
+            reader.reset();
+        }
+    }
+
+    /**
+     * Copies the luma of the region turned a quarter, only the region is copied.
+     */
+    private LuminanceSource rotatedRegion(Frame frame, int[] roi) {
+        byte[] data = frame.data();
+        int left = roi[0];
+        int top = roi[1];
+        int width = roi[2];
+        int height = roi[3];
+        if (rotated == null || rotated.length < width * height) {
+            rotated = new byte[width * height];
+        }
+        int stride = frame.getWidth();
+        for (int y = 0; y < height; y++) {
+            int row = (top + y) * stride + left;
+            for (int x = 0; x < width; x++) {
+                rotated[x * height + (height - 1 - y)] = data[row + x];
+            }
+        }
+        return new PlanarYUVLuminanceSource(rotated, height, width, 0, 0, height, width, false);
+    }
+
+    private void report(String text, String format, long timestampMs) {
+        long now = SystemClock.elapsedRealtime();
+        String key = format + ":" + text;
+        synchronized (this) {
+            codesDecoded++;
+            Long previous = lastSeen.put(key, now);
+            if (previous != null && now - previous <= options.dedupeMs) {
+                duplicatesSuppressed++;
+                return;
+            }
+            codesReported++;
+            // forget the codes that went out of view
+            Iterator<Long> seen = lastSeen.values().iterator();
+            while (seen.hasNext()) {
+                if (now - seen.next() > options.dedupeMs) {
+                    seen.remove();
+                }
+            }
+        }
+        listener.onBarcode(text, format, timestampMs);
+    }
+
+    private static float clamp(float value) {
+        return Math.max(0, Math.min(1, value));
+    }
+}
@@ -0,0 +1,54 @@
+package com.ahm.capacitor.camera.preview;
+
+/**
+ * Keeps the sharpest preview frame received while it listens to the frame ring. Frames are scored on the camera thread,
+ * the scorer only reads a small tile. The best frame is held rather than copied, so a single extra buffer is kept out of
+ * the camera until finish().
+ */
+class BestFrameSelector implements PreviewFrameRing.FrameCallback {
+
+    private final SharpnessScorer scorer = new SharpnessScorer();
+
+    // guarded by this
+    private PreviewFrame best;
+    private double bestScore = -1;
+    private int framesScored;
+    private boolean finished;
+
+    @Override
+    public void onFrame(PreviewFrame frame) {
+        PreviewFrame released = frame;
+        synchronized (this) {
+            if (!finished) {
+                double score = scorer.score(frame.data, frame.width, frame.height);
+                framesScored++;
+                if (score > bestScore) {
+                    released = best;
+                    best = frame;
+                    bestScore = score;
+                }
+            }
+        }
+        if (released != null) {
+            released.release();
+        }
+    }
+
+    /**
+     * Stops keeping frames and returns the sharpest one, null when no frame was received. The caller must release it.
+     */
+    synchronized PreviewFrame finish() {
+        finished = true;
+        PreviewFrame frame = best;
+        best = null;
+        return frame;
+    }
+
+    synchronized double getBestScore() {
+        return bestScore;
+    }
+
+    synchronized int getFramesScored() {
+        return framesScored;
+    }
+}
@@ -8,10 +8,12 @@ import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
 import android.graphics.ImageFormat;
 import android.graphics.Matrix;
 import android.graphics.Rect;
+import android.graphics.RectF;
 import android.graphics.YuvImage;
 import android.hardware.Camera;
 import android.hardware.Camera.PictureCallback;
@@ -19,7 +21,11 @@ import android.hardware.Camera.ShutterCallback;
 import android.media.AudioManager;
 import android.media.CamcorderProfile;
 import android.media.MediaRecorder;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Base64;
 import android.util.DisplayMetrics;
 import android.util.Log;
@@ -40,27 +46,44 @@ import androidx.exifinterface.media.ExifInterface;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class CameraActivity extends Fragment {
 
     public interface CameraPreviewListener {
-        void onPictureTaken(String originalPicture);
+        void onPictureTaken(CaptureResult result);
         void onPictureTakenError(String message);
-        void onSnapshotTaken(String originalPicture);
+        void onSnapshotTaken(CaptureResult result);
         void onSnapshotTakenError(String message);
         void onFocusSet(int pointX, int pointY);
         void onFocusSetError(String message);
         void onBackButton();
         void onCameraStarted();
-        void onStartRecordVideo();
+        void onStartRecordVideo(boolean armed, long startLatencyMs, long armedForMs);
         void onStartRecordVideoError(String message);
         void onStopRecordVideo(String file);
         void onStopRecordVideoError(String error);
+        void onRecordVideoStopped(String file);
+        void onBurstPictureTaken(int index, String picture, double sharpness);
+        void onBurstFinished(int count, long elapsedMs, double shotsPerSecond, int sharpestIndex);
+        void onBurstError(String message);
+        void onCaptureWritten(String path, long bytes, String error);
+        void onVideoSegment(int index, String file, boolean last);
+        void onReplaySaved(String file, long durationMs, long bytes);
+        void onReplayError(String message);
+        void onBestFrameTaken(CaptureResult result, int framesScored);
+        void onBestFrameError(String message);
     }
 
     private CameraPreviewListener eventListener;
@@ -76,7 +99,7 @@ public class CameraActivity extends Fragment {
     private Camera mCamera;
     private int numberOfCameras;
     private int cameraCurrentlyLocked;
-    private int currentQuality;
+    private CaptureOptions currentCaptureOptions;
 
     private enum RecordingState {
         INITIALIZING,
@@ -87,8 +110,49 @@ public class CameraActivity extends Fragment {
     private RecordingState mRecordingState = RecordingState.INITIALIZING;
     private MediaRecorder mRecorder = null;
     private String recordFilePath;
+    // Move the moov box of the recording ahead of its media data once it stops, see Mp4FastStart
+    private RecordOptions recordOptions = new RecordOptions(0, 0, 0);
+    // mRecorder and the arming state are only touched from the main thread, where the recorder is armed and started
+    private boolean recorderArmed;
+    // arm again after stopRecord, with the settings of the last armRecorder
+    private boolean autoRearm;
+    private boolean armWithFlash;
+    private int armMaxDuration;
+    private RecordOptions armOptions;
+    private long armedAt;
+    // recording of the mediacodec engine, null with MediaRecorder
+    private CodecRecorder codecRecorder;
+    private volatile CodecRecorder.Stats lastRecordingStats;
+    // preview fps range before a low frame rate recording, restored once it stops
+    private int[] savedPreviewFpsRange;
+    private int recordSegmentIndex;
+    private String nextSegmentPath;
     private float opacity;
 
+    // Burst capture state. Shots are taken back to back on the main looper (where the camera callbacks are delivered)
+    // while the post-processing of each shot runs on the bounded post-processing pool.
+    private static final int POST_PROCESS_QUEUE_SIZE = 8;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private ThreadPoolExecutor postProcessExecutor;
+    private boolean burstRunning = false;
+    private int burstCount;
+    private int burstIntervalMs;
+    private int burstQuality;
+    private int burstShotsTaken;
+    private long burstStartTime;
+    private long burstLastShotTime;
+    private long burstCaptureEndTime;
+    private final AtomicInteger burstShotsProcessed = new AtomicInteger();
+    // set on the first error, the burst call is rejected once and the remaining shots are neither taken nor reported
+    private final AtomicBoolean burstFailed = new AtomicBoolean();
+    private boolean burstScoreSharpness;
+    // guarded by this
+    private int burstSharpestIndex;
+    private double burstBestSharpness;
+
+    // Set while takeBestFrame() watches the preview frames
+    private volatile BestFrameSelector bestFrameSelector;
+
     // The first rear facing camera
     private int defaultCameraId;
     public String defaultCamera;
@@ -97,9 +161,36 @@ public class CameraActivity extends Fragment {
     public boolean tapToFocus;
     public boolean disableExifHeaderStripping;
     public boolean storeToFile;
+    // Where pictures are written when storeToFile is set, set by the plugin
+    public CaptureStore captureStore;
+    // Resolve file captures as soon as the write is queued, onCaptureWritten reports its completion
+    public boolean writeBehind;
+    // See FileSink.SYNC_*
+    public String fileSyncPolicy = FileSink.SYNC_NONE;
+    private FileSink fileSink;
     public boolean toBack;
     public boolean enableOpacity = false;
     public boolean enableZoom = false;
+    public boolean zeroShutterLag = false;
+    public int zeroShutterLagFrames = 4;
+    public boolean enableFrameCache = false;
+    public boolean instantReplay = false;
+    public long replayMaxBytes = ReplayBuffer.DEFAULT_MAX_BYTES;
+    public int replayBitrate = 0;
+    private ReplayBuffer replayBuffer;
+    // Runs the frame processors registered with the plugin on the preview frames, set by the plugin
+    public FrameProcessorHost frameProcessorHost;
+    // Recent capture hashes, null unless duplicate detection is enabled, set by the plugin. Camera pictures and preview
+    // frames are framed differently and hashed in separate indexes, see PerceptualHash
+    public DuplicateIndex duplicateIndex;
+    public DuplicateIndex frameDuplicateIndex;
+    public int duplicateThreshold = DuplicateIndex.DEFAULT_THRESHOLD;
+    public boolean dropDuplicates = false;
+
+    // Last preview frames, kept when zero shutter lag or the frame cache is enabled
+    private PreviewFrameRing frameRing;
+    // Set while a ring is attached only for the recording, pictures taken while recording are preview frames
+    private boolean recordingFrameRing;
 
     public int width;
     public int height;
@@ -143,6 +234,30 @@ public class CameraActivity extends Fragment {
 
             //video view
             mPreview = new Preview(getActivity(), enableOpacity);
+            if (zeroShutterLag) {
+                frameRing = new PreviewFrameRing(zeroShutterLagFrames);
+                mPreview.setFrameRing(frameRing);
+                mPreview.setPreferLargestPreviewSize(true);
+            } else if (enableFrameCache) {
+                // double buffer: the latest frame stays readable while the camera fills the next one
+                frameRing = new PreviewFrameRing(2);
+                mPreview.setFrameRing(frameRing);
+            }
+            if (instantReplay) {
+                if (frameRing == null) {
+                    frameRing = new PreviewFrameRing(2);
+                    mPreview.setFrameRing(frameRing);
+                }
+                replayBuffer = new ReplayBuffer(replayMaxBytes, replayBitrate);
+                frameRing.addFrameListener(replayBuffer);
+            }
+            if (frameProcessorHost != null) {
+                if (frameRing == null) {
+                    frameRing = new PreviewFrameRing(2);
+                    mPreview.setFrameRing(frameRing);
+                }
+                frameRing.addFrameListener(frameProcessorHost, FrameProcessorHost.MAX_FRAMES_IN_FLIGHT);
+            }
             mainLayout = (FrameLayout) view.findViewById(getResources().getIdentifier("video_view", "id", appResourcesPackage));
             mainLayout.setLayoutParams(
                 new RelativeLayout.LayoutParams(RelativeLayout.LayoutParams.MATCH_PARENT, RelativeLayout.LayoutParams.MATCH_PARENT)
@@ -343,6 +458,7 @@ public class CameraActivity extends Fragment {
             mPreview.switchCamera(mCamera, cameraCurrentlyLocked);
             mCamera.startPreview();
         }
+        updateFrameRotation();
 
         Log.d(TAG, "cameraCurrentlyLocked:" + cameraCurrentlyLocked);
 
@@ -383,6 +499,11 @@ public class CameraActivity extends Fragment {
         super.onPause();
 
         // Because the Camera object is a shared resource, it's very important to release it when the activity is paused.
+        disarmRecorder();
+        if (codecRecorder != null) {
+            // the frames stop with the camera, finish the file while it is still valid
+            stopRecord();
+        }
         if (mCamera != null) {
             setDefaultCameraId();
             mPreview.setCamera(null, -1);
@@ -392,6 +513,42 @@ public class CameraActivity extends Fragment {
         }
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        if (postProcessExecutor != null) {
+            postProcessExecutor.shutdown();
+            postProcessExecutor = null;
+        }
+        if (replayBuffer != null) {
+            frameRing.removeFrameListener(replayBuffer);
+            replayBuffer.release();
+            replayBuffer = null;
+        }
+        if (frameProcessorHost != null && frameRing != null) {
+            frameRing.removeFrameListener(frameProcessorHost);
+        }
+        BestFrameSelector selector = bestFrameSelector;
+        if (selector != null) {
+            bestFrameSelector = null;
+            if (frameRing != null) {
+                frameRing.removeFrameListener(selector);
+            }
+            PreviewFrame frame = selector.finish();
+            if (frame != null) {
+                frame.release();
+            }
+            eventListener.onBestFrameError("Camera is not running");
+        }
+        synchronized (this) {
+            if (fileSink != null) {
+                fileSink.shutdown();
+                fileSink = null;
+            }
+        }
+    }
+
     @Override
     public void onConfigurationChanged(Configuration newConfig) {
         super.onConfigurationChanged(newConfig);
@@ -421,6 +578,7 @@ public class CameraActivity extends Fragment {
             frameCamContainerLayout.forceLayout();
 
             mPreview.setCameraDisplayOrientation();
+            updateFrameRotation();
         }
     }
 
@@ -474,6 +632,7 @@ public class CameraActivity extends Fragment {
             Log.d(TAG, "numberOfCameras: " + numberOfCameras);
 
             // OK, we have multiple cameras. Release this camera -> cameraCurrentlyLocked
+            disarmRecorder();
             if (mCamera != null) {
                 mCamera.stopPreview();
                 mPreview.setCamera(null, -1);
@@ -513,6 +672,16 @@ public class CameraActivity extends Fragment {
             mPreview.switchCamera(mCamera, cameraCurrentlyLocked);
 
             mCamera.startPreview();
+            updateFrameRotation();
+        }
+    }
+
+    /**
+     * Hands the rotation that makes the frames of the current camera upright to the frame processors.
+     */
+    private void updateFrameRotation() {
+        if (frameProcessorHost != null && getActivity() != null) {
+            frameProcessorHost.setRotation(calculateOrientationHint());
         }
     }
 
@@ -561,50 +730,406 @@ public class CameraActivity extends Fragment {
     }
 
     private String getTempFilePath() {
-        return getTempDirectoryPath() + "/cpcp_capture_" + UUID.randomUUID().toString().replace("-", "").substring(0, 8) + ".jpg";
+        return getTempFilePath(".jpg");
     }
 
-    PictureCallback jpegPictureCallback = new PictureCallback() {
-        public void onPictureTaken(byte[] data, Camera arg1) {
-            Log.d(TAG, "CameraPreview jpegPictureCallback");
+    private String getTempFilePath(String extension) {
+        if (captureStore != null) {
+            return captureStore.allocate("cpcp_capture", extension);
+        }
+        return getTempDirectoryPath() + "/cpcp_capture_" + UUID.randomUUID().toString().replace("-", "").substring(0, 8) + extension;
+    }
+
+    /**
+     * Returns the matrix that applies the exif rotation (and front camera mirroring) of a jpeg taken by the camera.
+     */
+    private Matrix pictureMatrix(byte[] data) throws IOException {
+        Matrix matrix = new Matrix();
+        if (cameraCurrentlyLocked == Camera.CameraInfo.CAMERA_FACING_FRONT) {
+            matrix.preScale(1.0f, -1.0f);
+        }
+
+        int rotationInDegrees = pictureRotation(data);
+
+        if (rotationInDegrees != 0) {
+            matrix.preRotate(rotationInDegrees);
+        }
+        return matrix;
+    }
+
+    private int pictureRotation(byte[] data) throws IOException {
+        ExifInterface exifInterface = new ExifInterface(new ByteArrayInputStream(data));
+        int rotation = exifInterface.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        return exifToDegrees(rotation);
+    }
+
+    /**
+     * Maps a region normalized in display orientation to pixels of a picture of the given size that still has to be
+     * flipped vertically (when flip is set) after being rotated by rotation degrees, as pictureMatrix does.
+     */
+    static Rect pictureRegion(RectF region, int rotation, boolean flip, int width, int height) {
+        float l = region.left;
+        float t = region.top;
+        float r = region.right;
+        float b = region.bottom;
+        if (flip) {
+            float flippedTop = 1f - b;
+            b = 1f - t;
+            t = flippedTop;
+        }
+
+        RectF unrotated;
+        switch (rotation) {
+            case 90:
+                unrotated = new RectF(t, 1f - r, b, 1f - l);
+                break;
+            case 180:
+                unrotated = new RectF(1f - r, 1f - b, 1f - l, 1f - t);
+                break;
+            case 270:
+                unrotated = new RectF(1f - b, l, 1f - t, r);
+                break;
+            default:
+                unrotated = new RectF(l, t, r, b);
+                break;
+        }
+
+        Rect rect = new Rect(
+            Math.max(0, Math.round(unrotated.left * width)),
+            Math.max(0, Math.round(unrotated.top * height)),
+            Math.min(width, Math.round(unrotated.right * width)),
+            Math.min(height, Math.round(unrotated.bottom * height))
+        );
+        if (rect.width() <= 0 || rect.height() <= 0) {
+            rect.set(0, 0, width, height);
+        }
+        return rect;
+    }
 
+    /**
+     * Decodes a jpeg taken by the camera and applies matrix. When cropRegion is set, only the part of the picture that
+     * was visible in the preview is decoded.
+     */
+    @SuppressWarnings("deprecation")
+    private Bitmap decodePicture(byte[] data, Matrix matrix, RectF cropRegion) throws IOException {
+        Bitmap bitmap;
+        if (cropRegion != null) {
+            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(data, 0, data.length, false);
             try {
-                if (!disableExifHeaderStripping) {
-                    Matrix matrix = new Matrix();
-                    if (cameraCurrentlyLocked == Camera.CameraInfo.CAMERA_FACING_FRONT) {
-                        matrix.preScale(1.0f, -1.0f);
-                    }
+                Rect region = pictureRegion(
+                    cropRegion,
+                    pictureRotation(data),
+                    cameraCurrentlyLocked == Camera.CameraInfo.CAMERA_FACING_FRONT,
+                    decoder.getWidth(),
+                    decoder.getHeight()
+                );
+                bitmap = decoder.decodeRegion(region, null);
+            } finally {
+                decoder.recycle();
+            }
+        } else {
+            bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+        }
+        if (bitmap == null) {
+            throw new IOException("Failed to decode picture");
+        }
+        if (!matrix.isIdentity()) {
+            Bitmap transformed = applyMatrix(bitmap, matrix);
+            bitmap.recycle();
+            bitmap = transformed;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Applies the exif rotation (and front camera mirroring) to a jpeg taken by the camera and returns it through
+     * outputPicture.
+     */
+    private String processPicture(byte[] data, int quality) throws IOException {
+        if (!disableExifHeaderStripping) {
+            Matrix matrix = pictureMatrix(data);
+
+            // Check if matrix has changed. In that case, apply matrix and override data
+            if (!matrix.isIdentity()) {
+                Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+                bitmap = applyMatrix(bitmap, matrix);
+
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                bitmap.compress(CompressFormat.JPEG, quality, outputStream);
+                data = outputStream.toByteArray();
+            }
+        }
 
-                    ExifInterface exifInterface = new ExifInterface(new ByteArrayInputStream(data));
-                    int rotation = exifInterface.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
-                    int rotationInDegrees = exifToDegrees(rotation);
+        return outputPicture(data);
+    }
 
-                    if (rotation != 0f) {
-                        matrix.preRotate(rotationInDegrees);
-                    }
+    /**
+     * Decodes the picture once, applies matrix and produces every rendition requested in options. The renditions are
+     * always rotated since the exif header does not survive the re-encoding.
+     */
+    private CaptureResult processRenditions(byte[] data, Matrix matrix, RectF cropRegion, CaptureOptions options)
+        throws IOException {
+        Bitmap bitmap = decodePicture(data, matrix, cropRegion);
+
+        List<Bitmap> scaled = new ArrayList<>();
+        try {
+            List<PictureEncoder.EncodedPicture> encoded = PictureEncoder.encodeRenditions(
+                bitmap,
+                options.renditions,
+                options.maxBytes,
+                scaled
+            );
+
+            CaptureResult result = null;
+            for (int i = 0; i < encoded.size(); i++) {
+                PictureEncoder.EncodedPicture picture = encoded.get(i);
+                String format = options.renditions.get(i).format;
+                String value = outputPicture(picture.data, format);
+                if (result == null) {
+                    result = new CaptureResult(value, format);
+                }
+                result.renditions.add(new CaptureResult.Rendition(picture.width, picture.height, format, value));
+                if (options.maxBytes > 0) {
+                    result.encodeIterations += picture.iterations;
+                }
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encoding renditions");
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to encode renditions: " + e.getCause());
+        } finally {
+            for (Bitmap scaledBitmap : scaled) {
+                scaledBitmap.recycle();
+            }
+            bitmap.recycle();
+        }
+    }
+
+    private final FileSink.Callback writeBehindCallback = new FileSink.Callback() {
+        @Override
+        public void onWritten(String path, long bytes, IOException error) {
+            if (captureStore != null) {
+                if (error == null) {
+                    captureStore.commit(path);
+                } else {
+                    captureStore.delete(path);
+                }
+            }
+            eventListener.onCaptureWritten(path, bytes, error == null ? null : error.getMessage());
+        }
+    };
 
-                    // Check if matrix has changed. In that case, apply matrix and override data
-                    if (!matrix.isIdentity()) {
-                        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
-                        bitmap = applyMatrix(bitmap, matrix);
+    private synchronized FileSink getFileSink() {
+        if (fileSink == null) {
+            fileSink = new FileSink(fileSyncPolicy);
+        }
+        return fileSink;
+    }
+
+    public synchronized FileSink.Stats getWriteStats() {
+        return getFileSink().getStats();
+    }
+
+    /**
+     * Saves the last seconds of the instant replay buffer to a new video file, reported through onReplaySaved.
+     */
+    public void saveReplay(int seconds) {
+        if (replayBuffer == null) {
+            eventListener.onReplayError("Instant replay is not enabled");
+            return;
+        }
+        final String filePath = allocateVideoPath();
+        replayBuffer.save(
+            seconds,
+            filePath,
+            calculateOrientationHint(),
+            new ReplayBuffer.Callback() {
+                @Override
+                public void onSaved(String path, long durationMs, long bytes) {
+                    eventListener.onReplaySaved(path, durationMs, bytes);
+                }
 
-                        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-                        bitmap.compress(CompressFormat.JPEG, currentQuality, outputStream);
-                        data = outputStream.toByteArray();
+                @Override
+                public void onError(String message) {
+                    if (captureStore != null) {
+                        captureStore.delete(filePath);
+                    } else {
+                        new File(filePath).delete();
                     }
+                    eventListener.onReplayError(message);
                 }
+            }
+        );
+    }
 
-                if (!storeToFile) {
-                    String encodedImage = Base64.encodeToString(data, Base64.NO_WRAP);
+    /**
+     * Returns the jpeg as base64 data or as the path of the file it was written to, depending on storeToFile. With
+     * writeBehind the path is returned as soon as the write is queued.
+     */
+    private String outputPicture(byte[] data) throws IOException {
+        return outputPicture(data, PictureEncoder.FORMAT_JPEG);
+    }
+
+    private String outputPicture(byte[] data, String format) throws IOException {
+        if (!storeToFile) {
+            return Base64.encodeToString(data, Base64.NO_WRAP);
+        } else {
+            String path = getTempFilePath(PictureEncoder.fileExtension(format));
+            if (writeBehind) {
+                getFileSink().write(path, data, writeBehindCallback);
+                return path;
+            }
 
-                    eventListener.onPictureTaken(encodedImage);
+            final CountDownLatch written = new CountDownLatch(1);
+            final IOException[] failure = new IOException[1];
+            getFileSink()
+                .write(
+                    path,
+                    data,
+                    new FileSink.Callback() {
+                        @Override
+                        public void onWritten(String path, long bytes, IOException error) {
+                            failure[0] = error;
+                            written.countDown();
+                        }
+                    }
+                );
+            try {
+                written.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing picture");
+            }
+            if (failure[0] != null) {
+                // drop the partial file and its uncommitted entry, as writeBehindCallback does
+                if (captureStore != null) {
+                    captureStore.delete(path);
                 } else {
-                    String path = getTempFilePath();
-                    FileOutputStream out = new FileOutputStream(path);
-                    out.write(data);
-                    out.close();
-                    eventListener.onPictureTaken(path);
+                    new File(path).delete();
+                }
+                throw failure[0];
+            }
+            if (captureStore != null) {
+                captureStore.commit(path);
+            }
+            return path;
+        }
+    }
+
+    /**
+     * Decodes the picture (only options.cropRegion of it when set) and encodes it again in options.format, with the
+     * highest quality that fits options.maxBytes when it is set. The exif rotation is always applied since the exif
+     * header does not survive the re-encoding.
+     */
+    private CaptureResult reencodePicture(byte[] data, CaptureOptions options) throws IOException {
+        Matrix matrix = pictureMatrix(data);
+        boolean jpeg = PictureEncoder.FORMAT_JPEG.equals(options.format);
+        if (
+            jpeg &&
+            options.cropRegion == null &&
+            data.length <= options.maxBytes &&
+            (disableExifHeaderStripping || matrix.isIdentity())
+        ) {
+            // the picture already fits, no need to encode it again
+            return new CaptureResult(outputPicture(data));
+        }
+
+        Bitmap bitmap = decodePicture(data, matrix, options.cropRegion);
+
+        try {
+            return encodedResult(encodeBitmap(bitmap, options), options, true);
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    private PictureEncoder.EncodedPicture encodeBitmap(Bitmap bitmap, CaptureOptions options) {
+        if (options.maxBytes > 0) {
+            PictureEncoder.EncodedPicture picture = PictureEncoder.encodeWithinBudget(
+                bitmap,
+                options.format,
+                options.quality,
+                options.maxBytes
+            );
+            Log.d(TAG, "CameraPreview encoded " + picture.data.length + " bytes at quality " + picture.quality);
+            return picture;
+        }
+        byte[] data = PictureEncoder.encode(bitmap, options.format, options.quality);
+        return new PictureEncoder.EncodedPicture(data, bitmap.getWidth(), bitmap.getHeight(), options.quality, 1);
+    }
+
+    /**
+     * Wraps an encoded picture in a CaptureResult, as base64 data when asFile is false and otherwise as a file when
+     * storeToFile is set.
+     */
+    private CaptureResult encodedResult(PictureEncoder.EncodedPicture picture, CaptureOptions options, boolean asFile)
+        throws IOException {
+        String value = asFile ? outputPicture(picture.data, options.format) : Base64.encodeToString(picture.data, Base64.NO_WRAP);
+        CaptureResult result = new CaptureResult(value, options.format);
+        if (options.maxBytes > 0) {
+            result.encodeIterations = picture.iterations;
+        }
+        return result;
+    }
+
+    /**
+     * Hashes a jpeg picture from the camera and looks it up among the recent captures, null when duplicate detection is
+     * off.
+     */
+    private DuplicateIndex.Match matchPicture(byte[] jpeg) throws IOException {
+        DuplicateIndex index = duplicateIndex;
+        if (index == null) {
+            return null;
+        }
+        return index.offer(PerceptualHash.hash(jpeg), duplicateThreshold, dropDuplicates);
+    }
+
+    /**
+     * Same as matchPicture() for a preview frame, hashed from its luma plane and looked up among the recent preview frame
+     * captures only.
+     */
+    private DuplicateIndex.Match matchFrame(byte[] data, int width, int height) {
+        DuplicateIndex index = frameDuplicateIndex;
+        if (index == null) {
+            return null;
+        }
+        return index.offer(PerceptualHash.hash(data, width, height), duplicateThreshold, dropDuplicates);
+    }
+
+    /**
+     * The result of a dropped duplicate, it carries no picture and nothing is written.
+     */
+    private static CaptureResult droppedResult(DuplicateIndex.Match match, CaptureOptions options) {
+        CaptureResult result = new CaptureResult("", options.format);
+        result.duplicateMatch = match;
+        return result;
+    }
+
+    private CaptureResult processCapture(byte[] data, CaptureOptions options) throws IOException {
+        if (!options.renditions.isEmpty()) {
+            return processRenditions(data, pictureMatrix(data), options.cropRegion, options);
+        }
+        if (options.maxBytes > 0 || options.cropRegion != null || !PictureEncoder.FORMAT_JPEG.equals(options.format)) {
+            return reencodePicture(data, options);
+        }
+        return new CaptureResult(processPicture(data, options.quality));
+    }
+
+    PictureCallback jpegPictureCallback = new PictureCallback() {
+        public void onPictureTaken(byte[] data, Camera arg1) {
+            Log.d(TAG, "CameraPreview jpegPictureCallback");
+
+            try {
+                DuplicateIndex.Match match = matchPicture(data);
+                if (match != null && match.dropped) {
+                    eventListener.onPictureTaken(droppedResult(match, currentCaptureOptions));
+                    return;
                 }
+                CaptureResult result = processCapture(data, currentCaptureOptions);
+                result.duplicateMatch = match;
+                eventListener.onPictureTaken(result);
                 Log.d(TAG, "CameraPreview pictureTakenHandler called back");
             } catch (OutOfMemoryError e) {
                 // most likely failed to allocate memory for rotateBitmap
@@ -616,6 +1141,7 @@ public class CameraActivity extends Fragment {
                 eventListener.onPictureTakenError("IO Error when extracting exif");
             } catch (Exception e) {
                 Log.d(TAG, "CameraPreview onPictureTaken general exception");
+                eventListener.onPictureTakenError("Failed to process picture: " + e.getMessage());
             } finally {
                 canTakePicture = true;
                 mCamera.startPreview();
@@ -623,6 +1149,146 @@ public class CameraActivity extends Fragment {
         }
     };
 
+    PictureCallback burstPictureCallback = new PictureCallback() {
+        public void onPictureTaken(final byte[] data, Camera camera) {
+            final int index = burstShotsTaken++;
+            Log.d(TAG, "CameraPreview burstPictureCallback " + index);
+
+            // hand the jpeg over to the post-processing pool and get the camera ready for the next shot right away
+            getPostProcessExecutor()
+                .execute(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                // scored before processing, which may replace the data with a rotated copy
+                                double sharpness = -1;
+                                if (burstScoreSharpness) {
+                                    sharpness = new SharpnessScorer().score(data);
+                                    recordBurstSharpness(index, sharpness);
+                                }
+                                String picture = processPicture(data, burstQuality);
+                                if (!burstFailed.get()) {
+                                    eventListener.onBurstPictureTaken(index, picture, sharpness);
+                                }
+                            } catch (OutOfMemoryError e) {
+                                Log.d(TAG, "CameraPreview burst OutOfMemoryError");
+                                failBurst("Picture too large (memory)");
+                            } catch (IOException e) {
+                                Log.d(TAG, "CameraPreview burst IOException");
+                                failBurst("IO Error when extracting exif");
+                            } catch (Exception e) {
+                                Log.d(TAG, "CameraPreview burst general exception");
+                                failBurst("Failed to process picture: " + e.getMessage());
+                            } finally {
+                                onBurstShotProcessed();
+                            }
+                        }
+                    }
+                );
+
+            try {
+                mCamera.startPreview();
+            } catch (RuntimeException e) {
+                Log.d(TAG, "CameraPreview burst startPreview exception: " + e.getMessage());
+            }
+
+            if (burstShotsTaken < burstCount && !burstFailed.get()) {
+                long delay = Math.max(0, burstIntervalMs - (SystemClock.elapsedRealtime() - burstLastShotTime));
+                mainHandler.postDelayed(burstShot, delay);
+            } else {
+                burstCaptureEndTime = SystemClock.elapsedRealtime();
+            }
+        }
+    };
+
+    private final Runnable burstShot = new Runnable() {
+        @Override
+        public void run() {
+            if (mCamera == null) {
+                failBurst("Camera is not running");
+                return;
+            }
+
+            try {
+                burstLastShotTime = SystemClock.elapsedRealtime();
+                mCamera.takePicture(shutterCallback, null, burstPictureCallback);
+            } catch (RuntimeException e) {
+                Log.d(TAG, "CameraPreview burst takePicture exception: " + e.getMessage());
+                failBurst("Failed to take picture: " + e.getMessage());
+            }
+        }
+    };
+
+    private void onBurstShotProcessed() {
+        if (burstShotsProcessed.incrementAndGet() < burstCount || burstFailed.get()) {
+            return;
+        }
+
+        long captureTime = Math.max(1, burstCaptureEndTime - burstStartTime);
+        long elapsedMs = SystemClock.elapsedRealtime() - burstStartTime;
+        double shotsPerSecond = (burstCount * 1000.0) / captureTime;
+        Log.d(TAG, "CameraPreview burst finished: " + burstCount + " shots, " + shotsPerSecond + " shots/s, " + elapsedMs + "ms");
+
+        int sharpestIndex;
+        synchronized (this) {
+            sharpestIndex = burstSharpestIndex;
+        }
+        finishBurst();
+        eventListener.onBurstFinished(burstCount, elapsedMs, shotsPerSecond, sharpestIndex);
+    }
+
+    private synchronized void recordBurstSharpness(int index, double sharpness) {
+        if (sharpness > burstBestSharpness) {
+            burstBestSharpness = sharpness;
+            burstSharpestIndex = index;
+        }
+    }
+
+    private void finishBurst() {
+        mainHandler.removeCallbacks(burstShot);
+        burstRunning = false;
+        canTakePicture = true;
+    }
+
+    /**
+     * Stops the burst on its first error and reports it, later errors of the same burst are only logged. Called from the
+     * main looper or from the post-processing pool.
+     */
+    private void failBurst(String message) {
+        if (!burstFailed.compareAndSet(false, true)) {
+            Log.d(TAG, "CameraPreview burst already failed: " + message);
+            return;
+        }
+        mainHandler.post(
+            new Runnable() {
+                @Override
+                public void run() {
+                    finishBurst();
+                }
+            }
+        );
+        eventListener.onBurstError(message);
+    }
+
+    private synchronized ThreadPoolExecutor getPostProcessExecutor() {
+        if (postProcessExecutor == null) {
+            int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+            // the queue is bounded, when it's full the submitting thread runs the task itself which throttles the producer
+            postProcessExecutor =
+                new ThreadPoolExecutor(
+                    threads,
+                    threads,
+                    30,
+                    TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(POST_PROCESS_QUEUE_SIZE),
+                    new ThreadPoolExecutor.CallerRunsPolicy()
+                );
+            postProcessExecutor.allowCoreThreadTimeOut(true);
+        }
+        return postProcessExecutor;
+    }
+
     private Camera.Size getOptimalPictureSize(
         final int width,
         final int height,
@@ -744,7 +1410,102 @@ public class CameraActivity extends Fragment {
         mPreview.setOpacity(opacity);
     }
 
+    /**
+     * Rotates a preview frame to the display orientation and encodes it in outputFormat, within maxBytes when it is set.
+     * When cropRegion is set, only that part of the rotated frame is encoded.
+     */
+    private PictureEncoder.EncodedPicture encodePreviewFrame(
+        byte[] bytes,
+        int width,
+        int height,
+        int format,
+        String outputFormat,
+        int quality,
+        long maxBytes,
+        RectF cropRegion
+    ) throws IOException {
+        int orientation = mPreview.getDisplayOrientation();
+        if (mPreview.getCameraFacing() == Camera.CameraInfo.CAMERA_FACING_FRONT) {
+            bytes = rotateNV21(bytes, width, height, (360 - orientation) % 360);
+        } else {
+            bytes = rotateNV21(bytes, width, height, orientation);
+        }
+        // switch width/height when rotating 90/270 deg
+        Rect frameRect = orientation == 90 || orientation == 270 ? new Rect(0, 0, height, width) : new Rect(0, 0, width, height);
+        Rect rect = frameRect;
+        if (cropRegion != null) {
+            // the frame is already rotated; chroma is subsampled by 2 so the crop starts on even coordinates
+            rect = pictureRegion(cropRegion, 0, false, frameRect.width(), frameRect.height());
+            rect.left &= ~1;
+            rect.top &= ~1;
+        }
+
+        if (!PictureEncoder.FORMAT_JPEG.equals(outputFormat)) {
+            // YuvImage only compresses to jpeg, convert the frame to a bitmap for the other formats
+            Bitmap bitmap = PictureEncoder.nv21ToBitmap(bytes, frameRect.width(), frameRect.height());
+            if (!rect.equals(frameRect)) {
+                Bitmap cropped = Bitmap.createBitmap(bitmap, rect.left, rect.top, rect.width(), rect.height());
+                bitmap.recycle();
+                bitmap = cropped;
+            }
+            try {
+                CaptureOptions options = new CaptureOptions(0, 0, quality);
+                options.format = outputFormat;
+                options.maxBytes = maxBytes;
+                return encodeBitmap(bitmap, options);
+            } finally {
+                bitmap.recycle();
+            }
+        }
+
+        YuvImage yuvImage = new YuvImage(bytes, format, frameRect.width(), frameRect.height(), null);
+        if (maxBytes > 0) {
+            return PictureEncoder.encodeYuvWithinBudget(yuvImage, rect, quality, maxBytes);
+        }
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        yuvImage.compressToJpeg(rect, quality, byteArrayOutputStream);
+        byte[] data = byteArrayOutputStream.toByteArray();
+        byteArrayOutputStream.close();
+        return new PictureEncoder.EncodedPicture(data, rect.width(), rect.height(), quality, 1);
+    }
+
     public void takeSnapshot(final int quality) {
+        takeSnapshot(new CaptureOptions(0, 0, quality), -1);
+    }
+
+    /**
+     * Encodes the most recent preview frame. When the frame cache is enabled the cached frame is encoded right away as
+     * long as it is not older than maxAgeMs (any age when maxAgeMs is negative), otherwise the next frame is used.
+     */
+    public void takeSnapshot(final CaptureOptions options, final int maxAgeMs) {
+        resolveCropRegion(options);
+        if (frameRing != null && frameRing.isAttached()) {
+            PreviewFrame latest = frameRing.acquireLatest();
+            if (latest != null) {
+                long ageMs = (SystemClock.elapsedRealtimeNanos() - latest.timestampNs) / 1000000;
+                if (maxAgeMs < 0 || ageMs <= maxAgeMs) {
+                    encodeSnapshot(latest, options);
+                    return;
+                }
+                latest.release();
+            }
+
+            frameRing.acquireNext(
+                new PreviewFrameRing.NextFrameCallback() {
+                    @Override
+                    public void onFrame(PreviewFrame frame) {
+                        encodeSnapshot(frame, options);
+                    }
+
+                    @Override
+                    public void onCancel() {
+                        eventListener.onSnapshotTakenError("Camera stopped before a preview frame was received");
+                    }
+                }
+            );
+            return;
+        }
+
         mCamera.setPreviewCallback(
             new Camera.PreviewCallback() {
                 @Override
@@ -752,99 +1513,432 @@ public class CameraActivity extends Fragment {
                     try {
                         Camera.Parameters parameters = camera.getParameters();
                         Camera.Size size = parameters.getPreviewSize();
-                        int orientation = mPreview.getDisplayOrientation();
-                        if (mPreview.getCameraFacing() == Camera.CameraInfo.CAMERA_FACING_FRONT) {
-                            bytes = rotateNV21(bytes, size.width, size.height, (360 - orientation) % 360);
-                        } else {
-                            bytes = rotateNV21(bytes, size.width, size.height, orientation);
+                        DuplicateIndex.Match match = matchFrame(bytes, size.width, size.height);
+                        if (match != null && match.dropped) {
+                            eventListener.onSnapshotTaken(droppedResult(match, options));
+                            return;
                         }
-                        // switch width/height when rotating 90/270 deg
-                        Rect rect = orientation == 90 || orientation == 270
-                            ? new Rect(0, 0, size.height, size.width)
-                            : new Rect(0, 0, size.width, size.height);
-                        YuvImage yuvImage = new YuvImage(bytes, parameters.getPreviewFormat(), rect.width(), rect.height(), null);
-                        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-                        yuvImage.compressToJpeg(rect, quality, byteArrayOutputStream);
-                        byte[] data = byteArrayOutputStream.toByteArray();
-                        byteArrayOutputStream.close();
-                        eventListener.onSnapshotTaken(Base64.encodeToString(data, Base64.NO_WRAP));
+                        PictureEncoder.EncodedPicture picture = encodePreviewFrame(
+                            bytes,
+                            size.width,
+                            size.height,
+                            parameters.getPreviewFormat(),
+                            options.format,
+                            options.quality,
+                            options.maxBytes,
+                            options.cropRegion
+                        );
+                        CaptureResult result = encodedResult(picture, options, false);
+                        result.duplicateMatch = match;
+                        eventListener.onSnapshotTaken(result);
                     } catch (IOException e) {
                         Log.d(TAG, "CameraPreview IOException");
                         eventListener.onSnapshotTakenError("IO Error");
                     } finally {
                         mCamera.setPreviewCallback(null);
+                        if (frameRing != null) {
+                            frameRing.resume();
+                        }
                     }
                 }
             }
         );
     }
 
-    public void takePicture(final int width, final int height, final int quality) {
-        Log.d(TAG, "CameraPreview takePicture width: " + width + ", height: " + height + ", quality: " + quality);
+    private void encodeSnapshot(final PreviewFrame frame, final CaptureOptions options) {
+        getPostProcessExecutor()
+            .execute(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            DuplicateIndex.Match match = matchFrame(frame.data, frame.width, frame.height);
+                            if (match != null && match.dropped) {
+                                eventListener.onSnapshotTaken(droppedResult(match, options));
+                                return;
+                            }
+                            PictureEncoder.EncodedPicture picture = encodePreviewFrame(
+                                frame.data,
+                                frame.width,
+                                frame.height,
+                                frame.format,
+                                options.format,
+                                options.quality,
+                                options.maxBytes,
+                                options.cropRegion
+                            );
+                            CaptureResult result = encodedResult(picture, options, false);
+                            result.duplicateMatch = match;
+                            eventListener.onSnapshotTaken(result);
+                        } catch (IOException e) {
+                            Log.d(TAG, "CameraPreview IOException");
+                            eventListener.onSnapshotTakenError("IO Error");
+                        } finally {
+                            frame.release();
+                        }
+                    }
+                }
+            );
+    }
 
-        if (mPreview != null) {
-            if (!canTakePicture) {
-                return;
-            }
+    /**
+     * Watches the preview frames for windowMs and encodes the sharpest of them, see BestFrameSelector. The frames are
+     * read from the frame ring, so it needs zeroShutterLag, enableFrameCache, instantReplay or a frame processor host.
+     */
+    public boolean isBestFrameInProgress() {
+        return bestFrameSelector != null;
+    }
 
-            canTakePicture = false;
+    public void takeBestFrame(final CaptureOptions options, final int windowMs) {
+        if (frameRing == null || !frameRing.isAttached()) {
+            eventListener.onBestFrameError("Preview frames are not available, enable the frame cache");
+            return;
+        }
+        if (bestFrameSelector != null) {
+            eventListener.onBestFrameError("A best frame capture is in progress");
+            return;
+        }
 
-            new Thread() {
+        resolveCropRegion(options);
+        final BestFrameSelector selector = new BestFrameSelector();
+        bestFrameSelector = selector;
+        // the best frame so far is held out of the camera
+        frameRing.addFrameListener(selector, 1);
+        mainHandler.postDelayed(
+            new Runnable() {
+                @Override
                 public void run() {
-                    Camera.Parameters params = mCamera.getParameters();
+                    finishBestFrame(selector, options);
+                }
+            },
+            windowMs
+        );
+    }
 
-                    Camera.Size size = getOptimalPictureSize(width, height, params.getPreviewSize(), params.getSupportedPictureSizes());
-                    params.setPictureSize(size.width, size.height);
-                    currentQuality = quality;
+    private void finishBestFrame(BestFrameSelector selector, final CaptureOptions options) {
+        if (bestFrameSelector != selector) {
+            // the camera was stopped in the meantime
+            return;
+        }
+        bestFrameSelector = null;
+        if (frameRing != null) {
+            frameRing.removeFrameListener(selector);
+        }
+        final PreviewFrame frame = selector.finish();
+        final int framesScored = selector.getFramesScored();
+        final double sharpness = selector.getBestScore();
+        if (frame == null) {
+            eventListener.onBestFrameError("No preview frame available");
+            return;
+        }
+        Log.d(TAG, "CameraPreview best frame of " + framesScored + " frames, sharpness: " + sharpness);
 
-                    if (cameraCurrentlyLocked == Camera.CameraInfo.CAMERA_FACING_FRONT && !storeToFile) {
-                        // The image will be recompressed in the callback
-                        params.setJpegQuality(99);
-                    } else {
-                        params.setJpegQuality(quality);
+        getPostProcessExecutor()
+            .execute(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            DuplicateIndex.Match match = matchFrame(frame.data, frame.width, frame.height);
+                            if (match != null && match.dropped) {
+                                CaptureResult result = droppedResult(match, options);
+                                result.sharpness = sharpness;
+                                eventListener.onBestFrameTaken(result, framesScored);
+                                return;
+                            }
+                            PictureEncoder.EncodedPicture picture = encodePreviewFrame(
+                                frame.data,
+                                frame.width,
+                                frame.height,
+                                frame.format,
+                                options.format,
+                                options.quality,
+                                options.maxBytes,
+                                options.cropRegion
+                            );
+                            CaptureResult result = encodedResult(picture, options, true);
+                            result.sharpness = sharpness;
+                            result.duplicateMatch = match;
+                            eventListener.onBestFrameTaken(result, framesScored);
+                        } catch (OutOfMemoryError e) {
+                            Log.d(TAG, "CameraPreview best frame OutOfMemoryError");
+                            eventListener.onBestFrameError("Picture too large (memory)");
+                        } catch (IOException e) {
+                            Log.d(TAG, "CameraPreview best frame IOException");
+                            eventListener.onBestFrameError("IO Error");
+                        } finally {
+                            frame.release();
+                        }
                     }
+                }
+            );
+    }
 
-                    if (cameraCurrentlyLocked == Camera.CameraInfo.CAMERA_FACING_FRONT && disableExifHeaderStripping) {
-                        Activity activity = getActivity();
-                        int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
-                        int degrees = 0;
-                        switch (rotation) {
-                            case Surface.ROTATION_0:
-                                degrees = 0;
-                                break;
-                            case Surface.ROTATION_90:
-                                degrees = 180;
-                                break;
-                            case Surface.ROTATION_180:
-                                degrees = 270;
-                                break;
-                            case Surface.ROTATION_270:
-                                degrees = 0;
-                                break;
+    /**
+     * Encodes the buffered preview frame closest to requestTimeNs instead of calling takePicture(), which avoids the
+     * shutter lag and keeps the preview running.
+     */
+    private void takeZeroShutterLagPicture(final long requestTimeNs, final CaptureOptions options) {
+        final PreviewFrame frame = frameRing.acquireNearest(requestTimeNs);
+        if (frame == null) {
+            eventListener.onPictureTakenError("No preview frame available");
+            return;
+        }
+
+        getPostProcessExecutor()
+            .execute(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        DuplicateIndex.Match match;
+                        PictureEncoder.EncodedPicture picture;
+                        try {
+                            match = matchFrame(frame.data, frame.width, frame.height);
+                            if (match != null && match.dropped) {
+                                eventListener.onPictureTaken(droppedResult(match, options));
+                                return;
+                            }
+
+                            // renditions are produced from an intermediate jpeg, the budget applies to each rendition
+                            boolean renditions = !options.renditions.isEmpty();
+                            picture = encodePreviewFrame(
+                                frame.data,
+                                frame.width,
+                                frame.height,
+                                frame.format,
+                                renditions ? PictureEncoder.FORMAT_JPEG : options.format,
+                                renditions ? 100 : options.quality,
+                                renditions ? 0 : options.maxBytes,
+                                options.cropRegion
+                            );
+                        } catch (OutOfMemoryError e) {
+                            Log.d(TAG, "CameraPreview zero shutter lag OutOfMemoryError");
+                            eventListener.onPictureTakenError("Picture too large (memory)");
+                            return;
+                        } catch (IOException e) {
+                            Log.d(TAG, "CameraPreview zero shutter lag IOException");
+                            eventListener.onPictureTakenError("IO Error");
+                            return;
+                        } catch (RuntimeException e) {
+                            Log.d(TAG, "CameraPreview zero shutter lag exception: " + e.getMessage());
+                            eventListener.onPictureTakenError("Failed to process picture: " + e.getMessage());
+                            return;
+                        } finally {
+                            frame.release();
                         }
-                        int orientation;
-                        Camera.CameraInfo info = new Camera.CameraInfo();
-                        if (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
-                            orientation = (info.orientation + degrees) % 360;
-                            if (degrees != 0) {
-                                orientation = (360 - orientation) % 360;
+
+                        try {
+                            CaptureResult result;
+                            if (options.renditions.isEmpty()) {
+                                result = encodedResult(picture, options, true);
+                            } else {
+                                // the frame is already rotated and carries no exif header
+                                result = processRenditions(picture.data, new Matrix(), null, options);
                             }
-                        } else {
-                            orientation = (info.orientation - degrees + 360) % 360;
+                            result.duplicateMatch = match;
+                            eventListener.onPictureTaken(result);
+                        } catch (OutOfMemoryError e) {
+                            Log.d(TAG, "CameraPreview zero shutter lag OutOfMemoryError");
+                            eventListener.onPictureTakenError("Picture too large (memory)");
+                        } catch (IOException e) {
+                            Log.d(TAG, "CameraPreview zero shutter lag IOException");
+                            eventListener.onPictureTakenError("IO Error when writing picture");
+                        } catch (RuntimeException e) {
+                            Log.d(TAG, "CameraPreview zero shutter lag exception: " + e.getMessage());
+                            eventListener.onPictureTakenError("Failed to process picture: " + e.getMessage());
                         }
-                        params.setRotation(orientation);
-                    } else {
-                        params.setRotation(mPreview.getDisplayOrientation());
                     }
+                }
+            );
+    }
+
+    private void resolveCropRegion(CaptureOptions options) {
+        if (options.cropToPreview && mPreview != null) {
+            RectF region = mPreview.getVisibleRegion();
+            if (region != null && (region.left > 0f || region.top > 0f || region.right < 1f || region.bottom < 1f)) {
+                options.cropRegion = region;
+            }
+        }
+    }
+
+    private void applyPictureParameters(final int width, final int height, final int quality) {
+        Camera.Parameters params = mCamera.getParameters();
+
+        Camera.Size size = getOptimalPictureSize(width, height, params.getPreviewSize(), params.getSupportedPictureSizes());
+        params.setPictureSize(size.width, size.height);
+
+        if (cameraCurrentlyLocked == Camera.CameraInfo.CAMERA_FACING_FRONT && !storeToFile) {
+            // The image will be recompressed in the callback
+            params.setJpegQuality(99);
+        } else {
+            params.setJpegQuality(quality);
+        }
 
-                    mCamera.setParameters(params);
-                    mCamera.takePicture(shutterCallback, null, jpegPictureCallback);
+        if (cameraCurrentlyLocked == Camera.CameraInfo.CAMERA_FACING_FRONT && disableExifHeaderStripping) {
+            Activity activity = getActivity();
+            int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+            int degrees = 0;
+            switch (rotation) {
+                case Surface.ROTATION_0:
+                    degrees = 0;
+                    break;
+                case Surface.ROTATION_90:
+                    degrees = 180;
+                    break;
+                case Surface.ROTATION_180:
+                    degrees = 270;
+                    break;
+                case Surface.ROTATION_270:
+                    degrees = 0;
+                    break;
+            }
+            int orientation;
+            Camera.CameraInfo info = new Camera.CameraInfo();
+            if (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
+                orientation = (info.orientation + degrees) % 360;
+                if (degrees != 0) {
+                    orientation = (360 - orientation) % 360;
                 }
+            } else {
+                orientation = (info.orientation - degrees + 360) % 360;
             }
-                .start();
+            params.setRotation(orientation);
+        } else {
+            params.setRotation(mPreview.getDisplayOrientation());
+        }
+
+        mCamera.setParameters(params);
+    }
+
+    public void takePicture(final int width, final int height, final int quality) {
+        takePicture(new CaptureOptions(width, height, quality));
+    }
+
+    public void takePicture(final CaptureOptions options) {
+        final int width = options.width;
+        final int height = options.height;
+        final int quality = options.quality;
+        Log.d(TAG, "CameraPreview takePicture width: " + width + ", height: " + height + ", quality: " + quality);
+        resolveCropRegion(options);
+
+        if (zeroShutterLag && frameRing != null && frameRing.isAttached()) {
+            takeZeroShutterLagPicture(SystemClock.elapsedRealtimeNanos(), options);
+            return;
+        }
+
+        if (mRecordingState == RecordingState.STARTED) {
+            // the recorder holds the unlocked camera, takePicture() would fail or stop the recording
+            if (frameRing != null && frameRing.isAttached()) {
+                takeZeroShutterLagPicture(SystemClock.elapsedRealtimeNanos(), options);
+            } else {
+                eventListener.onPictureTakenError("Cannot take a picture while recording");
+            }
+            return;
+        }
+
+        // every path ends in onPictureTaken or onPictureTakenError, the plugin tracks the pending capture with them
+        if (mPreview != null) {
+            if (!canTakePicture) {
+                eventListener.onPictureTakenError("Camera is busy");
+                return;
+            }
+
+            canTakePicture = false;
+            mainHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        // takePicture needs the camera locked
+                        disarmRecorder();
+
+                        new Thread() {
+                            public void run() {
+                                try {
+                                    currentCaptureOptions = options;
+                                    applyPictureParameters(width, height, quality);
+                                    mCamera.takePicture(shutterCallback, null, jpegPictureCallback);
+                                } catch (RuntimeException e) {
+                                    Log.d(TAG, "CameraPreview takePicture exception: " + e.getMessage());
+                                    canTakePicture = true;
+                                    eventListener.onPictureTakenError("Failed to take picture: " + e.getMessage());
+                                }
+                            }
+                        }
+                            .start();
+                    }
+                }
+            );
         } else {
             canTakePicture = true;
+            eventListener.onPictureTakenError("Camera is not running");
+        }
+    }
+
+    /**
+     * Takes count pictures back to back, waiting at least intervalMs between two shots. Every shot is post-processed on
+     * the post-processing pool and reported through onBurstPictureTaken as soon as it is ready, which means shots may be
+     * reported out of order.
+     */
+    public void takeBurst(final int count, final int intervalMs, final int width, final int height, final int quality) {
+        takeBurst(count, intervalMs, width, height, quality, false);
+    }
+
+    /**
+     * Same as takeBurst() above, scoring the sharpness of every shot when scoreSharpness is set so that
+     * onBurstFinished reports the sharpest one, see SharpnessScorer.
+     */
+    public void takeBurst(
+        final int count,
+        final int intervalMs,
+        final int width,
+        final int height,
+        final int quality,
+        final boolean scoreSharpness
+    ) {
+        Log.d(TAG, "CameraPreview takeBurst count: " + count + ", interval: " + intervalMs + ", quality: " + quality);
+
+        if (mPreview == null || mCamera == null) {
+            eventListener.onBurstError("Camera is not running");
+            return;
+        }
+
+        if (!canTakePicture || burstRunning || mRecordingState == RecordingState.STARTED) {
+            eventListener.onBurstError("Camera is busy");
+            return;
         }
+
+        canTakePicture = false;
+        burstRunning = true;
+        burstCount = count;
+        burstIntervalMs = intervalMs;
+        burstQuality = quality;
+        burstShotsTaken = 0;
+        burstShotsProcessed.set(0);
+        burstFailed.set(false);
+        burstScoreSharpness = scoreSharpness;
+        synchronized (this) {
+            burstSharpestIndex = -1;
+            burstBestSharpness = -1;
+        }
+
+        mainHandler.post(
+            new Runnable() {
+                @Override
+                public void run() {
+                    // takePicture needs the camera locked
+                    disarmRecorder();
+                    try {
+                        applyPictureParameters(width, height, quality);
+                    } catch (RuntimeException e) {
+                        failBurst("Failed to set picture parameters: " + e.getMessage());
+                        return;
+                    }
+                    burstStartTime = SystemClock.elapsedRealtime();
+                    burstCaptureEndTime = burstStartTime;
+                    burstShot.run();
+                }
+            }
+        );
     }
 
     public void startRecord(
@@ -856,7 +1950,32 @@ public class CameraActivity extends Fragment {
         final boolean withFlash,
         final int maxDuration
     ) {
-        Log.d(TAG, "CameraPreview startRecord camera: " + camera + " width: " + width + ", height: " + height + ", quality: " + quality);
+        startRecord(filePath, camera, withFlash, maxDuration, new RecordOptions(width, height, quality));
+    }
+
+    /**
+     * Starts recording to filePath, or to a new file of the capture store when filePath is null. When the recorder has
+     * been armed with the same flash setting, it is started right away and options are ignored.
+     */
+    public void startRecord(
+        final String filePath,
+        final String camera,
+        final boolean withFlash,
+        final int maxDuration,
+        final RecordOptions options
+    ) {
+        long requestTime = SystemClock.elapsedRealtime();
+        Log.d(
+            TAG,
+            "CameraPreview startRecord camera: " +
+            camera +
+            " width: " +
+            options.width +
+            ", height: " +
+            options.height +
+            ", quality: " +
+            options.quality
+        );
         Activity activity = getActivity();
         muteStream(true, activity);
         if (this.mRecordingState == RecordingState.STARTED) {
@@ -864,10 +1983,210 @@ public class CameraActivity extends Fragment {
             return;
         }
 
+        if (options.usesMediaCodec()) {
+            startCodecRecord(filePath, withFlash, options, requestTime);
+            return;
+        }
+
+        boolean armed = recorderArmed && armWithFlash == withFlash;
+        if (!armed) {
+            disarmRecorder();
+            if (options.isSegmented() && Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+                eventListener.onStartRecordVideoError("Segmented recording requires Android 8.0 or later");
+                return;
+            }
+            try {
+                prepareRecorder(filePath != null ? filePath : allocateVideoPath(), withFlash, maxDuration, options);
+            } catch (IOException | RuntimeException e) {
+                eventListener.onStartRecordVideoError(e.getMessage());
+                return;
+            }
+        }
+
+        try {
+            Log.d(TAG, "Starting recording");
+            mRecorder.start();
+        } catch (RuntimeException e) {
+            releaseRecorder();
+            eventListener.onStartRecordVideoError(e.getMessage());
+            return;
+        }
+        long startedAt = SystemClock.elapsedRealtime();
+        long armedForMs = armed ? requestTime - armedAt : 0;
+        recorderArmed = false;
+        mRecordingState = RecordingState.STARTED;
+        Log.d(TAG, "CameraPreview recording started in " + (startedAt - requestTime) + "ms, armed: " + armed);
+        eventListener.onStartRecordVideo(armed, startedAt - requestTime, armedForMs);
+    }
+
+    /**
+     * Records with the mediacodec engine: the camera stays locked and its preview frames are encoded by a CodecRecorder
+     * listening to the frame ring.
+     */
+    private void startCodecRecord(String filePath, boolean withFlash, RecordOptions options, long requestTime) {
+        disarmRecorder();
+        if (options.isSegmented() || options.isTimeLapse()) {
+            eventListener.onStartRecordVideoError("Segments and time-lapse require the mediarecorder engine");
+            return;
+        }
+        recordOptions = options;
+        recordSegmentIndex = 0;
+        recordFilePath = filePath != null ? filePath : allocateVideoPath();
+
+        Camera.Parameters cameraParams = mCamera.getParameters();
+        if (withFlash) {
+            cameraParams.setFlashMode(Camera.Parameters.FLASH_MODE_TORCH);
+            mCamera.setParameters(cameraParams);
+        }
+        if (options.maxPreviewFps > 0) {
+            lowerPreviewFps(cameraParams, options.maxPreviewFps);
+        }
+
+        PreviewEncoder.Config config = new PreviewEncoder.Config();
+        config.bitrate = options.videoBitrate;
+        if (options.frameRate > 0) {
+            config.frameRate = options.frameRate;
+        } else if (options.maxPreviewFps > 0) {
+            config.frameRate = Math.min(config.frameRate, options.maxPreviewFps);
+        }
+        config.keyFrameIntervalSeconds = options.keyFrameInterval;
+        config.bitrateMode = options.bitrateMode;
+
+        attachRecordingFrameRing();
+        codecRecorder = new CodecRecorder(
+            recordFilePath,
+            calculateOrientationHint(),
+            config,
+            options.maxPendingFrames,
+            options.dropPolicy
+        );
+        // queued frames hold camera buffers, plus the frame being fed to the encoder
+        frameRing.addFrameListener(codecRecorder, codecRecorder.getMaxPendingFrames() + 1);
+        mRecordingState = RecordingState.STARTED;
+
+        long startLatencyMs = SystemClock.elapsedRealtime() - requestTime;
+        Log.d(TAG, "CameraPreview mediacodec recording started in " + startLatencyMs + "ms");
+        eventListener.onStartRecordVideo(false, startLatencyMs, 0);
+    }
+
+    private void stopCodecRecord() {
+        final CodecRecorder recorder = codecRecorder;
+        final boolean fastStart = recordOptions.fastStart;
+        codecRecorder = null;
+        frameRing.removeFrameListener(recorder);
+        detachRecordingFrameRing();
+        if (mCamera != null) {
+            Camera.Parameters cameraParams = mCamera.getParameters();
+            cameraParams.setFlashMode(Camera.Parameters.FLASH_MODE_OFF);
+            restorePreviewFps(cameraParams);
+            mCamera.setParameters(cameraParams);
+        }
+
+        recorder.stop(
+            new CodecRecorder.Callback() {
+                @Override
+                public void onStopped(String path, String error) {
+                    lastRecordingStats = recorder.getStats();
+                    if (error != null) {
+                        eventListener.onStopRecordVideoError(error);
+                    } else if (fastStart) {
+                        finishRecording(0, path, true, true);
+                    } else {
+                        eventListener.onStopRecordVideo(path);
+                    }
+                }
+            }
+        );
+    }
+
+    /**
+     * Returns the encoder stats of the current mediacodec recording, or of the last one, null when there was none.
+     */
+    public CodecRecorder.Stats getRecordingStats() {
+        CodecRecorder recorder = codecRecorder;
+        return recorder != null ? recorder.getStats() : lastRecordingStats;
+    }
+
+    /**
+     * Does everything startRecord does up to MediaRecorder.prepare() ahead of time, so that the next startRecord only
+     * has to call start(). The recorder is armed again after every stopRecord, until disarmRecorder(true) is called.
+     * While it is armed the camera is unlocked: pictures disarm it first.
+     */
+    public void armRecorder(final boolean withFlash, final int maxDuration, final RecordOptions options) throws IOException {
+        if (mCamera == null) {
+            throw new IOException("Camera is not running");
+        }
+        if (mRecordingState == RecordingState.STARTED) {
+            throw new IOException("Already Recording");
+        }
+        if (options.isSegmented() && Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            throw new IOException("Segmented recording requires Android 8.0 or later");
+        }
+
+        disarmRecorder();
+        prepareRecorder(allocateVideoPath(), withFlash, maxDuration, options);
+        armOptions = options;
+        recorderArmed = true;
+        autoRearm = true;
+        armWithFlash = withFlash;
+        armMaxDuration = maxDuration;
+        armedAt = SystemClock.elapsedRealtime();
+    }
+
+    public boolean isRecorderArmed() {
+        return recorderArmed;
+    }
+
+    /**
+     * Releases an armed recorder and locks the camera again. With stopRearming, the recorder is not armed again after
+     * the next stopRecord.
+     */
+    public void disarmRecorder(boolean stopRearming) {
+        if (stopRearming) {
+            autoRearm = false;
+        }
+        disarmRecorder();
+    }
+
+    private void disarmRecorder() {
+        if (!recorderArmed) {
+            return;
+        }
+        recorderArmed = false;
+        releaseRecorder();
+        // the file was created by prepare() but never written
+        if (captureStore != null) {
+            captureStore.delete(recordFilePath);
+        } else {
+            new File(recordFilePath).delete();
+        }
+    }
+
+    private void releaseRecorder() {
+        if (mRecorder == null) {
+            return;
+        }
+        mRecorder.reset();
+        mRecorder.release();
+        mRecorder = null;
+        detachRecordingFrameRing();
+        if (mCamera != null) {
+            mCamera.lock();
+            if (savedPreviewFpsRange != null) {
+                Camera.Parameters cameraParams = mCamera.getParameters();
+                restorePreviewFps(cameraParams);
+                mCamera.setParameters(cameraParams);
+            }
+        }
+    }
+
+    private void prepareRecorder(String filePath, boolean withFlash, int maxDuration, RecordOptions options) throws IOException {
+        recordOptions = options;
+        recordSegmentIndex = 0;
+        nextSegmentPath = null;
+
         this.recordFilePath = filePath;
         int mOrientationHint = calculateOrientationHint();
-        int videoWidth = 0; //set whatever
-        int videoHeight = 0; //set whatever
 
         Camera.Parameters cameraParams = mCamera.getParameters();
         if (withFlash) {
@@ -875,6 +2194,10 @@ public class CameraActivity extends Fragment {
             mCamera.setParameters(cameraParams);
             mCamera.startPreview();
         }
+        if (options.maxPreviewFps > 0) {
+            lowerPreviewFps(cameraParams, options.maxPreviewFps);
+        }
+        attachRecordingFrameRing();
 
         mCamera.unlock();
         mRecorder = new MediaRecorder();
@@ -882,45 +2205,194 @@ public class CameraActivity extends Fragment {
         try {
             mRecorder.setCamera(mCamera);
 
-            CamcorderProfile profile;
-            if (CamcorderProfile.hasProfile(defaultCameraId, CamcorderProfile.QUALITY_HIGH)) {
-                profile = CamcorderProfile.get(defaultCameraId, CamcorderProfile.QUALITY_HIGH);
+            CamcorderProfile profile = VideoProfileSelector.select(cameraCurrentlyLocked, cameraParams, options);
+
+            if (options.isTimeLapse()) {
+                // a time-lapse has no audio, setProfile would set up the audio encoder of a regular profile
+                mRecorder.setVideoSource(MediaRecorder.VideoSource.CAMERA);
+                mRecorder.setOutputFormat(profile.fileFormat);
+                mRecorder.setVideoFrameRate(profile.videoFrameRate);
+                mRecorder.setVideoSize(profile.videoFrameWidth, profile.videoFrameHeight);
+                mRecorder.setVideoEncodingBitRate(profile.videoBitRate);
+                mRecorder.setVideoEncoder(profile.videoCodec);
+                mRecorder.setCaptureRate(options.timeLapseFps);
             } else {
-                if (CamcorderProfile.hasProfile(defaultCameraId, CamcorderProfile.QUALITY_480P)) {
-                    profile = CamcorderProfile.get(defaultCameraId, CamcorderProfile.QUALITY_480P);
-                } else {
-                    if (CamcorderProfile.hasProfile(defaultCameraId, CamcorderProfile.QUALITY_720P)) {
-                        profile = CamcorderProfile.get(defaultCameraId, CamcorderProfile.QUALITY_720P);
-                    } else {
-                        if (CamcorderProfile.hasProfile(defaultCameraId, CamcorderProfile.QUALITY_1080P)) {
-                            profile = CamcorderProfile.get(defaultCameraId, CamcorderProfile.QUALITY_1080P);
-                        } else {
-                            profile = CamcorderProfile.get(defaultCameraId, CamcorderProfile.QUALITY_LOW);
-                        }
-                    }
-                }
+                mRecorder.setAudioSource(MediaRecorder.AudioSource.VOICE_RECOGNITION);
+                mRecorder.setVideoSource(MediaRecorder.VideoSource.CAMERA);
+                mRecorder.setProfile(profile);
             }
-
-            mRecorder.setAudioSource(MediaRecorder.AudioSource.VOICE_RECOGNITION);
-            mRecorder.setVideoSource(MediaRecorder.VideoSource.CAMERA);
-            mRecorder.setProfile(profile);
             mRecorder.setOutputFile(filePath);
             mRecorder.setOrientationHint(mOrientationHint);
             mRecorder.setMaxDuration(maxDuration);
+            if (options.isSegmented()) {
+                long segmentBytes = segmentMaxBytes(profile, options);
+                Log.d(TAG, "CameraPreview recording segments of " + segmentBytes + " bytes");
+                mRecorder.setMaxFileSize(segmentBytes);
+                mRecorder.setOnInfoListener(segmentInfoListener);
+            }
 
             mRecorder.prepare();
-            Log.d(TAG, "Starting recording");
-            mRecorder.start();
-            eventListener.onStartRecordVideo();
-        } catch (IOException e) {
-            eventListener.onStartRecordVideoError(e.getMessage());
+        } catch (IOException | RuntimeException e) {
+            releaseRecorder();
+            throw e;
+        }
+    }
+
+    /**
+     * Switches the preview to the fastest supported fps range not above maxFps, the camera then delivers fewer frames to
+     * the encoder. The current range is kept to be restored by restorePreviewFps().
+     */
+    private void lowerPreviewFps(Camera.Parameters cameraParams, int maxFps) {
+        int[] range = VideoProfileSelector.previewFpsRange(cameraParams, maxFps);
+        if (range == null) {
+            return;
+        }
+        if (savedPreviewFpsRange == null) {
+            savedPreviewFpsRange = new int[2];
+            cameraParams.getPreviewFpsRange(savedPreviewFpsRange);
+        }
+        cameraParams.setPreviewFpsRange(
+            range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+            range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]
+        );
+        mCamera.setParameters(cameraParams);
+        Log.d(TAG, "CameraPreview preview fps range lowered to " + range[0] + "-" + range[1]);
+    }
+
+    /**
+     * Makes sure preview frames keep coming while recording: the preview callback can't be installed once the recorder
+     * holds the unlocked camera, so captureSample() and capture() read the frames of a ring installed beforehand. The
+     * ring recycles its buffers, the camera keeps its frame cadence and the frames are encoded on the post-processing
+     * pool.
+     */
+    private void attachRecordingFrameRing() {
+        if (frameRing != null && frameRing.isAttached()) {
+            return;
+        }
+        if (frameRing == null) {
+            frameRing = new PreviewFrameRing(2);
+            recordingFrameRing = true;
+        }
+        frameRing.attach(mCamera);
+    }
+
+    private void detachRecordingFrameRing() {
+        if (recordingFrameRing) {
+            frameRing.detach();
+            frameRing = null;
+            recordingFrameRing = false;
+        }
+    }
+
+    private void restorePreviewFps(Camera.Parameters cameraParams) {
+        if (savedPreviewFpsRange == null) {
+            return;
+        }
+        cameraParams.setPreviewFpsRange(
+            savedPreviewFpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+            savedPreviewFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]
+        );
+        savedPreviewFpsRange = null;
+    }
+
+    /**
+     * Returns the size of a segment in bytes. MediaRecorder can only roll to the next file on size, so a duration is
+     * converted to bytes from the bit rates of the profile. A time-lapse has no audio and encodes timeLapseFps frames
+     * per second of recording.
+     */
+    private long segmentMaxBytes(CamcorderProfile profile, RecordOptions options) {
+        long bytes = options.segmentMaxBytes;
+        if (options.segmentSeconds > 0) {
+            long bitRate = (long) profile.videoBitRate + profile.audioBitRate;
+            if (options.isTimeLapse()) {
+                bitRate = (long) (profile.videoBitRate * options.timeLapseFps / Math.max(1, profile.videoFrameRate));
+            }
+            long durationBytes = Math.max(1, options.segmentSeconds * bitRate / 8);
+            bytes = bytes > 0 ? Math.min(bytes, durationBytes) : durationBytes;
+        }
+        return bytes;
+    }
+
+    private String allocateVideoPath() {
+        if (captureStore != null) {
+            return captureStore.allocate("videoTmp", ".mp4");
+        }
+        return getTempDirectoryPath() + "/videoTmp_" + UUID.randomUUID().toString().replace("-", "").substring(0, 8) + ".mp4";
+    }
+
+    private final MediaRecorder.OnInfoListener segmentInfoListener = new MediaRecorder.OnInfoListener() {
+        @Override
+        public void onInfo(MediaRecorder mr, int what, int extra) {
+            if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_APPROACHING) {
+                nextSegmentPath = allocateVideoPath();
+                try {
+                    mr.setNextOutputFile(new File(nextSegmentPath));
+                } catch (IOException e) {
+                    Log.d(TAG, "CameraPreview could not set the next segment: " + e.getMessage());
+                    discardNextSegment();
+                }
+            } else if (what == MediaRecorder.MEDIA_RECORDER_INFO_NEXT_OUTPUT_FILE_STARTED && nextSegmentPath != null) {
+                String completed = recordFilePath;
+                recordFilePath = nextSegmentPath;
+                nextSegmentPath = null;
+                finishRecording(recordSegmentIndex++, completed, false, false);
+            } else if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED) {
+                // the next file could not be set in time, the recorder stopped by itself
+                Log.d(TAG, "CameraPreview segment size reached without a next segment");
+                if (mRecordingState == RecordingState.STARTED) {
+                    mRecordingState = RecordingState.STOPPED;
+                    String error = closeRecorder();
+                    if (error != null) {
+                        Log.d(TAG, "CameraPreview could not hand the camera back: " + error);
+                    }
+                    finishRecording(recordSegmentIndex, recordFilePath, true, false);
+                    rearmRecorder();
+                }
+            }
+        }
+    };
+
+    /**
+     * Deletes the next segment file when the recording stops before rolling to it, the store would otherwise keep an
+     * entry that is never committed.
+     */
+    private void discardNextSegment() {
+        String path = nextSegmentPath;
+        nextSegmentPath = null;
+        if (path == null) {
+            return;
+        }
+        if (captureStore != null) {
+            captureStore.delete(path);
+        } else {
+            new File(path).delete();
+        }
+    }
+
+    /**
+     * Releases the stopped MediaRecorder and hands the camera back to the preview. Returns the error message when the
+     * camera could not be restored, null otherwise.
+     */
+    private String closeRecorder() {
+        discardNextSegment();
+        try {
+            releaseRecorder();
+            if (mCamera != null) {
+                Camera.Parameters cameraParams = mCamera.getParameters();
+                cameraParams.setFlashMode(Camera.Parameters.FLASH_MODE_OFF);
+                mCamera.setParameters(cameraParams);
+                mCamera.startPreview();
+            }
+            return null;
+        } catch (RuntimeException e) {
+            return e.getMessage() != null ? e.getMessage() : e.toString();
         }
     }
 
     public int calculateOrientationHint() {
         DisplayMetrics dm = new DisplayMetrics();
         Camera.CameraInfo info = new Camera.CameraInfo();
-        Camera.getCameraInfo(defaultCameraId, info);
+        Camera.getCameraInfo(cameraCurrentlyLocked, info);
         int cameraRotationOffset = info.orientation;
         Activity activity = getActivity();
 
@@ -959,21 +2431,93 @@ public class CameraActivity extends Fragment {
 
     public void stopRecord() {
         Log.d(TAG, "stopRecord");
+        if (mRecordingState != RecordingState.STARTED) {
+            // never started, or the recorder already stopped by itself and reported it
+            eventListener.onStopRecordVideoError("Not recording");
+            return;
+        }
+        mRecordingState = RecordingState.STOPPED;
+        if (codecRecorder != null) {
+            stopCodecRecord();
+            rearmRecorder();
+            return;
+        }
 
+        String error = null;
         try {
             mRecorder.stop();
-            mRecorder.reset(); // clear recorder configuration
-            mRecorder.release(); // release the recorder object
-            mRecorder = null;
-            mCamera.lock();
-            Camera.Parameters cameraParams = mCamera.getParameters();
-            cameraParams.setFlashMode(Camera.Parameters.FLASH_MODE_OFF);
-            mCamera.setParameters(cameraParams);
-            mCamera.startPreview();
+        } catch (RuntimeException e) {
+            // e.g. stopped before any frame was recorded, the file is unusable
+            error = e.getMessage() != null ? e.getMessage() : "Failed to stop recording";
+        }
+        // released whether or not it stopped cleanly, so the camera never stays with a dead recorder
+        String closeError = closeRecorder();
+        if (error == null) {
+            error = closeError;
+        }
+
+        if (error != null) {
+            eventListener.onStopRecordVideoError(error);
+        } else if (recordOptions.fastStart || recordOptions.isSegmented()) {
+            finishRecording(recordSegmentIndex, this.recordFilePath, true, true);
+        } else {
             eventListener.onStopRecordVideo(this.recordFilePath);
-        } catch (Exception e) {
-            eventListener.onStopRecordVideoError(e.getMessage());
         }
+
+        rearmRecorder();
+    }
+
+    private void rearmRecorder() {
+        if (autoRearm) {
+            mainHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            armRecorder(armWithFlash, armMaxDuration, armOptions);
+                        } catch (IOException | RuntimeException e) {
+                            Log.d(TAG, "CameraPreview could not arm the recorder again: " + e.getMessage());
+                        }
+                    }
+                }
+            );
+        }
+    }
+
+    /**
+     * Post-processes a completed recording file (a segment when segmented) on the post-processing pool and reports it.
+     * The last file also completes stopRecord, or is reported through onRecordVideoStopped when the recorder stopped by
+     * itself (requested false).
+     */
+    private void finishRecording(final int index, final String filePath, final boolean last, final boolean requested) {
+        final boolean fastStart = recordOptions.fastStart;
+        final boolean segmented = recordOptions.isSegmented();
+        getPostProcessExecutor()
+            .execute(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        if (fastStart) {
+                            long start = SystemClock.elapsedRealtime();
+                            try {
+                                boolean rewritten = Mp4FastStart.process(new File(filePath));
+                                Log.d(TAG, "CameraPreview fast start " + rewritten + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
+                            } catch (IOException e) {
+                                // the original file is left untouched, it is still playable
+                                Log.d(TAG, "CameraPreview fast start failed: " + e.getMessage());
+                            }
+                        }
+                        if (segmented) {
+                            eventListener.onVideoSegment(index, filePath, last);
+                        }
+                        if (last && requested) {
+                            eventListener.onStopRecordVideo(filePath);
+                        } else if (last) {
+                            eventListener.onRecordVideoStopped(filePath);
+                        }
+                    }
+                }
+            );
     }
 
     public void muteStream(boolean mute, Activity activity) {
@@ -6,6 +6,7 @@ import android.content.pm.ActivityInfo;
 import android.graphics.Color;
 import android.graphics.Point;
 import android.hardware.Camera;
+import android.util.Base64;
 import android.util.DisplayMetrics;
 import android.util.TypedValue;
 import android.view.Display;
@@ -14,6 +15,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.FrameLayout;
 
+import com.getcapacitor.JSArray;
 import com.getcapacitor.JSObject;
 import com.getcapacitor.Logger;
 import com.getcapacitor.PermissionState;
@@ -24,10 +26,14 @@ import com.getcapacitor.annotation.CapacitorPlugin;
 import com.getcapacitor.annotation.Permission;
 import com.getcapacitor.annotation.PermissionCallback;
 
-import java.io.File;
+import com.google.zxing.BarcodeFormat;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.json.JSONArray;
+import org.json.JSONObject;
 
 @CapacitorPlugin(
     name = "CameraPreview",
@@ -42,23 +48,55 @@ import org.json.JSONArray;
         )
     }
 )
-public class CameraPreview extends Plugin implements CameraActivity.CameraPreviewListener {
+public class CameraPreview
+    extends Plugin
+    implements
+        CameraActivity.CameraPreviewListener,
+        CaptureReader.ChunkListener,
+        FrameProcessorHost.ResultListener,
+        BarcodeScanner.Listener,
+        LumaStats.Listener,
+        MotionDetector.Listener {
 
     static final String CAMERA_PERMISSION_ALIAS = "camera";
     static final String AUDIO_PERMISSION_ALIAS = "audio";
 
-    private static String VIDEO_FILE_PATH = "";
-    private static String VIDEO_FILE_EXTENSION = ".mp4";
-
     private String captureCallbackId = "";
     private String snapshotCallbackId = "";
     private String recordCallbackId = "";
     private String cameraStartCallbackId = "";
+    private String burstCallbackId = "";
+    private String replayCallbackId = "";
+    private String bestCallbackId = "";
+    // post-stop stage requested by the pending stopRecordVideo call
+    private VideoPostProcessor.Options stopRecordOptions = new VideoPostProcessor.Options();
+    private VideoPostProcessor videoPostProcessor;
 
     // keep track of previously specified orientation to support locking orientation:
     private int previousOrientationRequest = -1;
 
     private CameraActivity fragment;
+    private CaptureStore captureStore;
+    // volatile, read by the capture store removal listener without the plugin lock
+    private volatile CaptureReader captureReader;
+    private FrameProcessorHost frameProcessorHost;
+    // hashes of the recent captures, kept across camera restarts
+    private DuplicateIndex duplicateIndex;
+    private DuplicateIndex frameDuplicateIndex;
+    private BarcodeScanner barcodeScanner;
+    private LumaStats lumaStats;
+    private MotionDetector motionDetector;
+    // picture taken once the scene turns still, null when automatic capture is off
+    private volatile CaptureOptions autoCaptureOptions;
+    // who the picture taken by fragment.takePicture goes to: a capture call, or an autoCapture event. Only one picture
+    // is taken at a time, the owner is claimed with compareAndSet and released by onPictureTaken/onPictureTakenError
+    private enum CaptureOwner {
+        NONE,
+        CALL,
+        AUTO
+    }
+
+    private final AtomicReference<CaptureOwner> captureOwner = new AtomicReference<>(CaptureOwner.NONE);
     private int containerViewId = 20;
 
     @PluginMethod
@@ -81,14 +119,24 @@ public class CameraPreview extends Plugin implements CameraActivity.CameraPrevie
     }
 
     @PluginMethod
-    public void flip(PluginCall call) {
-        try {
-            fragment.switchCamera();
-            call.resolve();
-        } catch (Exception e) {
-            Logger.debug(getLogTag(), "Camera flip exception: " + e);
-            call.reject("failed to flip camera");
-        }
+    public void flip(final PluginCall call) {
+        // on the main thread, where the recorder it may disarm is armed
+        bridge
+            .getActivity()
+            .runOnUiThread(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            fragment.switchCamera();
+                            call.resolve();
+                        } catch (Exception e) {
+                            Logger.debug(getLogTag(), "Camera flip exception: " + e);
+                            call.reject("failed to flip camera");
+                        }
+                    }
+                }
+            );
     }
 
     @PluginMethod
@@ -109,14 +157,49 @@ public class CameraPreview extends Plugin implements CameraActivity.CameraPrevie
             call.reject("Camera is not running");
             return;
         }
-        bridge.saveCall(call);
-        captureCallbackId = call.getCallbackId();
 
         Integer quality = call.getInt("quality", 85);
         // Image Dimensions - Optional
         Integer width = call.getInt("width", 0);
         Integer height = call.getInt("height", 0);
-        fragment.takePicture(width, height, quality);
+        CaptureOptions options = new CaptureOptions(width, height, quality);
+        // Byte budget - Optional
+        options.maxBytes = Math.max(0, call.getInt("maxBytes", 0));
+        // Crop to the visible part of the preview - Optional
+        options.cropToPreview = call.getBoolean("cropToPreview", false);
+        // Output format - Optional
+        options.format = call.getString("format", PictureEncoder.FORMAT_JPEG);
+        if (!PictureEncoder.isSupportedFormat(options.format)) {
+            call.reject("Format not recognised: " + options.format);
+            return;
+        }
+
+        // Renditions - Optional
+        JSArray renditions = call.getArray("renditions", new JSArray());
+        for (int i = 0; i < renditions.length(); i++) {
+            JSONObject rendition = renditions.optJSONObject(i);
+            if (rendition == null) {
+                call.reject("renditions must be a list of objects");
+                return;
+            }
+            String format = rendition.optString("format", options.format);
+            if (!PictureEncoder.isSupportedFormat(format)) {
+                call.reject("Format not recognised: " + format);
+                return;
+            }
+            options.renditions.add(
+                new CaptureOptions.Rendition(rendition.optInt("maxDimension", 0), rendition.optInt("quality", quality), format)
+            );
+        }
+
+        if (!captureOwner.compareAndSet(CaptureOwner.NONE, CaptureOwner.CALL)) {
+            call.reject(captureOwner.get() == CaptureOwner.AUTO ? "An automatic capture is in progress" : "A capture is in progress");
+            return;
+        }
+
+        bridge.saveCall(call);
+        captureCallbackId = call.getCallbackId();
+        fragment.takePicture(options);
     }
 
     @PluginMethod
@@ -125,11 +208,87 @@ public class CameraPreview extends Plugin implements CameraActivity.CameraPrevie
             call.reject("Camera is not running");
             return;
         }
+
+        Integer quality = call.getInt("quality", 85);
+        // Maximum age of the cached preview frame - Optional, any age by default
+        Integer maxAgeMs = call.getInt("maxAgeMs", -1);
+        CaptureOptions options = new CaptureOptions(0, 0, quality);
+        // Byte budget - Optional
+        options.maxBytes = Math.max(0, call.getInt("maxBytes", 0));
+        // Crop to the visible part of the preview - Optional
+        options.cropToPreview = call.getBoolean("cropToPreview", false);
+        // Output format - Optional
+        options.format = call.getString("format", PictureEncoder.FORMAT_JPEG);
+        if (!PictureEncoder.isSupportedFormat(options.format)) {
+            call.reject("Format not recognised: " + options.format);
+            return;
+        }
+
         bridge.saveCall(call);
         snapshotCallbackId = call.getCallbackId();
+        fragment.takeSnapshot(options, maxAgeMs);
+    }
+
+    @PluginMethod
+    public void captureBurst(PluginCall call) {
+        if (this.hasCamera(call) == false) {
+            call.reject("Camera is not running");
+            return;
+        }
+
+        Integer count = call.getInt("count", 3);
+        if (count < 1) {
+            call.reject("count must be greater than 0");
+            return;
+        }
+
+        bridge.saveCall(call);
+        burstCallbackId = call.getCallbackId();
+
+        Integer intervalMs = call.getInt("intervalMs", 0);
+        Integer quality = call.getInt("quality", 85);
+        // Image Dimensions - Optional
+        Integer width = call.getInt("width", 0);
+        Integer height = call.getInt("height", 0);
+        // Score the sharpness of every shot - Optional
+        Boolean scoreSharpness = call.getBoolean("scoreSharpness", false);
+        fragment.takeBurst(count, Math.max(0, intervalMs), width, height, quality, scoreSharpness);
+    }
+
+    @PluginMethod
+    public void captureBest(PluginCall call) {
+        if (this.hasCamera(call) == false) {
+            call.reject("Camera is not running");
+            return;
+        }
 
+        Integer windowMs = call.getInt("windowMs", 1000);
+        if (windowMs < 0) {
+            call.reject("windowMs must not be negative");
+            return;
+        }
         Integer quality = call.getInt("quality", 85);
-        fragment.takeSnapshot(quality);
+        CaptureOptions options = new CaptureOptions(0, 0, quality);
+        // Byte budget - Optional
+        options.maxBytes = Math.max(0, call.getInt("maxBytes", 0));
+        // Crop to the visible part of the preview - Optional
+        options.cropToPreview = call.getBoolean("cropToPreview", false);
+        // Output format - Optional
+        options.format = call.getString("format", PictureEncoder.FORMAT_JPEG);
+        if (!PictureEncoder.isSupportedFormat(options.format)) {
+            call.reject("Format not recognised: " + options.format);
+            return;
+        }
+
+        // rejected before the call is saved, the call in progress keeps bestCallbackId
+        if (fragment.isBestFrameInProgress()) {
+            call.reject("A best frame capture is in progress");
+            return;
+        }
+
+        bridge.saveCall(call);
+        bestCallbackId = call.getCallbackId();
+        fragment.takeBestFrame(options, windowMs);
     }
 
     @PluginMethod
@@ -258,14 +417,13 @@ public class CameraPreview extends Plugin implements CameraActivity.CameraPrevie
             return;
         }
 
-        final String filename = "videoTmp";
-        VIDEO_FILE_PATH = getActivity().getCacheDir().toString() + "/";
-
         final String position = call.getString("position", "front");
-        final Integer width = call.getInt("width", 0);
-        final Integer height = call.getInt("height", 0);
         final Boolean withFlash = call.getBoolean("withFlash", false);
         final Integer maxDuration = call.getInt("maxDuration", 0);
+        final RecordOptions options = recordOptions(call);
+        if (options == null) {
+            return;
+        }
 
         // Save call so we resolve in callbacks later
         bridge.saveCall(call);
@@ -279,15 +437,8 @@ public class CameraPreview extends Plugin implements CameraActivity.CameraPrevie
                     public void run() {
                         // NOTE: keep your same call to fragment.startRecord()
                         // including audio. We are NOT stripping audio now.
-                        fragment.startRecord(
-                            getFilePath(filename),
-                            position,
-                            width,
-                            height,
-                            70,           // quality or bitrate param you had
-                            withFlash,
-                            maxDuration
-                        );
+                        // the fragment picks the file, the armed recorder already has one
+                        fragment.startRecord(null, position, withFlash, maxDuration, options);
                     }
                 }
             );
@@ -296,6 +447,111 @@ public class CameraPreview extends Plugin implements CameraActivity.CameraPrevie
         call.resolve();
     }
 
+    /**
+     * Returns the recording options of call, or null after rejecting it when an option is not recognised.
+     */
+    private RecordOptions recordOptions(PluginCall call) {
+        final Integer width = call.getInt("width", 0);
+        final Integer height = call.getInt("height", 0);
+        // quality or bitrate param you had
+        RecordOptions options = new RecordOptions(width, height, 70);
+        options.fastStart = call.getBoolean("fastStart", false);
+        options.segmentSeconds = Math.max(0, call.getInt("segmentSeconds", 0));
+        options.segmentMaxBytes = Math.max(0, call.getInt("segmentMaxBytes", 0));
+        // Video size and bitrate overrides - Optional
+        options.videoBitrate = Math.max(0, call.getInt("videoBitrate", 0));
+        options.frameRate = Math.max(0, call.getInt("frameRate", 0));
+        options.bitsPerPixel = Math.max(0, call.getDouble("bitsPerPixel", 0.0));
+        options.maxBytesPerMinute = Math.max(0, call.getInt("maxBytesPerMinute", 0));
+        // Time-lapse and low frame rate - Optional
+        options.timeLapseFps = Math.max(0, call.getDouble("timeLapseFps", 0.0));
+        options.maxPreviewFps = Math.max(0, call.getInt("maxPreviewFps", 0));
+        // Recording engine - Optional
+        options.engine = call.getString("engine", RecordOptions.ENGINE_MEDIA_RECORDER);
+        if (!RecordOptions.isSupportedEngine(options.engine)) {
+            call.reject("Engine not recognised: " + options.engine);
+            return null;
+        }
+        options.keyFrameInterval = Math.max(1, call.getInt("keyFrameInterval", 1));
+        String bitrateMode = call.getString("bitrateMode");
+        if (bitrateMode != null && !PreviewEncoder.isSupportedBitrateMode(bitrateMode)) {
+            call.reject("Bitrate mode not recognised: " + bitrateMode);
+            return null;
+        }
+        options.bitrateMode = PreviewEncoder.bitrateMode(bitrateMode);
+        options.maxPendingFrames = Math.max(1, call.getInt("maxPendingFrames", 3));
+        options.dropPolicy = call.getString("dropPolicy", CodecRecorder.DROP_OLDEST);
+        if (!CodecRecorder.isSupportedDropPolicy(options.dropPolicy)) {
+            call.reject("Drop policy not recognised: " + options.dropPolicy);
+            return null;
+        }
+        return options;
+    }
+
+    @PluginMethod
+    public void cancelVideoProcessing(PluginCall call) {
+        getVideoPostProcessor().cancel();
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void armRecorder(final PluginCall call) {
+        if (this.hasCamera(call) == false) {
+            call.reject("Camera is not running");
+            return;
+        }
+        if (!PermissionState.GRANTED.equals(getPermissionState(AUDIO_PERMISSION_ALIAS))) {
+            call.reject("Permission failed: mic not granted.");
+            return;
+        }
+
+        final Boolean withFlash = call.getBoolean("withFlash", false);
+        final Integer maxDuration = call.getInt("maxDuration", 0);
+        final RecordOptions options = recordOptions(call);
+        if (options == null) {
+            return;
+        }
+        if (options.usesMediaCodec()) {
+            call.reject("armRecorder only applies to the mediarecorder engine");
+            return;
+        }
+        bridge
+            .getActivity()
+            .runOnUiThread(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            fragment.armRecorder(withFlash, maxDuration, options);
+                            call.resolve();
+                        } catch (IOException | RuntimeException e) {
+                            call.reject("Failed to arm the recorder: " + e.getMessage());
+                        }
+                    }
+                }
+            );
+    }
+
+    @PluginMethod
+    public void disarmRecorder(final PluginCall call) {
+        if (this.hasView(call) == false) {
+            call.reject("Camera is not running");
+            return;
+        }
+
+        bridge
+            .getActivity()
+            .runOnUiThread(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        fragment.disarmRecorder(true);
+                        call.resolve();
+                    }
+                }
+            );
+    }
+
     @PluginMethod
     public void stopRecordVideo(PluginCall call) {
         if (this.hasCamera(call) == false) {
@@ -305,18 +561,435 @@ public class CameraPreview extends Plugin implements CameraActivity.CameraPrevie
 
         System.out.println("stopRecordVideo - Callbackid=" + call.getCallbackId());
 
+        // Poster frame and metadata extracted once the file is complete - Optional
+        VideoPostProcessor.Options options = new VideoPostProcessor.Options();
+        options.metadata = call.getBoolean("metadata", false);
+        options.poster = call.getBoolean("poster", false);
+        options.posterTimeMs = Math.max(0, call.getInt("posterTimeMs", 0));
+        options.posterQuality = Math.min(100, Math.max(0, call.getInt("posterQuality", 85)));
+        options.posterMaxDimension = Math.max(0, call.getInt("posterMaxDimension", 0));
+        stopRecordOptions = options;
+
         bridge.saveCall(call);
         recordCallbackId = call.getCallbackId();
 
-        // bridge.getActivity().runOnUiThread(new Runnable() {
-        //     @Override
-        //     public void run() {
-        //         fragment.stopRecord();
-        //     }
-        // });
+        // the recorder and the recording state are only touched from the main thread
+        bridge
+            .getActivity()
+            .runOnUiThread(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        if (fragment == null) {
+                            onStopRecordVideoError("Camera is not running");
+                            return;
+                        }
+                        fragment.stopRecord();
+                    }
+                }
+            );
+    }
+
+    @PluginMethod
+    public void getWriteStats(PluginCall call) {
+        if (this.hasView(call) == false) {
+            call.reject("Camera is not running");
+            return;
+        }
+
+        FileSink.Stats stats = fragment.getWriteStats();
+        JSObject ret = new JSObject();
+        ret.put("filesWritten", stats.filesWritten);
+        ret.put("bytesWritten", stats.bytesWritten);
+        ret.put("writeTimeMs", stats.writeTimeMs);
+        ret.put("bytesPerSecond", stats.bytesPerSecond());
+        ret.put("queueDepth", stats.queueDepth);
+        ret.put("maxQueueDepth", stats.maxQueueDepth);
+        call.resolve(ret);
+    }
+
+    @PluginMethod
+    public void getRecordingStats(PluginCall call) {
+        if (this.hasView(call) == false) {
+            call.reject("Camera is not running");
+            return;
+        }
+
+        CodecRecorder.Stats stats = fragment.getRecordingStats();
+        if (stats == null) {
+            call.reject("No recording with the mediacodec engine");
+            return;
+        }
+        JSObject ret = new JSObject();
+        ret.put("framesReceived", stats.framesReceived);
+        ret.put("framesEncoded", stats.framesEncoded);
+        ret.put("framesDropped", stats.framesDropped);
+        ret.put("bytesWritten", stats.bytesWritten);
+        ret.put("encodeTimeMs", stats.encodeTimeMs);
+        ret.put("elapsedMs", stats.elapsedMs);
+        ret.put("encodeFramesPerSecond", stats.encodeFramesPerSecond());
+        ret.put("queueDepth", stats.queueDepth);
+        ret.put("maxQueueDepth", stats.maxQueueDepth);
+        call.resolve(ret);
+    }
+
+    @PluginMethod
+    public void clearDuplicates(PluginCall call) {
+        getDuplicateIndex().clear();
+        getFrameDuplicateIndex().clear();
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void getFrameProcessorStats(PluginCall call) {
+        JSArray processors = new JSArray();
+        for (FrameProcessorHost.Stats stats : getFrameProcessorHost().getStats()) {
+            JSObject processor = new JSObject();
+            processor.put("name", stats.processor);
+            processor.put("maxFps", stats.maxFps);
+            processor.put("framesProcessed", stats.framesProcessed);
+            processor.put("framesSkippedBusy", stats.framesSkippedBusy);
+            processor.put("framesSkippedRate", stats.framesSkippedRate);
+            processor.put("errors", stats.errors);
+            processor.put("averageProcessMs", stats.averageProcessMs());
+            processor.put("maxProcessMs", stats.maxProcessMs);
+            processor.put("lastProcessMs", stats.lastProcessMs);
+            processor.put("averageLatencyMs", stats.averageLatencyMs);
+            processor.put("resultsPublished", stats.resultsPublished);
+            processor.put("resultsCoalesced", stats.resultsCoalesced);
+            processors.put(processor);
+        }
+        JSObject ret = new JSObject();
+        ret.put("processors", processors);
+        call.resolve(ret);
+    }
+
+    @PluginMethod
+    public void startScan(PluginCall call) {
+        if (rejectWithoutFrameProcessing(call)) {
+            return;
+        }
+
+        BarcodeScanner.Options options = new BarcodeScanner.Options();
+        JSArray formats = call.getArray("formats");
+        if (formats != null && formats.length() > 0) {
+            options.formats = new ArrayList<>();
+            for (int i = 0; i < formats.length(); i++) {
+                String name = formats.optString(i);
+                BarcodeFormat format = BarcodeScanner.format(name);
+                if (format == null) {
+                    call.reject("Barcode format not recognised: " + name);
+                    return;
+                }
+                options.formats.add(format);
+            }
+        }
+        JSObject region = call.getObject("regionOfInterest");
+        if (region != null) {
+            options.roiX = (float) region.optDouble("x", 0);
+            options.roiY = (float) region.optDouble("y", 0);
+            options.roiWidth = (float) region.optDouble("width", 1);
+            options.roiHeight = (float) region.optDouble("height", 1);
+        }
+        options.maxFps = Math.max(0, call.getInt("maxFps", options.maxFps));
+        options.dedupeMs = Math.max(0, call.getInt("dedupeMs", (int) options.dedupeMs));
+        options.tryHarder = call.getBoolean("tryHarder", false);
+
+        synchronized (this) {
+            if (barcodeScanner != null) {
+                getFrameProcessorHost().remove(barcodeScanner);
+            }
+            barcodeScanner = new BarcodeScanner(options, this);
+            getFrameProcessorHost().add(barcodeScanner);
+        }
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void stopScan(PluginCall call) {
+        synchronized (this) {
+            if (barcodeScanner != null) {
+                getFrameProcessorHost().remove(barcodeScanner);
+            }
+        }
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void getScanStats(PluginCall call) {
+        BarcodeScanner scanner;
+        FrameProcessorHost.Stats frames;
+        synchronized (this) {
+            scanner = barcodeScanner;
+            frames = scanner != null ? getFrameProcessorHost().getStats(scanner) : null;
+        }
+        if (scanner == null) {
+            call.reject("No scan started");
+            return;
+        }
+
+        BarcodeScanner.Stats stats = scanner.getStats();
+        JSObject ret = new JSObject();
+        ret.put("scanning", frames != null);
+        ret.put("framesDecoded", stats.framesDecoded);
+        ret.put("decodesPerSecond", stats.decodesPerSecond());
+        ret.put("averageDecodeMs", stats.averageDecodeMs());
+        ret.put("codesDecoded", stats.codesDecoded);
+        ret.put("codesReported", stats.codesReported);
+        ret.put("duplicatesSuppressed", stats.duplicatesSuppressed);
+        ret.put("framesSkippedBusy", frames != null ? frames.framesSkippedBusy : 0);
+        ret.put("framesSkippedRate", frames != null ? frames.framesSkippedRate : 0);
+        call.resolve(ret);
+    }
+
+    @PluginMethod
+    public void startFrameStats(PluginCall call) {
+        if (rejectWithoutFrameProcessing(call)) {
+            return;
+        }
+
+        LumaStats.Options options = new LumaStats.Options();
+        options.maxFps = Math.max(0, call.getInt("maxFps", options.maxFps));
+        options.step = Math.max(1, call.getInt("subsample", options.step));
+        options.eventIntervalMs = Math.max(0, call.getInt("eventIntervalMs", (int) options.eventIntervalMs));
+        options.shadowClip = call.getInt("shadowClip", options.shadowClip);
+        options.highlightClip = call.getInt("highlightClip", options.highlightClip);
+
+        synchronized (this) {
+            if (lumaStats != null) {
+                getFrameProcessorHost().remove(lumaStats);
+            }
+            lumaStats = new LumaStats(options, this);
+            getFrameProcessorHost().add(lumaStats);
+        }
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void stopFrameStats(PluginCall call) {
+        synchronized (this) {
+            if (lumaStats != null) {
+                getFrameProcessorHost().remove(lumaStats);
+            }
+        }
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void getFrameStats(PluginCall call) {
+        LumaStats stats;
+        synchronized (this) {
+            stats = lumaStats;
+        }
+        LumaStats.Snapshot snapshot = stats != null ? stats.getSnapshot() : null;
+        if (snapshot == null) {
+            call.reject("No frame stats yet");
+            return;
+        }
+        call.resolve(frameStatsObject(snapshot));
+    }
+
+    @PluginMethod
+    public void startMotionDetection(PluginCall call) {
+        if (rejectWithoutFrameProcessing(call)) {
+            return;
+        }
+
+        MotionDetector.Options options = new MotionDetector.Options();
+        options.maxFps = Math.max(0, call.getInt("maxFps", options.maxFps));
+        options.analysisWidth = Math.max(8, call.getInt("analysisWidth", options.analysisWidth));
+        options.pixelThreshold = Math.max(0, call.getInt("pixelThreshold", options.pixelThreshold));
+        options.motionThreshold = Math.max(0, call.getDouble("motionThreshold", options.motionThreshold));
+        options.holdMs = Math.max(0, call.getInt("holdMs", (int) options.holdMs));
+        // Take a picture once the scene turns still - Optional
+        CaptureOptions captureOptions = null;
+        if (call.getBoolean("autoCapture", false)) {
+            captureOptions = new CaptureOptions(0, 0, call.getInt("autoCaptureQuality", 85));
+        }
 
-        fragment.stopRecord();
-        // call.resolve();
+        synchronized (this) {
+            if (motionDetector != null) {
+                getFrameProcessorHost().remove(motionDetector);
+            }
+            autoCaptureOptions = captureOptions;
+            motionDetector = new MotionDetector(options, this);
+            getFrameProcessorHost().add(motionDetector);
+        }
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void stopMotionDetection(PluginCall call) {
+        synchronized (this) {
+            if (motionDetector != null) {
+                getFrameProcessorHost().remove(motionDetector);
+            }
+            autoCaptureOptions = null;
+        }
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void getMotionStats(PluginCall call) {
+        MotionDetector detector;
+        synchronized (this) {
+            detector = motionDetector;
+        }
+        if (detector == null) {
+            call.reject("No motion detection started");
+            return;
+        }
+
+        MotionDetector.Stats stats = detector.getStats();
+        JSObject ret = new JSObject();
+        ret.put("moving", stats.moving);
+        ret.put("score", stats.lastScore);
+        ret.put("framesAnalyzed", stats.framesAnalyzed);
+        ret.put("transitions", stats.transitions);
+        ret.put("averageAnalyzeMs", stats.averageAnalyzeMs);
+        ret.put("lastLatencyMs", stats.lastLatencyMs);
+        ret.put("maxLatencyMs", stats.maxLatencyMs);
+        call.resolve(ret);
+    }
+
+    /**
+     * Registers processor to run on the preview frames when the camera is started with enableFrameProcessing. Can be
+     * called before or while the camera is running.
+     */
+    public void addFrameProcessor(FrameProcessor processor) {
+        getFrameProcessorHost().add(processor);
+    }
+
+    public void removeFrameProcessor(FrameProcessor processor) {
+        getFrameProcessorHost().remove(processor);
+    }
+
+    @PluginMethod
+    public void listCaptures(PluginCall call) {
+        CaptureStore store = getCaptureStore();
+        JSArray captures = new JSArray();
+        for (CaptureStore.Entry entry : store.list()) {
+            JSObject capture = new JSObject();
+            capture.put("path", entry.path);
+            capture.put("size", entry.size);
+            capture.put("createdAt", entry.createdAt);
+            capture.put("lastAccessedAt", entry.lastAccessedAt);
+            capture.put("pinned", entry.pinned);
+            captures.put(capture);
+        }
+
+        JSObject ret = new JSObject();
+        ret.put("captures", captures);
+        ret.put("totalBytes", store.getTotalBytes());
+        call.resolve(ret);
+    }
+
+    @PluginMethod
+    public void pinCapture(PluginCall call) {
+        String path = call.getString("path");
+        if (path == null || !getCaptureStore().pin(path, call.getBoolean("pinned", true))) {
+            call.reject("Capture not found: " + path);
+            return;
+        }
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void deleteCapture(PluginCall call) {
+        String path = call.getString("path");
+        if (path == null || !getCaptureStore().delete(path)) {
+            call.reject("Capture not found: " + path);
+            return;
+        }
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void readCaptureChunk(PluginCall call) {
+        String path = call.getString("path");
+        if (path == null || !getCaptureStore().touch(path)) {
+            call.reject("Capture not found: " + path);
+            return;
+        }
+
+        long offset = Math.max(0, call.getLong("offset", 0L));
+        int length = call.getInt("length", CaptureReader.DEFAULT_CHUNK_SIZE);
+        try {
+            CaptureReader.Chunk chunk = CaptureReader.readChunk(path, offset, length);
+            JSObject ret = new JSObject();
+            ret.put("data", Base64.encodeToString(chunk.data, Base64.NO_WRAP));
+            ret.put("offset", chunk.offset);
+            ret.put("length", chunk.data.length);
+            ret.put("size", chunk.size);
+            ret.put("eof", chunk.isEof());
+            call.resolve(ret);
+        } catch (IOException e) {
+            call.reject("Failed to read capture: " + e.getMessage());
+        }
+    }
+
+    @PluginMethod
+    public void streamCapture(PluginCall call) {
+        String path = call.getString("path");
+        if (path == null || !getCaptureStore().touch(path)) {
+            call.reject("Capture not found: " + path);
+            return;
+        }
+
+        long offset = Math.max(0, call.getLong("offset", 0L));
+        int chunkSize = call.getInt("chunkSize", CaptureReader.DEFAULT_CHUNK_SIZE);
+        int window = call.getInt("window", CaptureReader.DEFAULT_WINDOW);
+        try {
+            CaptureReader reader = getCaptureReader();
+            int streamId = reader.open(path, offset, chunkSize, window);
+            JSObject ret = new JSObject();
+            ret.put("streamId", streamId);
+            call.resolve(ret);
+            // the stream id reaches JS before the first chunk
+            reader.start(streamId);
+        } catch (IOException e) {
+            call.reject("Failed to open capture: " + e.getMessage());
+        }
+    }
+
+    @PluginMethod
+    public void ackCaptureChunk(PluginCall call) {
+        Integer streamId = call.getInt("streamId");
+        if (streamId == null) {
+            call.reject("streamId is required");
+            return;
+        }
+        getCaptureReader().ack(streamId);
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void cancelCaptureStream(PluginCall call) {
+        Integer streamId = call.getInt("streamId");
+        if (streamId == null) {
+            call.reject("streamId is required");
+            return;
+        }
+        getCaptureReader().cancel(streamId);
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void saveReplay(final PluginCall call) {
+        if (this.hasCamera(call) == false) {
+            call.reject("Camera is not running");
+            return;
+        }
+
+        final Integer seconds = call.getInt("seconds", 10);
+        if (seconds < 1) {
+            call.reject("seconds must be greater than 0");
+            return;
+        }
+
+        bridge.saveCall(call);
+        replayCallbackId = call.getCallbackId();
+        fragment.saveReplay(seconds);
     }
 
     @PluginMethod
@@ -364,6 +1037,24 @@ public class CameraPreview extends Plugin implements CameraActivity.CameraPrevie
         final Boolean enableZoom = call.getBoolean("enableZoom", false);
         final Boolean disableExifHeaderStripping = call.getBoolean("disableExifHeaderStripping", true);
         final Boolean lockOrientation = call.getBoolean("lockAndroidOrientation", false);
+        final Boolean zeroShutterLag = call.getBoolean("zeroShutterLag", false);
+        final Integer zeroShutterLagFrames = call.getInt("zeroShutterLagFrames", 4);
+        final Boolean enableFrameCache = call.getBoolean("enableFrameCache", false);
+        final Integer captureCacheMaxBytes = call.getInt("captureCacheMaxBytes", 0);
+        final Integer captureCacheMaxEntries = call.getInt("captureCacheMaxEntries", 0);
+        final Boolean writeBehind = call.getBoolean("writeBehind", false);
+        final String fileSyncPolicy = call.getString("fileSyncPolicy", FileSink.SYNC_NONE);
+        final Boolean instantReplay = call.getBoolean("instantReplay", false);
+        final Integer replayMaxBytes = call.getInt("replayMaxBytes", 0);
+        final Integer replayBitrate = call.getInt("replayBitrate", 0);
+        final Boolean enableFrameProcessing = call.getBoolean("enableFrameProcessing", false);
+        final Boolean detectDuplicates = call.getBoolean("detectDuplicates", false);
+        final Integer duplicateThreshold = call.getInt("duplicateThreshold", DuplicateIndex.DEFAULT_THRESHOLD);
+        final Boolean dropDuplicates = call.getBoolean("dropDuplicates", false);
+        if (!FileSink.isSupportedSyncPolicy(fileSyncPolicy)) {
+            call.reject("File sync policy not recognised: " + fileSyncPolicy);
+            return;
+        }
         previousOrientationRequest = getBridge().getActivity().getRequestedOrientation();
 
         fragment = new CameraActivity();
@@ -377,6 +1068,21 @@ public class CameraPreview extends Plugin implements CameraActivity.CameraPrevie
         fragment.toBack = toBack;
         fragment.enableOpacity = enableOpacity;
         fragment.enableZoom = enableZoom;
+        fragment.zeroShutterLag = zeroShutterLag;
+        fragment.zeroShutterLagFrames = zeroShutterLagFrames;
+        fragment.enableFrameCache = enableFrameCache;
+        getCaptureStore().setLimits(captureCacheMaxBytes, captureCacheMaxEntries);
+        fragment.captureStore = getCaptureStore();
+        fragment.writeBehind = writeBehind;
+        fragment.fileSyncPolicy = fileSyncPolicy;
+        fragment.instantReplay = instantReplay;
+        fragment.replayMaxBytes = replayMaxBytes > 0 ? replayMaxBytes : ReplayBuffer.DEFAULT_MAX_BYTES;
+        fragment.replayBitrate = Math.max(0, replayBitrate);
+        fragment.frameProcessorHost = enableFrameProcessing ? getFrameProcessorHost() : null;
+        fragment.duplicateIndex = detectDuplicates ? getDuplicateIndex() : null;
+        fragment.frameDuplicateIndex = detectDuplicates ? getFrameDuplicateIndex() : null;
+        fragment.duplicateThreshold = Math.max(0, Math.min(64, duplicateThreshold));
+        fragment.dropDuplicates = dropDuplicates;
 
         bridge
             .getActivity()
@@ -453,22 +1159,230 @@ public class CameraPreview extends Plugin implements CameraActivity.CameraPrevie
     }
 
     @Override
-    public void onPictureTaken(String originalPicture) {
+    protected void handleOnDestroy() {
+        super.handleOnDestroy();
+        synchronized (this) {
+            if (captureReader != null) {
+                captureReader.shutdown();
+                captureReader = null;
+            }
+            if (videoPostProcessor != null) {
+                videoPostProcessor.shutdown();
+                videoPostProcessor = null;
+            }
+            if (frameProcessorHost != null) {
+                frameProcessorHost.shutdown();
+                frameProcessorHost = null;
+            }
+            if (captureStore != null) {
+                captureStore.flush();
+            }
+        }
+    }
+
+    @Override
+    public void onCaptureWritten(String path, long bytes, String error) {
         JSObject jsObject = new JSObject();
-        jsObject.put("value", originalPicture);
-        bridge.getSavedCall(captureCallbackId).resolve(jsObject);
+        jsObject.put("path", path);
+        jsObject.put("bytes", bytes);
+        if (error != null) {
+            jsObject.put("error", error);
+        }
+        notifyListeners("captureWritten", jsObject);
     }
 
     @Override
-    public void onPictureTakenError(String message) {
-        bridge.getSavedCall(captureCallbackId).reject(message);
+    public void onRecordVideoStopped(String file) {
+        getCaptureStore().commit(file);
+        JSObject jsObject = new JSObject();
+        jsObject.put("videoFilePath", file);
+        notifyListeners("recordStopped", jsObject);
+    }
+
+    @Override
+    public void onVideoSegment(int index, String file, boolean last) {
+        getCaptureStore().commit(file);
+        JSObject jsObject = new JSObject();
+        jsObject.put("index", index);
+        jsObject.put("videoFilePath", file);
+        jsObject.put("last", last);
+        notifyListeners("videoSegment", jsObject);
     }
 
     @Override
-    public void onSnapshotTaken(String originalPicture) {
+    public void onReplaySaved(String file, long durationMs, long bytes) {
+        getCaptureStore().commit(file);
+        PluginCall pluginCall = bridge.getSavedCall(replayCallbackId);
         JSObject jsObject = new JSObject();
-        jsObject.put("value", originalPicture);
-        bridge.getSavedCall(snapshotCallbackId).resolve(jsObject);
+        jsObject.put("videoFilePath", file);
+        jsObject.put("durationMs", durationMs);
+        jsObject.put("bytes", bytes);
+        pluginCall.resolve(jsObject);
+    }
+
+    @Override
+    public void onReplayError(String message) {
+        bridge.getSavedCall(replayCallbackId).reject(message);
+    }
+
+    @Override
+    public void onBarcode(String text, String format, long timestampMs) {
+        JSObject jsObject = new JSObject();
+        jsObject.put("text", text);
+        jsObject.put("format", format);
+        jsObject.put("timestampMs", timestampMs);
+        notifyListeners("barcodeScanned", jsObject);
+    }
+
+    @Override
+    public void onMotion(boolean moving, double score, long timestampMs, double latencyMs) {
+        JSObject jsObject = new JSObject();
+        jsObject.put("state", moving ? "moving" : "still");
+        jsObject.put("score", score);
+        jsObject.put("timestampMs", timestampMs);
+        jsObject.put("latencyMs", latencyMs);
+        notifyListeners("motion", jsObject);
+
+        final CaptureOptions options = autoCaptureOptions;
+        if (moving || options == null || !captureOwner.compareAndSet(CaptureOwner.NONE, CaptureOwner.AUTO)) {
+            return;
+        }
+        bridge
+            .getActivity()
+            .runOnUiThread(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        if (fragment == null || fragment.getCamera() == null) {
+                            captureOwner.compareAndSet(CaptureOwner.AUTO, CaptureOwner.NONE);
+                            return;
+                        }
+                        fragment.takePicture(options);
+                    }
+                }
+            );
+    }
+
+    @Override
+    public void onFrameStats(LumaStats.Snapshot snapshot) {
+        notifyListeners("frameStats", frameStatsObject(snapshot));
+    }
+
+    private JSObject frameStatsObject(LumaStats.Snapshot snapshot) {
+        JSArray histogram = new JSArray();
+        for (int count : snapshot.histogram) {
+            histogram.put(count);
+        }
+        JSObject jsObject = new JSObject();
+        jsObject.put("histogram", histogram);
+        jsObject.put("samples", snapshot.samples);
+        jsObject.put("mean", snapshot.mean);
+        jsObject.put("contrast", snapshot.contrast);
+        jsObject.put("shadowRatio", snapshot.shadowRatio);
+        jsObject.put("highlightRatio", snapshot.highlightRatio);
+        jsObject.put("timestampMs", snapshot.timestampMs);
+        jsObject.put("computeMs", snapshot.computeMs);
+        return jsObject;
+    }
+
+    @Override
+    public void onResults(List<FrameProcessorHost.Result> results) {
+        JSArray array = new JSArray();
+        for (FrameProcessorHost.Result result : results) {
+            JSObject jsResult = new JSObject();
+            jsResult.put("processor", result.processor);
+            jsResult.put("timestampMs", result.timestampMs);
+            jsResult.put("result", result.data);
+            array.put(jsResult);
+        }
+        JSObject jsObject = new JSObject();
+        jsObject.put("results", array);
+        notifyListeners("frameProcessorResults", jsObject);
+    }
+
+    @Override
+    public void onChunk(int streamId, long offset, byte[] data, boolean eof) {
+        JSObject jsObject = new JSObject();
+        jsObject.put("streamId", streamId);
+        jsObject.put("offset", offset);
+        jsObject.put("data", Base64.encodeToString(data, Base64.NO_WRAP));
+        jsObject.put("eof", eof);
+        notifyListeners("captureChunk", jsObject);
+    }
+
+    @Override
+    public void onStreamError(int streamId, String message) {
+        JSObject jsObject = new JSObject();
+        jsObject.put("streamId", streamId);
+        jsObject.put("message", message);
+        notifyListeners("captureStreamError", jsObject);
+    }
+
+    @Override
+    public void onPictureTaken(CaptureResult result) {
+        CaptureOwner owner = captureOwner.getAndSet(CaptureOwner.NONE);
+        if (owner == CaptureOwner.AUTO) {
+            notifyListeners("autoCapture", toJSObject(result));
+            return;
+        }
+        PluginCall pluginCall = bridge.getSavedCall(captureCallbackId);
+        if (owner == CaptureOwner.CALL && pluginCall != null) {
+            pluginCall.resolve(toJSObject(result));
+        }
+    }
+
+    private JSObject toJSObject(CaptureResult result) {
+        JSObject jsObject = new JSObject();
+        jsObject.put("value", result.value);
+        jsObject.put("format", result.format);
+        if (!result.renditions.isEmpty()) {
+            JSONArray renditions = new JSONArray();
+            for (CaptureResult.Rendition rendition : result.renditions) {
+                JSObject jsRendition = new JSObject();
+                jsRendition.put("width", rendition.width);
+                jsRendition.put("height", rendition.height);
+                jsRendition.put("format", rendition.format);
+                jsRendition.put("value", rendition.value);
+                renditions.put(jsRendition);
+            }
+            jsObject.put("renditions", renditions);
+        }
+        if (result.encodeIterations > 0) {
+            jsObject.put("encodeIterations", result.encodeIterations);
+        }
+        if (result.sharpness >= 0) {
+            jsObject.put("sharpness", result.sharpness);
+        }
+        DuplicateIndex.Match match = result.duplicateMatch;
+        if (match != null) {
+            jsObject.put("hash", PerceptualHash.toHex(match.hash));
+            jsObject.put("duplicate", match.duplicate);
+            jsObject.put("dropped", match.dropped);
+            if (match.distance >= 0) {
+                jsObject.put("hashDistance", match.distance);
+            }
+        }
+        return jsObject;
+    }
+
+    @Override
+    public void onPictureTakenError(String message) {
+        CaptureOwner owner = captureOwner.getAndSet(CaptureOwner.NONE);
+        if (owner == CaptureOwner.AUTO) {
+            JSObject jsObject = new JSObject();
+            jsObject.put("error", message);
+            notifyListeners("autoCapture", jsObject);
+            return;
+        }
+        PluginCall pluginCall = bridge.getSavedCall(captureCallbackId);
+        if (owner == CaptureOwner.CALL && pluginCall != null) {
+            pluginCall.reject(message);
+        }
+    }
+
+    @Override
+    public void onSnapshotTaken(CaptureResult result) {
+        bridge.getSavedCall(snapshotCallbackId).resolve(toJSObject(result));
     }
 
     @Override
@@ -493,7 +1407,13 @@ public class CameraPreview extends Plugin implements CameraActivity.CameraPrevie
     }
 
     @Override
-    public void onStartRecordVideo() {}
+    public void onStartRecordVideo(boolean armed, long startLatencyMs, long armedForMs) {
+        JSObject jsObject = new JSObject();
+        jsObject.put("armed", armed);
+        jsObject.put("startLatencyMs", startLatencyMs);
+        jsObject.put("armedForMs", armedForMs);
+        notifyListeners("recordStarted", jsObject);
+    }
 
     @Override
     public void onStartRecordVideoError(String message) {
@@ -502,10 +1422,55 @@ public class CameraPreview extends Plugin implements CameraActivity.CameraPrevie
 
     @Override
     public void onStopRecordVideo(String file) {
-        PluginCall pluginCall = bridge.getSavedCall(recordCallbackId);
-        JSObject jsObject = new JSObject();
-        jsObject.put("videoFilePath", file);
-        pluginCall.resolve(jsObject);
+        getCaptureStore().commit(file);
+        final PluginCall pluginCall = bridge.getSavedCall(recordCallbackId);
+        VideoPostProcessor.Options options = stopRecordOptions;
+        stopRecordOptions = new VideoPostProcessor.Options();
+        if (!options.isEnabled()) {
+            JSObject jsObject = new JSObject();
+            jsObject.put("videoFilePath", file);
+            pluginCall.resolve(jsObject);
+            return;
+        }
+
+        // the call is kept here, the next recording replaces recordCallbackId
+        getVideoPostProcessor()
+            .process(
+                file,
+                options,
+                new VideoPostProcessor.PathAllocator() {
+                    @Override
+                    public String allocate(String extension) {
+                        return getCaptureStore().allocate("cpcp_poster", extension);
+                    }
+                },
+                new VideoPostProcessor.Callback() {
+                    @Override
+                    public void onProcessed(VideoPostProcessor.VideoInfo info) {
+                        JSObject jsObject = new JSObject();
+                        jsObject.put("videoFilePath", info.path);
+                        if (info.durationMs >= 0) {
+                            jsObject.put("durationMs", info.durationMs);
+                        }
+                        if (info.width >= 0 && info.height >= 0) {
+                            jsObject.put("width", info.width);
+                            jsObject.put("height", info.height);
+                            jsObject.put("rotation", info.rotation);
+                        }
+                        if (info.bitrate >= 0) {
+                            jsObject.put("bitrate", info.bitrate);
+                        }
+                        if (info.posterPath != null) {
+                            getCaptureStore().commit(info.posterPath);
+                            jsObject.put("posterFilePath", info.posterPath);
+                        }
+                        if (info.cancelled) {
+                            jsObject.put("cancelled", true);
+                        }
+                        pluginCall.resolve(jsObject);
+                    }
+                }
+            );
     }
 
     @Override
@@ -513,6 +1478,70 @@ public class CameraPreview extends Plugin implements CameraActivity.CameraPrevie
         bridge.getSavedCall(recordCallbackId).reject(error);
     }
 
+    @Override
+    public void onBurstPictureTaken(int index, String picture, double sharpness) {
+        JSObject jsObject = new JSObject();
+        jsObject.put("index", index);
+        jsObject.put("value", picture);
+        if (sharpness >= 0) {
+            jsObject.put("sharpness", sharpness);
+        }
+        notifyListeners("burstPictureTaken", jsObject);
+    }
+
+    @Override
+    public void onBurstFinished(int count, long elapsedMs, double shotsPerSecond, int sharpestIndex) {
+        PluginCall pluginCall = bridge.getSavedCall(burstCallbackId);
+        if (pluginCall == null) {
+            return;
+        }
+
+        JSObject jsObject = new JSObject();
+        jsObject.put("count", count);
+        jsObject.put("elapsedMs", elapsedMs);
+        jsObject.put("shotsPerSecond", shotsPerSecond);
+        if (sharpestIndex >= 0) {
+            jsObject.put("sharpestIndex", sharpestIndex);
+        }
+        pluginCall.resolve(jsObject);
+        bridge.releaseCall(pluginCall);
+    }
+
+    @Override
+    public void onBurstError(String message) {
+        PluginCall pluginCall = bridge.getSavedCall(burstCallbackId);
+        if (pluginCall == null) {
+            return;
+        }
+
+        pluginCall.reject(message);
+        bridge.releaseCall(pluginCall);
+    }
+
+    @Override
+    public void onBestFrameTaken(CaptureResult result, int framesScored) {
+        PluginCall pluginCall = bridge.getSavedCall(bestCallbackId);
+        if (pluginCall == null) {
+            return;
+        }
+
+        JSObject jsObject = toJSObject(result);
+        jsObject.put("framesScored", framesScored);
+        pluginCall.resolve(jsObject);
+        bridge.releaseCall(pluginCall);
+    }
+
+    @Override
+    public void onBestFrameError(String message) {
+        PluginCall pluginCall = bridge.getSavedCall(bestCallbackId);
+        if (pluginCall == null) {
+            return;
+        }
+
+        pluginCall.reject(message);
+        bridge.releaseCall(pluginCall);
+    }
+
     private boolean hasView(PluginCall call) {
         if (fragment == null) {
             return false;
@@ -533,18 +1562,72 @@ public class CameraPreview extends Plugin implements CameraActivity.CameraPrevie
         return true;
     }
 
-    private String getFilePath(String filename) {
-        String fileName = filename;
+    /**
+     * Rejects call when the camera is not running with enableFrameProcessing, returns whether it did.
+     */
+    private boolean rejectWithoutFrameProcessing(PluginCall call) {
+        if (this.hasCamera(call) == false) {
+            call.reject("Camera is not running");
+            return true;
+        }
+        if (fragment.frameProcessorHost == null) {
+            call.reject("Camera was not started with enableFrameProcessing");
+            return true;
+        }
+        return false;
+    }
 
-        int i = 1;
+    private synchronized CaptureReader getCaptureReader() {
+        if (captureReader == null) {
+            captureReader = new CaptureReader(this);
+        }
+        return captureReader;
+    }
 
-        while (new File(VIDEO_FILE_PATH + fileName + VIDEO_FILE_EXTENSION).exists()) {
-            // Add number suffix if file exists
-            fileName = filename + '_' + i;
-            i++;
+    private synchronized FrameProcessorHost getFrameProcessorHost() {
+        if (frameProcessorHost == null) {
+            frameProcessorHost = new FrameProcessorHost(this);
         }
+        return frameProcessorHost;
+    }
 
-        return VIDEO_FILE_PATH + fileName + VIDEO_FILE_EXTENSION;
+    private synchronized DuplicateIndex getDuplicateIndex() {
+        if (duplicateIndex == null) {
+            duplicateIndex = new DuplicateIndex(DuplicateIndex.DEFAULT_CAPACITY);
+        }
+        return duplicateIndex;
+    }
+
+    private synchronized DuplicateIndex getFrameDuplicateIndex() {
+        if (frameDuplicateIndex == null) {
+            frameDuplicateIndex = new DuplicateIndex(DuplicateIndex.DEFAULT_CAPACITY);
+        }
+        return frameDuplicateIndex;
+    }
+
+    private synchronized VideoPostProcessor getVideoPostProcessor() {
+        if (videoPostProcessor == null) {
+            videoPostProcessor = new VideoPostProcessor();
+        }
+        return videoPostProcessor;
+    }
+
+    private synchronized CaptureStore getCaptureStore() {
+        if (captureStore == null) {
+            captureStore = new CaptureStore(getActivity().getCacheDir());
+            captureStore.setRemovalListener(
+                new CaptureStore.RemovalListener() {
+                    @Override
+                    public void onRemoved(String path) {
+                        CaptureReader reader = captureReader;
+                        if (reader != null) {
+                            reader.closePath(path);
+                        }
+                    }
+                }
+            );
+        }
+        return captureStore;
     }
 
     private void setupBroadcast() {
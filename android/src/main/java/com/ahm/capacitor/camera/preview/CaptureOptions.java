@@ -0,0 +1,47 @@
+package com.ahm.capacitor.camera.preview;
+
+import android.graphics.RectF;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Options of a single capture() or captureSample() call. Snapshots ignore width, height and renditions.
+ */
+class CaptureOptions {
+
+    /**
+     * An extra output of a capture: the picture downscaled so its largest side is at most maxDimension (0 keeps the
+     * full size) and encoded with the given format and quality.
+     */
+    static class Rendition {
+
+        final int maxDimension;
+        final int quality;
+        final String format;
+
+        Rendition(int maxDimension, int quality, String format) {
+            this.maxDimension = Math.max(0, maxDimension);
+            this.quality = quality;
+            this.format = format;
+        }
+    }
+
+    final int width;
+    final int height;
+    final int quality;
+    final List<Rendition> renditions = new ArrayList<>();
+    // Maximum size in bytes of every encoded output, 0 for no limit
+    long maxBytes = 0;
+    // Output format of the picture, see PictureEncoder.FORMAT_*
+    String format = PictureEncoder.FORMAT_JPEG;
+    // Crop the picture to the part of the preview that is visible on screen
+    boolean cropToPreview = false;
+    // Visible region resolved by CameraActivity when cropToPreview is set, null when nothing is cropped
+    RectF cropRegion;
+
+    CaptureOptions(int width, int height, int quality) {
+        this.width = width;
+        this.height = height;
+        this.quality = quality;
+    }
+}
@@ -0,0 +1,292 @@
+package com.ahm.capacitor.camera.preview;
+
+import android.os.SystemClock;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads captures in bounded chunks with positional FileChannel reads, so a large video never has to be loaded at once.
+ * Streams push sequential chunks to a ChunkListener and keep at most window chunks unacknowledged: the next chunk is
+ * only read once the consumer acknowledged one, which bounds the memory held by chunks in flight.
+ *
+ * A stream that is neither acknowledged nor cancelled for IDLE_TIMEOUT_MS is closed with an error, as is a stream whose
+ * capture is removed from the store, so an abandoned consumer never keeps a file open.
+ */
+class CaptureReader {
+
+    static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+    static final int DEFAULT_WINDOW = 2;
+    static final long IDLE_TIMEOUT_MS = 60000;
+
+    interface ChunkListener {
+        void onChunk(int streamId, long offset, byte[] data, boolean eof);
+
+        void onStreamError(int streamId, String message);
+    }
+
+    static class Chunk {
+
+        final long offset;
+        final long size;
+        final byte[] data;
+
+        Chunk(long offset, long size, byte[] data) {
+            this.offset = offset;
+            this.size = size;
+            this.data = data;
+        }
+
+        boolean isEof() {
+            return offset + data.length >= size;
+        }
+    }
+
+    private class Stream {
+
+        final int id;
+        final String path;
+        final FileChannel channel;
+        final int chunkSize;
+        final int window;
+        long position;
+        int inFlight;
+        boolean done;
+        long lastActivityAt = SystemClock.elapsedRealtime();
+
+        Stream(int id, String path, FileChannel channel, long position, int chunkSize, int window) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.position = position;
+            this.chunkSize = chunkSize;
+            this.window = window;
+        }
+    }
+
+    private final ChunkListener listener;
+    // all stream state is only touched from this thread
+    private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+    private final Map<Integer, Stream> streams = new HashMap<>();
+    private int nextStreamId = 1;
+
+    CaptureReader(ChunkListener listener) {
+        this.listener = listener;
+    }
+
+    static int clampChunkSize(int length) {
+        if (length <= 0) {
+            return DEFAULT_CHUNK_SIZE;
+        }
+        return Math.min(length, MAX_CHUNK_SIZE);
+    }
+
+    /**
+     * Reads up to length bytes (capped at MAX_CHUNK_SIZE) starting at offset.
+     */
+    static Chunk readChunk(String path, long offset, int length) throws IOException {
+        FileInputStream in = new FileInputStream(path);
+        try {
+            FileChannel channel = in.getChannel();
+            return readChunk(channel, offset, clampChunkSize(length));
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Chunk readChunk(FileChannel channel, long offset, int length) throws IOException {
+        long size = channel.size();
+        int count = (int) Math.max(0, Math.min(length, size - offset));
+        ByteBuffer buffer = ByteBuffer.allocate(count);
+        while (buffer.hasRemaining()) {
+            // positional reads leave the channel position untouched
+            int read = channel.read(buffer, offset + buffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+        byte[] data = buffer.array();
+        if (buffer.position() < count) {
+            byte[] truncated = new byte[buffer.position()];
+            System.arraycopy(data, 0, truncated, 0, truncated.length);
+            data = truncated;
+        }
+        return new Chunk(offset, size, data);
+    }
+
+    /**
+     * Opens a stream from offset and returns its id. Chunks are delivered once the returned id has been handed out,
+     * by calling start.
+     */
+    synchronized int open(String path, long offset, int chunkSize, int window) throws IOException {
+        final FileChannel channel = new FileInputStream(path).getChannel();
+        final Stream stream = new Stream(
+            nextStreamId++,
+            path,
+            channel,
+            Math.max(0, offset),
+            clampChunkSize(chunkSize),
+            Math.max(1, window)
+        );
+        executor.execute(
+            new Runnable() {
+                @Override
+                public void run() {
+                    streams.put(stream.id, stream);
+                }
+            }
+        );
+        scheduleIdleCheck(stream.id, IDLE_TIMEOUT_MS);
+        return stream.id;
+    }
+
+    void start(final int streamId) {
+        executor.execute(
+            new Runnable() {
+                @Override
+                public void run() {
+                    pump(streamId);
+                }
+            }
+        );
+    }
+
+    /**
+     * Acknowledges a chunk of the stream, allowing the next one to be read.
+     */
+    void ack(final int streamId) {
+        executor.execute(
+            new Runnable() {
+                @Override
+                public void run() {
+                    Stream stream = streams.get(streamId);
+                    if (stream != null) {
+                        stream.lastActivityAt = SystemClock.elapsedRealtime();
+                        stream.inFlight = Math.max(0, stream.inFlight - 1);
+                        pump(streamId);
+                    }
+                }
+            }
+        );
+    }
+
+    void cancel(final int streamId) {
+        executor.execute(
+            new Runnable() {
+                @Override
+                public void run() {
+                    close(streams.get(streamId));
+                }
+            }
+        );
+    }
+
+    /**
+     * Closes the open streams of path with an error, e.g. when the capture was deleted or evicted.
+     */
+    void closePath(final String path) {
+        try {
+            executor.execute(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        for (Stream stream : streams.values().toArray(new Stream[0])) {
+                            if (stream.path.equals(path)) {
+                                listener.onStreamError(stream.id, "Capture removed: " + path);
+                                close(stream);
+                            }
+                        }
+                    }
+                }
+            );
+        } catch (RejectedExecutionException e) {
+            // shut down, every stream is closed already
+        }
+    }
+
+    void shutdown() {
+        executor.execute(
+            new Runnable() {
+                @Override
+                public void run() {
+                    for (Stream stream : streams.values().toArray(new Stream[0])) {
+                        close(stream);
+                    }
+                }
+            }
+        );
+        // pending idle checks would only find closed streams
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        executor.shutdown();
+    }
+
+    private void scheduleIdleCheck(final int streamId, long delayMs) {
+        try {
+            executor.schedule(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        Stream stream = streams.get(streamId);
+                        if (stream == null) {
+                            return;
+                        }
+                        long idleMs = SystemClock.elapsedRealtime() - stream.lastActivityAt;
+                        if (idleMs < IDLE_TIMEOUT_MS) {
+                            scheduleIdleCheck(streamId, IDLE_TIMEOUT_MS - idleMs);
+                            return;
+                        }
+                        listener.onStreamError(stream.id, "Stream idle for " + idleMs + "ms");
+                        close(stream);
+                    }
+                },
+                delayMs,
+                TimeUnit.MILLISECONDS
+            );
+        } catch (RejectedExecutionException e) {
+            // shut down, every stream is closed already
+        }
+    }
+
+    private void pump(int streamId) {
+        Stream stream = streams.get(streamId);
+        if (stream == null) {
+            return;
+        }
+
+        try {
+            while (!stream.done && stream.inFlight < stream.window) {
+                Chunk chunk = readChunk(stream.channel, stream.position, stream.chunkSize);
+                stream.position += chunk.data.length;
+                stream.inFlight++;
+                stream.done = chunk.isEof() || chunk.data.length == 0;
+                listener.onChunk(stream.id, chunk.offset, chunk.data, stream.done);
+            }
+        } catch (IOException e) {
+            listener.onStreamError(stream.id, e.getMessage());
+            stream.done = true;
+        }
+
+        if (stream.done) {
+            close(stream);
+        }
+    }
+
+    private void close(Stream stream) {
+        if (stream == null) {
+            return;
+        }
+        streams.remove(stream.id);
+        try {
+            stream.channel.close();
+        } catch (IOException e) {
+            // nothing left to release
+        }
+    }
+}
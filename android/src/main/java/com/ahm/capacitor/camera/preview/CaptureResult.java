@@ -0,0 +1,45 @@
+package com.ahm.capacitor.camera.preview;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outcome of a capture() or captureSample() call. value holds the base64 data or the file path of the picture (depending on storeToFile).
+ * When renditions were requested, renditions holds them in the order they were requested and value is the first one.
+ */
+class CaptureResult {
+
+    static class Rendition {
+
+        final int width;
+        final int height;
+        final String format;
+        final String value;
+
+        Rendition(int width, int height, String format, String value) {
+            this.width = width;
+            this.height = height;
+            this.format = format;
+            this.value = value;
+        }
+    }
+
+    final String value;
+    final String format;
+    final List<Rendition> renditions = new ArrayList<>();
+    // Number of times the picture was compressed to fit CaptureOptions.maxBytes, 0 when no budget was set
+    int encodeIterations = 0;
+    // Focus quality of the picture when it was scored, see SharpnessScorer; -1 otherwise
+    double sharpness = -1;
+    // Perceptual hash of the picture and its nearest recent capture, null unless duplicate detection is enabled
+    DuplicateIndex.Match duplicateMatch;
+
+    CaptureResult(String value) {
+        this(value, PictureEncoder.FORMAT_JPEG);
+    }
+
+    CaptureResult(String value, String format) {
+        this.value = value;
+        this.format = format;
+    }
+}
@@ -0,0 +1,362 @@
+package com.ahm.capacitor.camera.preview;
+
+import android.util.Log;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Bounded store of the pictures and videos written to the cache directory. Files are named from a persisted counter,
+ * so allocating a name never probes the file system, and are evicted least recently used first once the store exceeds
+ * its byte or entry cap. Pinned entries and entries that are still being written are never evicted. The index is
+ * persisted next to the files so the cache survives restarts.
+ *
+ * The index is written on a background thread, at most every SAVE_DELAY_MS, so a capture never waits for it. Names
+ * are reserved ID_BLOCK at a time and only crossing a block is persisted right away: after a crash the counter resumes
+ * past every name that may have been handed out.
+ */
+class CaptureStore {
+
+    private static final String TAG = "CaptureStore";
+    private static final String INDEX_FILE_NAME = "cpcp_capture_index.json";
+    static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+    static final int DEFAULT_MAX_ENTRIES = 200;
+    static final long SAVE_DELAY_MS = 500;
+    private static final int ID_BLOCK = 64;
+
+    interface RemovalListener {
+        /**
+         * Called with the store locked when the file of an entry is deleted or evicted.
+         */
+        void onRemoved(String path);
+    }
+
+    static class Entry {
+
+        final String path;
+        final long createdAt;
+        // -1 until the file has been completely written
+        long size = -1;
+        long lastAccessedAt;
+        boolean pinned;
+
+        Entry(String path, long createdAt) {
+            this.path = path;
+            this.createdAt = createdAt;
+            this.lastAccessedAt = createdAt;
+        }
+    }
+
+    private final File directory;
+    private final File indexFile;
+    // access ordered, the eldest entry is the least recently used one
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ScheduledThreadPoolExecutor saveExecutor = new ScheduledThreadPoolExecutor(1);
+    private long nextId;
+    // names below it may have been handed out, it is what the index stores as nextId
+    private long idLimit;
+    private boolean saveScheduled;
+    private RemovalListener removalListener;
+    // incremented by each serialize(), so a slow background save never overwrites a newer index
+    private long indexVersion;
+    // guarded by indexFile
+    private long writtenVersion;
+    private long totalBytes;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    CaptureStore(File directory) {
+        this.directory = directory;
+        this.indexFile = new File(directory, INDEX_FILE_NAME);
+        directory.mkdirs();
+        saveExecutor.setKeepAliveTime(30, TimeUnit.SECONDS);
+        saveExecutor.allowCoreThreadTimeOut(true);
+        load();
+        idLimit = nextId;
+    }
+
+    synchronized void setRemovalListener(RemovalListener listener) {
+        this.removalListener = listener;
+    }
+
+    synchronized void setLimits(long maxBytes, int maxEntries) {
+        this.maxBytes = maxBytes > 0 ? maxBytes : DEFAULT_MAX_BYTES;
+        this.maxEntries = maxEntries > 0 ? maxEntries : DEFAULT_MAX_ENTRIES;
+        if (evict(null)) {
+            scheduleSave();
+        }
+    }
+
+    /**
+     * Reserves a new unique file path. The entry does not count against the caps until it is committed.
+     */
+    synchronized String allocate(String prefix, String extension) {
+        if (nextId >= idLimit) {
+            idLimit = nextId + ID_BLOCK;
+            write(serialize(), indexVersion);
+        }
+        String path = new File(directory, prefix + "_" + Long.toString(nextId++, 36) + extension).getAbsolutePath();
+        entries.put(path, new Entry(path, System.currentTimeMillis()));
+        scheduleSave();
+        return path;
+    }
+
+    /**
+     * Records the final size of a written file and evicts older entries when the store is over its caps.
+     */
+    synchronized void commit(String path) {
+        Entry entry = entries.get(path);
+        if (entry == null) {
+            // written outside of the store, adopt it
+            entry = new Entry(path, System.currentTimeMillis());
+            entries.put(path, entry);
+        }
+        if (entry.size >= 0) {
+            totalBytes -= entry.size;
+        }
+        entry.size = new File(path).length();
+        entry.lastAccessedAt = System.currentTimeMillis();
+        totalBytes += entry.size;
+        evict(path);
+        scheduleSave();
+    }
+
+    /**
+     * Marks an entry as recently used. Returns false when the path is not in the store.
+     */
+    synchronized boolean touch(String path) {
+        Entry entry = entries.get(path);
+        if (entry == null) {
+            return false;
+        }
+        entry.lastAccessedAt = System.currentTimeMillis();
+        // the access order of the index is the LRU order after a restart
+        scheduleSave();
+        return true;
+    }
+
+    synchronized boolean contains(String path) {
+        return entries.containsKey(path);
+    }
+
+    synchronized boolean pin(String path, boolean pinned) {
+        Entry entry = entries.get(path);
+        if (entry == null) {
+            return false;
+        }
+        entry.pinned = pinned;
+        if (!pinned) {
+            evict(null);
+        }
+        scheduleSave();
+        return true;
+    }
+
+    synchronized boolean delete(String path) {
+        Entry entry = entries.remove(path);
+        if (entry == null) {
+            return false;
+        }
+        remove(entry);
+        scheduleSave();
+        return true;
+    }
+
+    /**
+     * Returns the committed entries, least recently used first.
+     */
+    synchronized List<Entry> list() {
+        List<Entry> list = new ArrayList<>(entries.size());
+        for (Entry entry : entries.values()) {
+            if (entry.size >= 0) {
+                list.add(entry);
+            }
+        }
+        return list;
+    }
+
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private boolean evict(String keep) {
+        boolean evicted = false;
+        int committed = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.size >= 0) {
+                committed++;
+            }
+        }
+
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while ((totalBytes > maxBytes || committed > maxEntries) && iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (entry.pinned || entry.size < 0 || entry.path.equals(keep)) {
+                continue;
+            }
+            iterator.remove();
+            remove(entry);
+            committed--;
+            evicted = true;
+        }
+        return evicted;
+    }
+
+    private void remove(Entry entry) {
+        if (entry.size >= 0) {
+            totalBytes -= entry.size;
+        }
+        if (removalListener != null) {
+            removalListener.onRemoved(entry.path);
+        }
+        if (!new File(entry.path).delete()) {
+            Log.d(TAG, "Could not delete " + entry.path);
+        }
+    }
+
+    private void load() {
+        if (!indexFile.exists()) {
+            return;
+        }
+
+        try {
+            RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+            byte[] data = new byte[(int) file.length()];
+            try {
+                file.readFully(data);
+            } finally {
+                file.close();
+            }
+
+            JSONObject index = new JSONObject(new String(data, Charset.forName("UTF-8")));
+            nextId = index.optLong("nextId", 0);
+            JSONArray list = index.optJSONArray("entries");
+            for (int i = 0; list != null && i < list.length(); i++) {
+                JSONObject item = list.getJSONObject(i);
+                Entry entry = new Entry(item.getString("path"), item.optLong("createdAt", 0));
+                entry.lastAccessedAt = item.optLong("lastAccessedAt", entry.createdAt);
+                entry.pinned = item.optBoolean("pinned", false);
+                File entryFile = new File(entry.path);
+                if (!entryFile.exists()) {
+                    continue;
+                }
+                // sizes are re-read, entries that were still being written when the app died are committed as they are
+                entry.size = entryFile.length();
+                totalBytes += entry.size;
+                entries.put(entry.path, entry);
+            }
+        } catch (IOException | JSONException e) {
+            Log.d(TAG, "Could not read the capture index, starting empty: " + e.getMessage());
+            entries.clear();
+            totalBytes = 0;
+            // never reuse a name that might still be on disk
+            nextId = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Writes the index now, e.g. before the plugin goes away, instead of waiting for the scheduled save.
+     */
+    void flush() {
+        String index;
+        long version;
+        synchronized (this) {
+            index = serialize();
+            version = indexVersion;
+        }
+        write(index, version);
+    }
+
+    private void scheduleSave() {
+        if (saveScheduled) {
+            return;
+        }
+        saveScheduled = true;
+        saveExecutor.schedule(
+            new Runnable() {
+                @Override
+                public void run() {
+                    String index;
+                    long version;
+                    synchronized (CaptureStore.this) {
+                        saveScheduled = false;
+                        index = serialize();
+                        version = indexVersion;
+                    }
+                    write(index, version);
+                }
+            },
+            SAVE_DELAY_MS,
+            TimeUnit.MILLISECONDS
+        );
+    }
+
+    /**
+     * Returns the index as JSON, null when it can't be built.
+     */
+    private String serialize() {
+        indexVersion++;
+        try {
+            JSONArray list = new JSONArray();
+            // iterating the values keeps the least recently used order
+            for (Entry entry : entries.values()) {
+                JSONObject item = new JSONObject();
+                item.put("path", entry.path);
+                item.put("createdAt", entry.createdAt);
+                item.put("lastAccessedAt", entry.lastAccessedAt);
+                item.put("pinned", entry.pinned);
+                list.put(item);
+            }
+            JSONObject index = new JSONObject();
+            index.put("nextId", idLimit);
+            index.put("entries", list);
+            return index.toString();
+        } catch (JSONException e) {
+            Log.d(TAG, "Could not build the capture index: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes index to disk unless a newer version was written already. Synchronized on indexFile rather than on the
+     * store, the background save doesn't hold the store while it writes.
+     */
+    private void write(String index, long version) {
+        if (index == null) {
+            return;
+        }
+        synchronized (indexFile) {
+            if (version <= writtenVersion) {
+                return;
+            }
+            writtenVersion = version;
+            try {
+                // write to a temporary file first so a crash never leaves a truncated index behind
+                File tmp = new File(directory, INDEX_FILE_NAME + ".tmp");
+                FileOutputStream out = new FileOutputStream(tmp);
+                try {
+                    out.write(index.getBytes(Charset.forName("UTF-8")));
+                } finally {
+                    out.close();
+                }
+                if (!tmp.renameTo(indexFile)) {
+                    Log.d(TAG, "Could not replace the capture index");
+                }
+            } catch (IOException e) {
+                Log.d(TAG, "Could not write the capture index: " + e.getMessage());
+            }
+        }
+    }
+}
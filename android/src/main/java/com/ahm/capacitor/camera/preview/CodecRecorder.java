@@ -0,0 +1,317 @@
+package com.ahm.capacitor.camera.preview;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recording engine fed from preview frames instead of MediaRecorder: frames of the frame ring are queued, encoded with a
+ * PreviewEncoder on a dedicated thread and written with MediaMuxer. Unlike MediaRecorder it leaves the key frame
+ * interval, the bitrate mode and the encoder queue to the caller. The video is recorded at the preview size, without
+ * audio.
+ *
+ * At most maxPendingFrames frames wait for the encoder; when the queue is full either the oldest queued frame or the
+ * incoming frame is dropped, depending on the drop policy.
+ */
+class CodecRecorder implements PreviewFrameRing.FrameCallback {
+
+    static final String DROP_OLDEST = "oldest";
+    static final String DROP_NEWEST = "newest";
+
+    interface Callback {
+        /**
+         * Called on the encoder thread once the file is complete. error is null on success.
+         */
+        void onStopped(String path, String error);
+    }
+
+    static class Stats {
+
+        final long framesReceived;
+        final long framesEncoded;
+        final long framesDropped;
+        final long bytesWritten;
+        final long encodeTimeMs;
+        final long elapsedMs;
+        final int queueDepth;
+        final int maxQueueDepth;
+
+        Stats(
+            long framesReceived,
+            long framesEncoded,
+            long framesDropped,
+            long bytesWritten,
+            long encodeTimeMs,
+            long elapsedMs,
+            int queueDepth,
+            int maxQueueDepth
+        ) {
+            this.framesReceived = framesReceived;
+            this.framesEncoded = framesEncoded;
+            this.framesDropped = framesDropped;
+            this.bytesWritten = bytesWritten;
+            this.encodeTimeMs = encodeTimeMs;
+            this.elapsedMs = elapsedMs;
+            this.queueDepth = queueDepth;
+            this.maxQueueDepth = maxQueueDepth;
+        }
+
+        /**
+         * Frames the encoder could take per second of encode time, above the frame rate when it keeps up.
+         */
+        double encodeFramesPerSecond() {
+            return encodeTimeMs > 0 ? framesEncoded * 1000.0 / encodeTimeMs : 0;
+        }
+    }
+
+    static boolean isSupportedDropPolicy(String policy) {
+        return DROP_OLDEST.equals(policy) || DROP_NEWEST.equals(policy);
+    }
+
+    private static final String TAG = "CodecRecorder";
+
+    private final String path;
+    private final int orientationHint;
+    private final int maxPendingFrames;
+    private final boolean dropOldest;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final long startedAt = SystemClock.elapsedRealtime();
+
+    // guarded by this
+    private final ArrayDeque<PreviewFrame> pending = new ArrayDeque<>();
+    private boolean draining;
+    private boolean stopped;
+    private long framesReceived;
+    private long framesDropped;
+    private int maxQueueDepth;
+    private long stoppedAt;
+
+    private final AtomicLong framesEncoded = new AtomicLong();
+    private final AtomicLong bytesEncoded = new AtomicLong();
+    private final AtomicLong encodeTimeNs = new AtomicLong();
+
+    // only touched from the encoder thread
+    private final PreviewEncoder encoder;
+    private MediaMuxer muxer;
+    private int track = -1;
+    private long firstTimestampUs = -1;
+    private long lastTimestampUs = -1;
+    private IOException muxerError;
+
+    CodecRecorder(String path, int orientationHint, PreviewEncoder.Config config, int maxPendingFrames, String dropPolicy) {
+        this.path = path;
+        this.orientationHint = orientationHint;
+        this.maxPendingFrames = Math.max(1, maxPendingFrames);
+        this.dropOldest = !DROP_NEWEST.equals(dropPolicy);
+        this.encoder = new PreviewEncoder(
+            config,
+            new PreviewEncoder.Output() {
+                @Override
+                public void onFormat(MediaFormat format) {
+                    startMuxer(format);
+                }
+
+                @Override
+                public void onAccessUnit(ByteBuffer data, MediaCodec.BufferInfo info) {
+                    writeSample(data, info);
+                }
+            }
+        );
+    }
+
+    int getMaxPendingFrames() {
+        return maxPendingFrames;
+    }
+
+    @Override
+    public void onFrame(PreviewFrame frame) {
+        PreviewFrame dropped = null;
+        boolean schedule = false;
+        synchronized (this) {
+            if (stopped) {
+                dropped = frame;
+            } else {
+                framesReceived++;
+                if (pending.size() >= maxPendingFrames) {
+                    framesDropped++;
+                    if (dropOldest) {
+                        dropped = pending.pollFirst();
+                        pending.addLast(frame);
+                    } else {
+                        dropped = frame;
+                    }
+                } else {
+                    pending.addLast(frame);
+                }
+                maxQueueDepth = Math.max(maxQueueDepth, pending.size());
+                if (!draining && !pending.isEmpty()) {
+                    draining = true;
+                    schedule = true;
+                }
+            }
+        }
+
+        if (dropped != null) {
+            dropped.release();
+        }
+        if (schedule) {
+            try {
+                executor.execute(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            encodePending();
+                        }
+                    }
+                );
+            } catch (RejectedExecutionException e) {
+                // stopped in the meantime, the listener may still be called once it was removed
+                releasePending();
+            }
+        }
+    }
+
+    private void releasePending() {
+        List<PreviewFrame> released = new ArrayList<>();
+        synchronized (this) {
+            released.addAll(pending);
+            pending.clear();
+            draining = false;
+        }
+        for (PreviewFrame frame : released) {
+            frame.release();
+        }
+    }
+
+    /**
+     * Drops the frames still queued, finishes the stream and the file, then calls callback.
+     */
+    void stop(final Callback callback) {
+        synchronized (this) {
+            stopped = true;
+            stoppedAt = SystemClock.elapsedRealtime();
+            while (!pending.isEmpty()) {
+                pending.pollFirst().release();
+            }
+        }
+        executor.execute(
+            new Runnable() {
+                @Override
+                public void run() {
+                    String error = null;
+                    try {
+                        encoder.finish();
+                    } catch (RuntimeException e) {
+                        error = e.getMessage();
+                    }
+                    encoder.release();
+                    error = error != null ? error : stopMuxer();
+                    callback.onStopped(path, error);
+                }
+            }
+        );
+        executor.shutdown();
+    }
+
+    synchronized Stats getStats() {
+        long elapsed = (stopped ? stoppedAt : SystemClock.elapsedRealtime()) - startedAt;
+        return new Stats(
+            framesReceived,
+            framesEncoded.get(),
+            framesDropped,
+            bytesEncoded.get(),
+            encodeTimeNs.get() / 1000000,
+            elapsed,
+            pending.size(),
+            maxQueueDepth
+        );
+    }
+
+    private void encodePending() {
+        while (true) {
+            PreviewFrame frame;
+            synchronized (this) {
+                frame = pending.pollFirst();
+                if (frame == null) {
+                    draining = false;
+                    return;
+                }
+            }
+            boolean encoded = false;
+            try {
+                encoded = encoder.encode(frame);
+            } catch (IOException | RuntimeException e) {
+                Log.d(TAG, "Could not encode frame: " + e.getMessage());
+            } finally {
+                frame.release();
+            }
+            // the counters of the encoder are only safe to read from this thread
+            framesEncoded.set(encoder.getFramesEncoded());
+            bytesEncoded.set(encoder.getBytesEncoded());
+            encodeTimeNs.set(encoder.getEncodeTimeNs());
+            if (!encoded) {
+                synchronized (this) {
+                    framesDropped++;
+                }
+            }
+        }
+    }
+
+    private void startMuxer(MediaFormat format) {
+        if (muxer != null) {
+            // the frame size changed, the file keeps its first format
+            muxerError = new IOException("Preview size changed while recording");
+            return;
+        }
+        try {
+            muxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            muxer.setOrientationHint(orientationHint);
+            track = muxer.addTrack(format);
+            muxer.start();
+        } catch (IOException e) {
+            muxerError = e;
+        }
+    }
+
+    private void writeSample(ByteBuffer data, MediaCodec.BufferInfo info) {
+        if (track < 0 || muxerError != null) {
+            return;
+        }
+        if (firstTimestampUs < 0) {
+            firstTimestampUs = info.presentationTimeUs;
+        }
+        if (info.presentationTimeUs <= lastTimestampUs) {
+            // the muxer needs increasing timestamps
+            return;
+        }
+        lastTimestampUs = info.presentationTimeUs;
+        info.presentationTimeUs -= firstTimestampUs;
+        muxer.writeSampleData(track, data, info);
+    }
+
+    private String stopMuxer() {
+        if (muxer == null) {
+            return muxerError != null ? muxerError.getMessage() : "No frame recorded";
+        }
+        try {
+            muxer.stop();
+        } catch (RuntimeException e) {
+            return e.getMessage();
+        } finally {
+            muxer.release();
+            muxer = null;
+        }
+        return muxerError != null ? muxerError.getMessage() : null;
+    }
+}
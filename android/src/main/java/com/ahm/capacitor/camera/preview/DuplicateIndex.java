@@ -0,0 +1,63 @@
+package com.ahm.capacitor.camera.preview;
+
+/**
+ * Bounded index of the perceptual hashes of the recent captures, the oldest hash is forgotten first. A capture is a
+ * duplicate of a recent one when their hashes are at most threshold bits apart, see PerceptualHash.
+ */
+class DuplicateIndex {
+
+    static class Match {
+
+        final long hash;
+        // bits to the nearest recent hash, -1 when the index was empty
+        final int distance;
+        final boolean duplicate;
+        // the capture is a duplicate that is not kept, its hash was not added
+        final boolean dropped;
+
+        Match(long hash, int distance, boolean duplicate, boolean dropped) {
+            this.hash = hash;
+            this.distance = distance;
+            this.duplicate = duplicate;
+            this.dropped = dropped;
+        }
+    }
+
+    static final int DEFAULT_CAPACITY = 64;
+    static final int DEFAULT_THRESHOLD = 6;
+
+    // guarded by this, a ring of the recent hashes
+    private final long[] hashes;
+    private int size;
+    private int next;
+
+    DuplicateIndex(int capacity) {
+        hashes = new long[Math.max(1, capacity)];
+    }
+
+    /**
+     * Looks hash up among the recent hashes and adds it, unless it is a duplicate and dropDuplicates is set.
+     */
+    synchronized Match offer(long hash, int threshold, boolean dropDuplicates) {
+        int nearest = -1;
+        for (int i = 0; i < size; i++) {
+            int distance = PerceptualHash.distance(hash, hashes[i]);
+            if (nearest < 0 || distance < nearest) {
+                nearest = distance;
+            }
+        }
+        boolean duplicate = nearest >= 0 && nearest <= threshold;
+        boolean dropped = duplicate && dropDuplicates;
+        if (!dropped) {
+            hashes[next] = hash;
+            next = (next + 1) % hashes.length;
+            size = Math.min(size + 1, hashes.length);
+        }
+        return new Match(hash, nearest, duplicate, dropped);
+    }
+
+    synchronized void clear() {
+        size = 0;
+        next = 0;
+    }
+}
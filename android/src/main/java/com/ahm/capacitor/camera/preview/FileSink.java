@@ -0,0 +1,213 @@
+package com.ahm.capacitor.camera.preview;
+
+import android.os.SystemClock;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes encoded pictures to disk on a single I/O thread with FileChannel, so neither the camera callback thread nor
+ * the post-processing pool waits for the storage. How durably the files are written depends on the sync policy:
+ * SYNC_NONE leaves flushing to the kernel, SYNC_ALWAYS forces every file to the storage before it is reported written
+ * and SYNC_BATCH forces the files once the queue drains, which amortizes the cost of the sync over a burst.
+ *
+ * At most MAX_QUEUED_FILES pictures wait in memory, once that many are queued write() blocks until one is written, so a
+ * burst faster than the storage slows down the producer instead of piling up encoded pictures.
+ */
+class FileSink {
+
+    static final String SYNC_NONE = "none";
+    static final String SYNC_ALWAYS = "always";
+    static final String SYNC_BATCH = "batch";
+    // files kept open waiting for the queue to drain with SYNC_BATCH
+    private static final int MAX_BATCH_FILES = 16;
+    static final int MAX_QUEUED_FILES = 8;
+
+    interface Callback {
+        /**
+         * Called on the I/O thread once the file is written (and synced, depending on the policy). error is null on
+         * success.
+         */
+        void onWritten(String path, long bytes, IOException error);
+    }
+
+    static class Stats {
+
+        final long filesWritten;
+        final long bytesWritten;
+        final long writeTimeMs;
+        final int queueDepth;
+        final int maxQueueDepth;
+
+        Stats(long filesWritten, long bytesWritten, long writeTimeMs, int queueDepth, int maxQueueDepth) {
+            this.filesWritten = filesWritten;
+            this.bytesWritten = bytesWritten;
+            this.writeTimeMs = writeTimeMs;
+            this.queueDepth = queueDepth;
+            this.maxQueueDepth = maxQueueDepth;
+        }
+
+        double bytesPerSecond() {
+            return writeTimeMs > 0 ? bytesWritten * 1000.0 / writeTimeMs : 0;
+        }
+    }
+
+    private static class PendingFile {
+
+        final String path;
+        final FileChannel channel;
+        final long bytes;
+        final Callback callback;
+
+        PendingFile(String path, FileChannel channel, long bytes, Callback callback) {
+            this.path = path;
+            this.channel = channel;
+            this.bytes = bytes;
+            this.callback = callback;
+        }
+    }
+
+    private final String syncPolicy;
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        1,
+        1,
+        30,
+        TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>()
+    );
+    // only touched from the I/O thread
+    private final List<PendingFile> batch = new ArrayList<>();
+    private final AtomicLong filesWritten = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong writeTimeMs = new AtomicLong();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final Semaphore queueSlots = new Semaphore(MAX_QUEUED_FILES);
+
+    FileSink(String syncPolicy) {
+        this.syncPolicy = syncPolicy == null ? SYNC_NONE : syncPolicy;
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    static boolean isSupportedSyncPolicy(String policy) {
+        return SYNC_NONE.equals(policy) || SYNC_ALWAYS.equals(policy) || SYNC_BATCH.equals(policy);
+    }
+
+    /**
+     * Queues data to be written to path, callback is called once it is. Blocks while MAX_QUEUED_FILES are queued.
+     */
+    void write(final String path, final byte[] data, final Callback callback) {
+        queueSlots.acquireUninterruptibly();
+        int depth = queueDepth.incrementAndGet();
+        int max;
+        while (depth > (max = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(max, depth)) {
+            // retry
+        }
+
+        try {
+            executor.execute(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        long start = SystemClock.elapsedRealtime();
+                        try {
+                            writeFile(path, data, callback);
+                        } finally {
+                            writeTimeMs.addAndGet(SystemClock.elapsedRealtime() - start);
+                            queueSlots.release();
+                        }
+                    }
+                }
+            );
+        } catch (RejectedExecutionException e) {
+            // shut down in the meantime
+            queueDepth.decrementAndGet();
+            queueSlots.release();
+            callback.onWritten(path, 0, new IOException("File sink is shut down"));
+        }
+    }
+
+    Stats getStats() {
+        return new Stats(filesWritten.get(), bytesWritten.get(), writeTimeMs.get(), queueDepth.get(), maxQueueDepth.get());
+    }
+
+    /**
+     * Writes what is already queued, then stops the I/O thread.
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    private void writeFile(String path, byte[] data, Callback callback) {
+        FileChannel channel = null;
+        try {
+            channel = new FileOutputStream(path).getChannel();
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            close(channel);
+            channel = null;
+            callback.onWritten(path, 0, e);
+        }
+
+        // the depth is decremented first so the last file of a burst sees an empty queue
+        boolean drained = queueDepth.decrementAndGet() == 0;
+        PendingFile file = null;
+        if (channel != null) {
+            filesWritten.incrementAndGet();
+            bytesWritten.addAndGet(data.length);
+            file = new PendingFile(path, channel, data.length, callback);
+        }
+
+        if (SYNC_BATCH.equals(syncPolicy)) {
+            if (file != null) {
+                batch.add(file);
+            }
+            if (drained || batch.size() >= MAX_BATCH_FILES) {
+                for (PendingFile pending : batch) {
+                    complete(pending, true);
+                }
+                batch.clear();
+            }
+        } else if (file != null) {
+            complete(file, SYNC_ALWAYS.equals(syncPolicy));
+        }
+    }
+
+    private void complete(PendingFile file, boolean sync) {
+        IOException error = null;
+        try {
+            if (sync) {
+                file.channel.force(false);
+            }
+            file.channel.close();
+        } catch (IOException e) {
+            error = e;
+            close(file.channel);
+        }
+        file.callback.onWritten(file.path, file.bytes, error);
+    }
+
+    private static void close(FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing left to release
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.ahm.capacitor.camera.preview;
+
+import com.getcapacitor.JSObject;
+import java.nio.ByteBuffer;
+
+/**
+ * Analysis of preview frames, registered with CameraPreview.addFrameProcessor and run when the camera is started with
+ * enableFrameProcessing. process() is called on a worker of a bounded pool and never twice at the same time for one
+ * processor: frames arriving while it is busy or above its frame rate are skipped rather than queued.
+ */
+public interface FrameProcessor {
+    /**
+     * Identifies the processor in the frameProcessorResults events and the stats.
+     */
+    String getName();
+
+    /**
+     * Highest rate at which frames are handed to process(), 0 for every frame.
+     */
+    int getMaxFps();
+
+    /**
+     * Analyses frame and returns a result to publish to JS, or null. The frame is only valid during the call.
+     */
+    JSObject process(Frame frame);
+
+    /**
+     * Read-only view of a preview frame, backed by the camera callback buffer: nothing is copied, so the view must not
+     * be used once process() returns.
+     */
+    final class Frame {
+
+        private final PreviewFrame frame;
+        private final int rotation;
+        private volatile boolean valid = true;
+
+        Frame(PreviewFrame frame, int rotation) {
+            this.frame = frame;
+            this.rotation = rotation;
+        }
+
+        public int getWidth() {
+            return frame.width;
+        }
+
+        public int getHeight() {
+            return frame.height;
+        }
+
+        /**
+         * The ImageFormat of the data, NV21 unless the preview format was changed.
+         */
+        public int getFormat() {
+            return frame.format;
+        }
+
+        /**
+         * Clockwise rotation in degrees that makes the frame upright.
+         */
+        public int getRotation() {
+            return rotation;
+        }
+
+        /**
+         * When the frame was received, on the SystemClock.elapsedRealtimeNanos clock.
+         */
+        public long getTimestampNs() {
+            return frame.timestampNs;
+        }
+
+        /**
+         * The frame data: width x height luma bytes, followed by the interleaved V/U chroma for NV21.
+         */
+        public ByteBuffer getData() {
+            checkValid();
+            return ByteBuffer.wrap(frame.data).asReadOnlyBuffer();
+        }
+
+        /**
+         * Returns the luma of the pixel at x, y in the frame orientation, 0-255.
+         */
+        public int getLuma(int x, int y) {
+            checkValid();
+            return frame.data[y * frame.width + x] & 0xff;
+        }
+
+        /**
+         * The buffer behind getData(), for the processors of this package that hand it to a decoder as is.
+         */
+        byte[] data() {
+            checkValid();
+            return frame.data;
+        }
+
+        void invalidate() {
+            valid = false;
+        }
+
+        private void checkValid() {
+            if (!valid) {
+                throw new IllegalStateException("Frame used after process() returned");
+            }
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package com.ahm.capacitor.camera.preview;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import com.getcapacitor.JSObject;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the registered FrameProcessors on the frames of the preview frame ring. Frames are handed to the processors on a
+ * bounded worker pool without being copied: a frame stays out of the camera until every processor it was handed to
+ * returns, so at most MAX_FRAMES_IN_FLIGHT frames are held and a frame arriving beyond that is skipped.
+ *
+ * The results are coalesced before they reach JS: only the latest result of each processor is kept and they are
+ * published together at most every PUBLISH_INTERVAL_MS.
+ */
+class FrameProcessorHost implements PreviewFrameRing.FrameCallback {
+
+    interface ResultListener {
+        /**
+         * Called on the main thread with the latest result of each processor since the previous call.
+         */
+        void onResults(List<Result> results);
+    }
+
+    static class Result {
+
+        final String processor;
+        // wall clock time of the frame the result was computed from
+        final long timestampMs;
+        final JSObject data;
+
+        Result(String processor, long timestampMs, JSObject data) {
+            this.processor = processor;
+            this.timestampMs = timestampMs;
+            this.data = data;
+        }
+    }
+
+    static class Stats {
+
+        final String processor;
+        final int maxFps;
+        final long framesProcessed;
+        final long framesSkippedBusy;
+        final long framesSkippedRate;
+        final long errors;
+        final long processTimeMs;
+        final double maxProcessMs;
+        final double lastProcessMs;
+        final double averageLatencyMs;
+        final long resultsPublished;
+        final long resultsCoalesced;
+
+        Stats(
+            String processor,
+            int maxFps,
+            long framesProcessed,
+            long framesSkippedBusy,
+            long framesSkippedRate,
+            long errors,
+            long processTimeMs,
+            double maxProcessMs,
+            double lastProcessMs,
+            double averageLatencyMs,
+            long resultsPublished,
+            long resultsCoalesced
+        ) {
+            this.processor = processor;
+            this.maxFps = maxFps;
+            this.framesProcessed = framesProcessed;
+            this.framesSkippedBusy = framesSkippedBusy;
+            this.framesSkippedRate = framesSkippedRate;
+            this.errors = errors;
+            this.processTimeMs = processTimeMs;
+            this.maxProcessMs = maxProcessMs;
+            this.lastProcessMs = lastProcessMs;
+            this.averageLatencyMs = averageLatencyMs;
+            this.resultsPublished = resultsPublished;
+            this.resultsCoalesced = resultsCoalesced;
+        }
+
+        double averageProcessMs() {
+            return framesProcessed > 0 ? (double) processTimeMs / framesProcessed : 0;
+        }
+    }
+
+    private static class Registration {
+
+        final FrameProcessor processor;
+        final long minIntervalNs;
+
+        // guarded by this
+        boolean busy;
+        long lastStartNs = Long.MIN_VALUE;
+        long framesProcessed;
+        long framesSkippedBusy;
+        long framesSkippedRate;
+        long errors;
+        long processTimeNs;
+        long maxProcessNs;
+        long lastProcessNs;
+        long latencyNs;
+        long resultsPublished;
+        long resultsCoalesced;
+
+        Registration(FrameProcessor processor) {
+            this.processor = processor;
+            int maxFps = processor.getMaxFps();
+            this.minIntervalNs = maxFps > 0 ? 1000000000L / maxFps : 0;
+        }
+
+        /**
+         * Marks the processor busy when it takes frame, otherwise counts the frame as skipped.
+         */
+        synchronized boolean take(long timestampNs) {
+            if (busy) {
+                framesSkippedBusy++;
+                return false;
+            }
+            if (lastStartNs != Long.MIN_VALUE && timestampNs - lastStartNs < minIntervalNs) {
+                framesSkippedRate++;
+                return false;
+            }
+            busy = true;
+            lastStartNs = timestampNs;
+            return true;
+        }
+
+        synchronized void cancel() {
+            busy = false;
+            framesSkippedBusy++;
+        }
+
+        synchronized void done(long processNs, long latencyNs, boolean error) {
+            busy = false;
+            framesProcessed++;
+            processTimeNs += processNs;
+            maxProcessNs = Math.max(maxProcessNs, processNs);
+            lastProcessNs = processNs;
+            this.latencyNs += latencyNs;
+            if (error) {
+                errors++;
+            }
+        }
+
+        synchronized Stats getStats() {
+            return new Stats(
+                processor.getName(),
+                processor.getMaxFps(),
+                framesProcessed,
+                framesSkippedBusy,
+                framesSkippedRate,
+                errors,
+                processTimeNs / 1000000,
+                maxProcessNs / 1000000.0,
+                lastProcessNs / 1000000.0,
+                framesProcessed > 0 ? latencyNs / 1000000.0 / framesProcessed : 0,
+                resultsPublished,
+                resultsCoalesced
+            );
+        }
+    }
+
+    // each frame in flight is a callback buffer the camera can't fill, the frame ring reserves that many
+    static final int MAX_FRAMES_IN_FLIGHT = 2;
+    static final long PUBLISH_INTERVAL_MS = 100;
+
+    private static final String TAG = "FrameProcessorHost";
+
+    private final ResultListener listener;
+    private final CopyOnWriteArrayList<Registration> registrations = new CopyOnWriteArrayList<>();
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        MAX_FRAMES_IN_FLIGHT,
+        MAX_FRAMES_IN_FLIGHT,
+        30,
+        TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>()
+    );
+    private final AtomicInteger framesInFlight = new AtomicInteger();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile int rotation;
+
+    // guarded by this
+    private final Map<Registration, Result> pendingResults = new LinkedHashMap<>();
+    private boolean publishScheduled;
+
+    private final Runnable publish = new Runnable() {
+        @Override
+        public void run() {
+            List<Result> results;
+            synchronized (FrameProcessorHost.this) {
+                publishScheduled = false;
+                results = new ArrayList<>(pendingResults.values());
+                for (Registration registration : pendingResults.keySet()) {
+                    synchronized (registration) {
+                        registration.resultsPublished++;
+                    }
+                }
+                pendingResults.clear();
+            }
+            if (!results.isEmpty()) {
+                listener.onResults(results);
+            }
+        }
+    };
+
+    FrameProcessorHost(ResultListener listener) {
+        this.listener = listener;
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    void add(FrameProcessor processor) {
+        for (Registration registration : registrations) {
+            if (registration.processor == processor) {
+                return;
+            }
+        }
+        registrations.add(new Registration(processor));
+    }
+
+    void remove(FrameProcessor processor) {
+        for (Registration registration : registrations) {
+            if (registration.processor == processor) {
+                registrations.remove(registration);
+            }
+        }
+    }
+
+    /**
+     * Sets the rotation handed to the processors with the next frames, see FrameProcessor.Frame.getRotation.
+     */
+    void setRotation(int rotation) {
+        this.rotation = rotation;
+    }
+
+    /**
+     * Returns the stats of processor, null when it is not registered.
+     */
+    Stats getStats(FrameProcessor processor) {
+        for (Registration registration : registrations) {
+            if (registration.processor == processor) {
+                return registration.getStats();
+            }
+        }
+        return null;
+    }
+
+    List<Stats> getStats() {
+        List<Stats> stats = new ArrayList<>();
+        for (Registration registration : registrations) {
+            stats.add(registration.getStats());
+        }
+        return stats;
+    }
+
+    void shutdown() {
+        registrations.clear();
+        executor.shutdown();
+        mainHandler.removeCallbacks(publish);
+    }
+
+    @Override
+    public void onFrame(final PreviewFrame frame) {
+        try {
+            dispatch(frame);
+        } finally {
+            frame.release();
+        }
+    }
+
+    private void dispatch(final PreviewFrame frame) {
+        List<Registration> selected = null;
+        for (Registration registration : registrations) {
+            if (registration.take(frame.timestampNs)) {
+                if (selected == null) {
+                    selected = new ArrayList<>();
+                }
+                selected.add(registration);
+            }
+        }
+        if (selected == null) {
+            return;
+        }
+        if (framesInFlight.incrementAndGet() > MAX_FRAMES_IN_FLIGHT) {
+            // the workers are behind, the camera needs the buffer more than the processors
+            framesInFlight.decrementAndGet();
+            for (Registration registration : selected) {
+                registration.cancel();
+            }
+            return;
+        }
+
+        final FrameProcessor.Frame view = new FrameProcessor.Frame(frame, rotation);
+        final AtomicInteger remaining = new AtomicInteger(selected.size());
+        for (final Registration registration : selected) {
+            frame.retain();
+            try {
+                executor.execute(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                process(registration, view);
+                            } finally {
+                                release(frame, view, remaining);
+                            }
+                        }
+                    }
+                );
+            } catch (RejectedExecutionException e) {
+                // shut down in the meantime
+                registration.cancel();
+                release(frame, view, remaining);
+            }
+        }
+    }
+
+    private void process(Registration registration, FrameProcessor.Frame view) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        JSObject result = null;
+        boolean error = false;
+        try {
+            result = registration.processor.process(view);
+        } catch (RuntimeException e) {
+            Log.d(TAG, registration.processor.getName() + " failed: " + e.getMessage());
+            error = true;
+        }
+        long end = SystemClock.elapsedRealtimeNanos();
+        registration.done(end - start, end - view.getTimestampNs(), error);
+        if (result != null) {
+            long ageMs = (SystemClock.elapsedRealtimeNanos() - view.getTimestampNs()) / 1000000;
+            post(registration, new Result(registration.processor.getName(), System.currentTimeMillis() - ageMs, result));
+        }
+    }
+
+    private void release(PreviewFrame frame, FrameProcessor.Frame view, AtomicInteger remaining) {
+        if (remaining.decrementAndGet() == 0) {
+            view.invalidate();
+            framesInFlight.decrementAndGet();
+        }
+        frame.release();
+    }
+
+    private void post(Registration registration, Result result) {
+        synchronized (this) {
+            if (pendingResults.put(registration, result) != null) {
+                synchronized (registration) {
+                    registration.resultsCoalesced++;
+                }
+            }
+            if (publishScheduled) {
+                return;
+            }
+            publishScheduled = true;
+        }
+        mainHandler.postDelayed(publish, PUBLISH_INTERVAL_MS);
+    }
+}
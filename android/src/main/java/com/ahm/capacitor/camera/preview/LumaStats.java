@@ -0,0 +1,184 @@
+package com.ahm.capacitor.camera.preview;
+
+import android.graphics.ImageFormat;
+import android.os.SystemClock;
+import com.getcapacitor.JSObject;
+import java.util.Arrays;
+
+/**
+ * Exposure statistics of the preview, computed as a FrameProcessor from a subsampled luma plane: a 256 bin histogram,
+ * the mean, the ratio of clipped shadows and highlights and the RMS contrast. The histogram is accumulated into a
+ * preallocated array, a frame allocates nothing until the stats are handed out, at most every eventIntervalMs.
+ */
+class LumaStats implements FrameProcessor {
+
+    interface Listener {
+        /**
+         * Called on the frame processor worker, at most every eventIntervalMs.
+         */
+        void onFrameStats(Snapshot snapshot);
+    }
+
+    static class Options {
+
+        int maxFps = 15;
+        // every step-th pixel of every step-th row is sampled
+        int step = 4;
+        long eventIntervalMs = 500;
+        // luma at or below is a clipped shadow, at or above a clipped highlight
+        int shadowClip = 4;
+        int highlightClip = 251;
+    }
+
+    static class Snapshot {
+
+        final int[] histogram;
+        final long samples;
+        final double mean;
+        // standard deviation of the luma over 255
+        final double contrast;
+        final double shadowRatio;
+        final double highlightRatio;
+        // wall clock time of the frame
+        final long timestampMs;
+        final double computeMs;
+
+        Snapshot(
+            int[] histogram,
+            long samples,
+            double mean,
+            double contrast,
+            double shadowRatio,
+            double highlightRatio,
+            long timestampMs,
+            double computeMs
+        ) {
+            this.histogram = histogram;
+            this.samples = samples;
+            this.mean = mean;
+            this.contrast = contrast;
+            this.shadowRatio = shadowRatio;
+            this.highlightRatio = highlightRatio;
+            this.timestampMs = timestampMs;
+            this.computeMs = computeMs;
+        }
+    }
+
+    static final String NAME = "lumaStats";
+
+    private final Options options;
+    private final Listener listener;
+    // only touched from the worker running process()
+    private final int[] histogram = new int[256];
+    private long lastEventAt = Long.MIN_VALUE;
+
+    // guarded by this, the stats of the last frame
+    private final int[] latestHistogram = new int[256];
+    private long latestSamples;
+    private double latestMean;
+    private double latestContrast;
+    private double latestShadowRatio;
+    private double latestHighlightRatio;
+    private long latestTimestampMs;
+    private double latestComputeMs;
+
+    LumaStats(Options options, Listener listener) {
+        this.options = options;
+        this.listener = listener;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int getMaxFps() {
+        return options.maxFps;
+    }
+
+    @Override
+    public JSObject process(Frame frame) {
+        if (frame.getFormat() != ImageFormat.NV21 && frame.getFormat() != ImageFormat.YV12) {
+            // both start with the full resolution luma plane
+            return null;
+        }
+        long start = SystemClock.elapsedRealtimeNanos();
+        Arrays.fill(histogram, 0);
+        accumulate(frame.data(), frame.getWidth(), frame.getHeight(), Math.max(1, options.step), histogram);
+
+        long samples = 0;
+        long sum = 0;
+        long sumOfSquares = 0;
+        for (int value = 0; value < 256; value++) {
+            long count = histogram[value];
+            samples += count;
+            sum += count * value;
+            sumOfSquares += count * value * value;
+        }
+        if (samples == 0) {
+            return null;
+        }
+        long shadows = 0;
+        for (int value = 0; value <= Math.min(255, options.shadowClip); value++) {
+            shadows += histogram[value];
+        }
+        long highlights = 0;
+        for (int value = Math.max(0, options.highlightClip); value < 256; value++) {
+            highlights += histogram[value];
+        }
+        double mean = (double) sum / samples;
+        double variance = Math.max(0, (double) sumOfSquares / samples - mean * mean);
+        long end = SystemClock.elapsedRealtimeNanos();
+
+        synchronized (this) {
+            System.arraycopy(histogram, 0, latestHistogram, 0, histogram.length);
+            latestSamples = samples;
+            latestMean = mean;
+            latestContrast = Math.sqrt(variance) / 255;
+            latestShadowRatio = (double) shadows / samples;
+            latestHighlightRatio = (double) highlights / samples;
+            latestTimestampMs = System.currentTimeMillis() - (end - frame.getTimestampNs()) / 1000000;
+            latestComputeMs = (end - start) / 1000000.0;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        if (lastEventAt == Long.MIN_VALUE || now - lastEventAt >= options.eventIntervalMs) {
+            lastEventAt = now;
+            listener.onFrameStats(getSnapshot());
+        }
+        return null;
+    }
+
+    /**
+     * Returns the stats of the last frame, null before the first one.
+     */
+    synchronized Snapshot getSnapshot() {
+        if (latestSamples == 0) {
+            return null;
+        }
+        return new Snapshot(
+            Arrays.copyOf(latestHistogram, latestHistogram.length),
+            latestSamples,
+            latestMean,
+            latestContrast,
+            latestShadowRatio,
+            latestHighlightRatio,
+            latestTimestampMs,
+            latestComputeMs
+        );
+    }
+
+    /**
+     * Adds the luma of every step-th pixel of every step-th row of the width x height plane at the start of data to
+     * histogram.
+     */
+    static void accumulate(byte[] data, int width, int height, int step, int[] histogram) {
+        for (int y = step / 2; y < height; y += step) {
+            int row = y * width;
+            for (int x = step / 2; x < width; x += step) {
+                histogram[data[row + x] & 0xff]++;
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.ahm.capacitor.camera.preview;
+
+import android.graphics.ImageFormat;
+import android.os.SystemClock;
+import com.getcapacitor.JSObject;
+
+/**
+ * Detects motion in the preview as a FrameProcessor, by differencing a downscaled copy of the luma plane of each frame
+ * with the one of the previous frame. The downscaled frames go into a fixed ring of buffers allocated with the first
+ * frame, a frame allocates nothing.
+ *
+ * A frame is moving when more than motionThreshold of its pixels changed by more than pixelThreshold. The scene turns
+ * still once no frame moved for holdMs, and moving again with the first moving frame.
+ */
+class MotionDetector implements FrameProcessor {
+
+    interface Listener {
+        /**
+         * Called on the frame processor worker when the scene starts moving or turns still. latencyMs is the time from
+         * the arrival of the frame that changed the state to its detection.
+         */
+        void onMotion(boolean moving, double score, long timestampMs, double latencyMs);
+    }
+
+    static class Options {
+
+        int maxFps = 15;
+        // width of the downscaled luma, its height keeps the frame ratio
+        int analysisWidth = 64;
+        // change of luma of a pixel that counts as motion, 0-255
+        int pixelThreshold = 25;
+        // ratio of the pixels that must change for a frame to move
+        double motionThreshold = 0.02;
+        long holdMs = 1000;
+    }
+
+    static class Stats {
+
+        final boolean moving;
+        final double lastScore;
+        final long framesAnalyzed;
+        final long transitions;
+        final double averageAnalyzeMs;
+        final double lastLatencyMs;
+        final double maxLatencyMs;
+
+        Stats(
+            boolean moving,
+            double lastScore,
+            long framesAnalyzed,
+            long transitions,
+            double averageAnalyzeMs,
+            double lastLatencyMs,
+            double maxLatencyMs
+        ) {
+            this.moving = moving;
+            this.lastScore = lastScore;
+            this.framesAnalyzed = framesAnalyzed;
+            this.transitions = transitions;
+            this.averageAnalyzeMs = averageAnalyzeMs;
+            this.lastLatencyMs = lastLatencyMs;
+            this.maxLatencyMs = maxLatencyMs;
+        }
+    }
+
+    static final String NAME = "motionDetector";
+
+    // the current frame and the previous one
+    private static final int RING_SIZE = 2;
+
+    private final Options options;
+    private final Listener listener;
+
+    // only touched from the worker running process()
+    private final byte[][] ring = new byte[RING_SIZE][];
+    private int ringIndex;
+    private int ringFrames;
+    private int sourceWidth;
+    private int sourceHeight;
+    private int outWidth;
+    private int outHeight;
+    private long lastMotionNs;
+
+    // guarded by this
+    private boolean moving = true;
+    private boolean stateKnown;
+    private double lastScore;
+    private long framesAnalyzed;
+    private long transitions;
+    private long analyzeTimeNs;
+    private double lastLatencyMs;
+    private double maxLatencyMs;
+
+    MotionDetector(Options options, Listener listener) {
+        this.options = options;
+        this.listener = listener;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int getMaxFps() {
+        return options.maxFps;
+    }
+
+    @Override
+    public JSObject process(Frame frame) {
+        if (frame.getFormat() != ImageFormat.NV21 && frame.getFormat() != ImageFormat.YV12) {
+            return null;
+        }
+        long start = SystemClock.elapsedRealtimeNanos();
+        if (frame.getWidth() != sourceWidth || frame.getHeight() != sourceHeight) {
+            allocate(frame.getWidth(), frame.getHeight());
+        }
+
+        byte[] current = ring[ringIndex];
+        downscale(frame.data(), sourceWidth, sourceHeight, current, outWidth, outHeight);
+        ringFrames = Math.min(RING_SIZE, ringFrames + 1);
+        byte[] previous = ring[(ringIndex + RING_SIZE - 1) % RING_SIZE];
+        ringIndex = (ringIndex + 1) % RING_SIZE;
+        if (ringFrames < 2) {
+            lastMotionNs = frame.getTimestampNs();
+            return null;
+        }
+
+        int pixels = outWidth * outHeight;
+        double score = (double) changedPixels(current, previous, pixels, options.pixelThreshold) / pixels;
+        boolean frameMoving = score > options.motionThreshold;
+        if (frameMoving) {
+            lastMotionNs = frame.getTimestampNs();
+        }
+
+        boolean changed;
+        boolean nowMoving;
+        long end = SystemClock.elapsedRealtimeNanos();
+        double latencyMs = (end - frame.getTimestampNs()) / 1000000.0;
+        synchronized (this) {
+            framesAnalyzed++;
+            analyzeTimeNs += end - start;
+            lastScore = score;
+            if (frameMoving) {
+                changed = !stateKnown || !moving;
+                moving = true;
+            } else {
+                boolean held = frame.getTimestampNs() - lastMotionNs >= options.holdMs * 1000000L;
+                changed = held && (!stateKnown || moving);
+                if (held) {
+                    moving = false;
+                }
+            }
+            if (changed) {
+                stateKnown = true;
+                transitions++;
+                lastLatencyMs = latencyMs;
+                maxLatencyMs = Math.max(maxLatencyMs, latencyMs);
+            }
+            nowMoving = moving;
+        }
+
+        if (changed) {
+            long timestampMs = System.currentTimeMillis() - (long) latencyMs;
+            listener.onMotion(nowMoving, score, timestampMs, latencyMs);
+        }
+        return null;
+    }
+
+    synchronized Stats getStats() {
+        return new Stats(
+            stateKnown && moving,
+            lastScore,
+            framesAnalyzed,
+            transitions,
+            framesAnalyzed > 0 ? analyzeTimeNs / 1000000.0 / framesAnalyzed : 0,
+            lastLatencyMs,
+            maxLatencyMs
+        );
+    }
+
+    private void allocate(int width, int height) {
+        sourceWidth = width;
+        sourceHeight = height;
+        outWidth = Math.max(1, Math.min(width, options.analysisWidth));
+        outHeight = Math.max(1, (int) ((long) height * outWidth / width));
+        for (int i = 0; i < RING_SIZE; i++) {
+            ring[i] = new byte[outWidth * outHeight];
+        }
+        ringIndex = 0;
+        ringFrames = 0;
+    }
+
+    /**
+     * Averages the width x height luma plane at the start of data into outWidth x outHeight blocks, sampling every other
+     * pixel of every other row of each block.
+     */
+    static void downscale(byte[] data, int width, int height, byte[] out, int outWidth, int outHeight) {
+        for (int oy = 0; oy < outHeight; oy++) {
+            int y0 = (int) ((long) oy * height / outHeight);
+            int y1 = Math.max(y0 + 1, (int) ((long) (oy + 1) * height / outHeight));
+            for (int ox = 0; ox < outWidth; ox++) {
+                int x0 = (int) ((long) ox * width / outWidth);
+                int x1 = Math.max(x0 + 1, (int) ((long) (ox + 1) * width / outWidth));
+                int sum = 0;
+                int count = 0;
+                for (int y = y0; y < y1; y += 2) {
+                    int row = y * width;
+                    for (int x = x0; x < x1; x += 2) {
+                        sum += data[row + x] & 0xff;
+                        count++;
+                    }
+                }
+                out[oy * outWidth + ox] = (byte) (sum / count);
+            }
+        }
+    }
+
+    static int changedPixels(byte[] a, byte[] b, int length, int threshold) {
+        int changed = 0;
+        for (int i = 0; i < length; i++) {
+            if (Math.abs((a[i] & 0xff) - (b[i] & 0xff)) > threshold) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+}
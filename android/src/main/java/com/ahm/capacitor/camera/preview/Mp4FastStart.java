@@ -0,0 +1,251 @@
+package com.ahm.capacitor.camera.preview;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Moves the moov box of an MP4 file ahead of its media data so that players can start playing it before it is fully
+ * downloaded. MediaRecorder writes moov once the recording stops, at the end of the file. Only moov is loaded in
+ * memory, where the chunk offsets of its stco and co64 boxes are shifted by its size; every other box is copied with
+ * FileChannel.transferTo.
+ */
+class Mp4FastStart {
+
+    // moov holds the sample tables, a few MB for hours of video
+    static final int MAX_MOOV_SIZE = 64 * 1024 * 1024;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int LARGE_HEADER_SIZE = 16;
+
+    static class Box {
+
+        final String type;
+        final long offset;
+        final long size;
+
+        Box(String type, long offset, long size) {
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    private Mp4FastStart() {}
+
+    /**
+     * Rewrites file in place. Returns false, leaving the file untouched, when moov already comes before the media data.
+     * The original is replaced by renaming the rewritten copy over it, which is atomic on POSIX file systems, so file is
+     * either the original or the complete copy, even if the rename fails.
+     */
+    static boolean process(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".faststart");
+        try {
+            if (!process(file, tmp)) {
+                return false;
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+            return true;
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Writes the fast start version of in to out. Returns false, without writing out, when moov already comes before
+     * the media data.
+     */
+    static boolean process(File in, File out) throws IOException {
+        FileInputStream input = new FileInputStream(in);
+        try {
+            FileChannel source = input.getChannel();
+            List<Box> boxes = readTopLevelBoxes(source);
+
+            Box moov = null;
+            Box firstMdat = null;
+            for (Box box : boxes) {
+                if ("moov".equals(box.type) && moov == null) {
+                    moov = box;
+                } else if ("mdat".equals(box.type) && firstMdat == null) {
+                    firstMdat = box;
+                }
+            }
+            if (moov == null) {
+                throw new IOException("No moov box");
+            }
+            if (firstMdat == null || moov.offset < firstMdat.offset) {
+                return false;
+            }
+            if (moov.size > MAX_MOOV_SIZE) {
+                throw new IOException("moov box too large: " + moov.size);
+            }
+
+            ByteBuffer moovData = ByteBuffer.allocate((int) moov.size);
+            readFully(source, moovData, moov.offset);
+            moovData.flip();
+            // every box from the first mdat up to moov moves down by the size of moov
+            shiftChunkOffsets(moovData, 0, moovData.limit(), moov.size);
+
+            FileOutputStream output = new FileOutputStream(out);
+            try {
+                FileChannel target = output.getChannel();
+                for (Box box : boxes) {
+                    if (box.offset >= firstMdat.offset) {
+                        break;
+                    }
+                    transfer(source, box.offset, box.size, target);
+                }
+                while (moovData.hasRemaining()) {
+                    target.write(moovData);
+                }
+                for (Box box : boxes) {
+                    if (box.offset >= firstMdat.offset && box != moov) {
+                        transfer(source, box.offset, box.size, target);
+                    }
+                }
+            } finally {
+                output.close();
+            }
+            return true;
+        } finally {
+            input.close();
+        }
+    }
+
+    static List<Box> readTopLevelBoxes(FileChannel channel) throws IOException {
+        List<Box> boxes = new ArrayList<>();
+        long fileSize = channel.size();
+        long offset = 0;
+        ByteBuffer header = ByteBuffer.allocate(LARGE_HEADER_SIZE);
+        while (offset < fileSize) {
+            if (fileSize - offset < HEADER_SIZE) {
+                throw new IOException("Truncated box header at " + offset);
+            }
+            header.clear();
+            header.limit(HEADER_SIZE);
+            readFully(channel, header, offset);
+            header.flip();
+            long size = header.getInt() & 0xffffffffL;
+            String type = readType(header);
+            if (size == 1) {
+                header.clear();
+                header.limit(8);
+                readFully(channel, header, offset + HEADER_SIZE);
+                header.flip();
+                size = header.getLong();
+            } else if (size == 0) {
+                // the box extends to the end of the file
+                size = fileSize - offset;
+            }
+            if (size < HEADER_SIZE || offset + size > fileSize) {
+                throw new IOException("Invalid size " + size + " for box " + type + " at " + offset);
+            }
+            boxes.add(new Box(type, offset, size));
+            offset += size;
+        }
+        return boxes;
+    }
+
+    /**
+     * Adds shift to the chunk offsets of every stco and co64 box found between start and end of data, descending into
+     * the containers that lead to them.
+     */
+    private static void shiftChunkOffsets(ByteBuffer data, int start, int end, long shift) throws IOException {
+        int offset = start;
+        while (offset + HEADER_SIZE <= end) {
+            long size = data.getInt(offset) & 0xffffffffL;
+            String type = readType(data, offset + 4);
+            int headerSize = HEADER_SIZE;
+            if (size == 1) {
+                size = data.getLong(offset + HEADER_SIZE);
+                headerSize = LARGE_HEADER_SIZE;
+            } else if (size == 0) {
+                size = end - offset;
+            }
+            if (size < headerSize || offset + size > end) {
+                throw new IOException("Invalid size " + size + " for box " + type + " in moov");
+            }
+
+            int body = offset + headerSize;
+            int boxEnd = (int) (offset + size);
+            boolean chunkOffsets = "stco".equals(type) || "co64".equals(type);
+            if (chunkOffsets && boxEnd - body < 8) {
+                throw new IOException("Truncated " + type + " box");
+            }
+            if ("moov".equals(type) || "trak".equals(type) || "mdia".equals(type) || "minf".equals(type) || "stbl".equals(type)) {
+                shiftChunkOffsets(data, body, boxEnd, shift);
+            } else if ("stco".equals(type)) {
+                // version and flags, then the entry count
+                int count = data.getInt(body + 4);
+                checkEntries(count, 4, body + 8, boxEnd);
+                for (int i = 0; i < count; i++) {
+                    int position = body + 8 + i * 4;
+                    long chunkOffset = (data.getInt(position) & 0xffffffffL) + shift;
+                    if (chunkOffset > 0xffffffffL) {
+                        throw new IOException("Chunk offset overflows stco");
+                    }
+                    data.putInt(position, (int) chunkOffset);
+                }
+            } else if ("co64".equals(type)) {
+                int count = data.getInt(body + 4);
+                checkEntries(count, 8, body + 8, boxEnd);
+                for (int i = 0; i < count; i++) {
+                    int position = body + 8 + i * 8;
+                    data.putLong(position, data.getLong(position) + shift);
+                }
+            } else if ("cmov".equals(type)) {
+                throw new IOException("Compressed moov is not supported");
+            }
+            offset = boxEnd;
+        }
+    }
+
+    private static void checkEntries(int count, int entrySize, int start, int end) throws IOException {
+        if (count < 0 || (long) count * entrySize > end - start) {
+            throw new IOException("Invalid chunk offset table");
+        }
+    }
+
+    private static String readType(ByteBuffer buffer) {
+        byte[] type = new byte[4];
+        buffer.get(type);
+        return new String(type, StandardCharsets.US_ASCII);
+    }
+
+    private static String readType(ByteBuffer buffer, int position) {
+        byte[] type = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            type[i] = buffer.get(position + i);
+        }
+        return new String(type, StandardCharsets.US_ASCII);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += read;
+        }
+    }
+
+    private static void transfer(FileChannel source, long position, long count, FileChannel target) throws IOException {
+        while (count > 0) {
+            long transferred = source.transferTo(position, count, target);
+            if (transferred <= 0) {
+                throw new IOException("Could not copy box at " + position);
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+}
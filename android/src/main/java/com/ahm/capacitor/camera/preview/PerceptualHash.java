@@ -0,0 +1,92 @@
+package com.ahm.capacitor.camera.preview;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * 64 bit difference hash (dHash) of a picture: its luma is averaged down to 9x8 blocks and each bit tells whether a
+ * block is brighter than its right neighbour. Pictures of the same scene hash a few bits apart whatever their size and
+ * compression, see distance().
+ *
+ * The hash depends on the orientation and framing of the picture. Jpeg pictures from the camera are rotated by the
+ * driver and usually have another aspect ratio and field of view than the preview frames, so only hashes of the same
+ * source compare: keep them in separate indexes.
+ */
+final class PerceptualHash {
+
+    private static final int HASH_WIDTH = 9;
+    private static final int HASH_HEIGHT = 8;
+    // decoded pictures are sampled down to about this size before they are hashed
+    private static final int DECODE_SIZE = 256;
+
+    private PerceptualHash() {}
+
+    /**
+     * Hashes the width x height luma plane at the start of data, e.g. an NV21 preview frame.
+     */
+    static long hash(byte[] data, int width, int height) {
+        byte[] blocks = new byte[HASH_WIDTH * HASH_HEIGHT];
+        MotionDetector.downscale(data, width, height, blocks, HASH_WIDTH, HASH_HEIGHT);
+        return fromBlocks(blocks);
+    }
+
+    /**
+     * Hashes an encoded picture, decoded at a reduced size.
+     */
+    static long hash(byte[] jpeg) throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, bounds);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 1;
+        while (Math.min(bounds.outWidth, bounds.outHeight) / (options.inSampleSize * 2) >= DECODE_SIZE) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        if (bitmap == null) {
+            throw new IOException("Failed to decode picture");
+        }
+        try {
+            int width = bitmap.getWidth();
+            int height = bitmap.getHeight();
+            int[] pixels = new int[width * height];
+            bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+            byte[] luma = new byte[pixels.length];
+            for (int i = 0; i < pixels.length; i++) {
+                int color = pixels[i];
+                // BT.601 luma
+                luma[i] = (byte) ((77 * ((color >> 16) & 0xff) + 150 * ((color >> 8) & 0xff) + 29 * (color & 0xff)) >> 8);
+            }
+            return hash(luma, width, height);
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Number of bits that differ between two hashes, 0 for the same picture and about 32 for unrelated ones.
+     */
+    static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    static String toHex(long hash) {
+        return String.format(Locale.ROOT, "%016x", hash);
+    }
+
+    private static long fromBlocks(byte[] blocks) {
+        long hash = 0;
+        for (int y = 0; y < HASH_HEIGHT; y++) {
+            int row = y * HASH_WIDTH;
+            for (int x = 0; x < HASH_WIDTH - 1; x++) {
+                hash <<= 1;
+                if ((blocks[row + x] & 0xff) > (blocks[row + x + 1] & 0xff)) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,354 @@
+package com.ahm.capacitor.camera.preview;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.os.Build;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Encoding helpers shared by the capture paths.
+ */
+class PictureEncoder {
+
+    static final String FORMAT_JPEG = "jpeg";
+    static final String FORMAT_PNG = "png";
+    static final String FORMAT_WEBP_LOSSY = "webp-lossy";
+    static final String FORMAT_WEBP_LOSSLESS = "webp-lossless";
+
+    // Lowest quality tried before downscaling when encoding within a byte budget
+    static final int MIN_BUDGET_QUALITY = 10;
+    // Number of times the picture may be downscaled to fit a byte budget
+    private static final int MAX_BUDGET_DOWNSCALES = 3;
+
+    private static ForkJoinPool encodePool;
+
+    static class EncodedPicture {
+
+        final byte[] data;
+        final int width;
+        final int height;
+        final int quality;
+        // Number of times the picture was compressed to produce data
+        final int iterations;
+
+        EncodedPicture(byte[] data, int width, int height, int quality, int iterations) {
+            this.data = data;
+            this.width = width;
+            this.height = height;
+            this.quality = quality;
+            this.iterations = iterations;
+        }
+    }
+
+    static boolean isSupportedFormat(String format) {
+        return (
+            FORMAT_JPEG.equals(format) ||
+            FORMAT_PNG.equals(format) ||
+            FORMAT_WEBP_LOSSY.equals(format) ||
+            FORMAT_WEBP_LOSSLESS.equals(format)
+        );
+    }
+
+    @SuppressWarnings("deprecation")
+    static CompressFormat compressFormat(String format) {
+        if (FORMAT_PNG.equals(format)) {
+            return CompressFormat.PNG;
+        }
+        if (FORMAT_WEBP_LOSSY.equals(format) || FORMAT_WEBP_LOSSLESS.equals(format)) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                return FORMAT_WEBP_LOSSY.equals(format) ? CompressFormat.WEBP_LOSSY : CompressFormat.WEBP_LOSSLESS;
+            }
+            // before R, WEBP is lossless at quality 100 and lossy below, see encode()
+            return CompressFormat.WEBP;
+        }
+        return CompressFormat.JPEG;
+    }
+
+    static String fileExtension(String format) {
+        if (FORMAT_PNG.equals(format)) {
+            return ".png";
+        }
+        if (FORMAT_WEBP_LOSSY.equals(format) || FORMAT_WEBP_LOSSLESS.equals(format)) {
+            return ".webp";
+        }
+        return ".jpg";
+    }
+
+    static boolean isLossless(String format) {
+        return FORMAT_PNG.equals(format) || FORMAT_WEBP_LOSSLESS.equals(format);
+    }
+
+    /**
+     * Compresses bitmap. For lossless formats quality is the compression effort (ignored for png).
+     */
+    static byte[] encode(Bitmap bitmap, String format, int quality) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R) {
+            if (FORMAT_WEBP_LOSSLESS.equals(format)) {
+                quality = 100;
+            } else if (FORMAT_WEBP_LOSSY.equals(format)) {
+                quality = Math.min(quality, 99);
+            }
+        }
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        bitmap.compress(compressFormat(format), quality, outputStream);
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Converts an NV21 frame to an ARGB bitmap, so preview frames can be encoded to other formats than jpeg without
+     * going through an intermediate jpeg.
+     */
+    static Bitmap nv21ToBitmap(byte[] nv21, int width, int height) {
+        int[] argb = new int[width * height];
+        int frameSize = width * height;
+
+        for (int j = 0; j < height; j++) {
+            int uvRow = frameSize + (j >> 1) * width;
+            for (int i = 0; i < width; i++) {
+                int y = (0xff & nv21[j * width + i]) - 16;
+                int uvIndex = uvRow + (i & ~1);
+                int v = (0xff & nv21[uvIndex]) - 128;
+                int u = (0xff & nv21[uvIndex + 1]) - 128;
+                if (y < 0) y = 0;
+
+                int y1192 = 1192 * y;
+                int r = y1192 + 1634 * v;
+                int g = y1192 - 833 * v - 400 * u;
+                int b = y1192 + 2066 * u;
+
+                r = r < 0 ? 0 : (r > 262143 ? 262143 : r);
+                g = g < 0 ? 0 : (g > 262143 ? 262143 : g);
+                b = b < 0 ? 0 : (b > 262143 ? 262143 : b);
+
+                argb[j * width + i] = 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+            }
+        }
+
+        return Bitmap.createBitmap(argb, width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Produces every rendition from a single decoded picture. Renditions are scaled from the largest to the smallest,
+     * each one from the previous (smaller) bitmap rather than from the full picture, and the bitmaps are then encoded in
+     * parallel. The encoded renditions are returned in the order they were requested. The intermediate bitmaps are added to
+     * scaled so the caller can recycle them.
+     */
+    static List<EncodedPicture> encodeRenditions(
+        final Bitmap source,
+        final List<CaptureOptions.Rendition> renditions,
+        final long maxBytes,
+        List<Bitmap> scaled
+    )
+        throws InterruptedException, ExecutionException {
+        final List<Integer> bySize = new ArrayList<>();
+        for (int i = 0; i < renditions.size(); i++) {
+            bySize.add(i);
+        }
+        Collections.sort(
+            bySize,
+            new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Integer.compare(maxSide(renditions.get(b), source), maxSide(renditions.get(a), source));
+                }
+            }
+        );
+
+        Bitmap[] bitmaps = new Bitmap[renditions.size()];
+        Bitmap current = source;
+        for (Integer index : bySize) {
+            Bitmap next = downscale(current, maxSide(renditions.get(index), source));
+            if (next != current) {
+                scaled.add(next);
+            }
+            current = next;
+            bitmaps[index] = current;
+        }
+
+        List<Callable<EncodedPicture>> tasks = new ArrayList<>();
+        for (int i = 0; i < renditions.size(); i++) {
+            final Bitmap bitmap = bitmaps[i];
+            final CaptureOptions.Rendition rendition = renditions.get(i);
+            tasks.add(
+                new Callable<EncodedPicture>() {
+                    @Override
+                    public EncodedPicture call() {
+                        if (maxBytes > 0) {
+                            return encodeWithinBudget(bitmap, rendition.format, rendition.quality, maxBytes);
+                        }
+                        byte[] data = encode(bitmap, rendition.format, rendition.quality);
+                        return new EncodedPicture(data, bitmap.getWidth(), bitmap.getHeight(), rendition.quality, 1);
+                    }
+                }
+            );
+        }
+
+        List<EncodedPicture> encoded = new ArrayList<>();
+        for (Future<EncodedPicture> future : getEncodePool().invokeAll(tasks)) {
+            encoded.add(future.get());
+        }
+        return encoded;
+    }
+
+    /**
+     * Encodes bitmap with the highest quality, up to quality, that fits in maxBytes. The quality is binary searched down
+     * to MIN_BUDGET_QUALITY and, when even that is too large, the bitmap is downscaled according to the size reached and
+     * the search starts over. If the budget still cannot be met the smallest encoding is returned, so callers should
+     * check the length of the data.
+     */
+    static EncodedPicture encodeWithinBudget(Bitmap bitmap, String format, int quality, long maxBytes) {
+        int iterations = 0;
+        Bitmap current = bitmap;
+
+        try {
+            for (int downscales = 0;; downscales++) {
+                byte[] data = encode(current, format, quality);
+                iterations++;
+                if (data.length <= maxBytes) {
+                    return new EncodedPicture(data, current.getWidth(), current.getHeight(), quality, iterations);
+                }
+
+                int smallestQuality = quality;
+                if (!isLossless(format)) {
+                    byte[] best = null;
+                    int bestQuality = 0;
+                    // searches [MIN_BUDGET_QUALITY, quality - 1], only quality - 1 when quality is at or below MIN_BUDGET_QUALITY
+                    int low = Math.max(0, Math.min(MIN_BUDGET_QUALITY, quality - 1));
+                    int high = quality - 1;
+                    while (low <= high) {
+                        int mid = (low + high) >>> 1;
+                        byte[] attempt = encode(current, format, mid);
+                        iterations++;
+                        if (attempt.length <= maxBytes) {
+                            best = attempt;
+                            bestQuality = mid;
+                            low = mid + 1;
+                        } else {
+                            data = attempt;
+                            smallestQuality = mid;
+                            high = mid - 1;
+                        }
+                    }
+                    if (best != null) {
+                        return new EncodedPicture(best, current.getWidth(), current.getHeight(), bestQuality, iterations);
+                    }
+                }
+
+                if (downscales == MAX_BUDGET_DOWNSCALES) {
+                    return new EncodedPicture(data, current.getWidth(), current.getHeight(), smallestQuality, iterations);
+                }
+
+                // the encoded size roughly follows the pixel count, aim a bit below the budget
+                double scale = Math.sqrt((double) maxBytes / data.length) * 0.9;
+                int maxSide = (int) (Math.max(current.getWidth(), current.getHeight()) * scale);
+                Bitmap next = downscale(current, Math.max(1, maxSide));
+                if (current != bitmap) {
+                    current.recycle();
+                }
+                current = next;
+            }
+        } finally {
+            if (current != bitmap) {
+                current.recycle();
+            }
+        }
+    }
+
+    /**
+     * Same as encodeWithinBudget for a preview frame. The quality search runs directly on the yuv data, which is only
+     * decoded to a bitmap when it has to be downscaled.
+     */
+    static EncodedPicture encodeYuvWithinBudget(YuvImage image, Rect rect, int quality, long maxBytes) {
+        int iterations = 0;
+        byte[] first = compressYuv(image, rect, quality);
+        iterations++;
+        if (first.length <= maxBytes) {
+            return new EncodedPicture(first, rect.width(), rect.height(), quality, iterations);
+        }
+
+        // searches [MIN_BUDGET_QUALITY, quality - 1], only quality - 1 when quality is at or below MIN_BUDGET_QUALITY
+        int low = Math.max(0, Math.min(MIN_BUDGET_QUALITY, quality - 1));
+        int high = quality - 1;
+        byte[] best = null;
+        int bestQuality = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            byte[] attempt = compressYuv(image, rect, mid);
+            iterations++;
+            if (attempt.length <= maxBytes) {
+                best = attempt;
+                bestQuality = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (best != null) {
+            return new EncodedPicture(best, rect.width(), rect.height(), bestQuality, iterations);
+        }
+
+        Bitmap bitmap = BitmapFactory.decodeByteArray(first, 0, first.length);
+        double scale = Math.sqrt((double) maxBytes / first.length);
+        Bitmap scaled = downscale(bitmap, Math.max(1, (int) (Math.max(rect.width(), rect.height()) * scale)));
+        try {
+            EncodedPicture downscaled = encodeWithinBudget(scaled, FORMAT_JPEG, quality, maxBytes);
+            return new EncodedPicture(
+                downscaled.data,
+                downscaled.width,
+                downscaled.height,
+                downscaled.quality,
+                iterations + downscaled.iterations
+            );
+        } finally {
+            if (scaled != bitmap) {
+                scaled.recycle();
+            }
+            bitmap.recycle();
+        }
+    }
+
+    static byte[] compressYuv(YuvImage image, Rect rect, int quality) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        image.compressToJpeg(rect, quality, outputStream);
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Scales bitmap down so its largest side is maxSide, or returns it as is when it is already small enough.
+     */
+    static Bitmap downscale(Bitmap bitmap, int maxSide) {
+        int largest = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (maxSide <= 0 || largest <= maxSide) {
+            return bitmap;
+        }
+
+        float scale = (float) maxSide / largest;
+        int width = Math.max(1, Math.round(bitmap.getWidth() * scale));
+        int height = Math.max(1, Math.round(bitmap.getHeight() * scale));
+        return Bitmap.createScaledBitmap(bitmap, width, height, true);
+    }
+
+    private static int maxSide(CaptureOptions.Rendition rendition, Bitmap source) {
+        int largest = Math.max(source.getWidth(), source.getHeight());
+        return rendition.maxDimension == 0 ? largest : Math.min(rendition.maxDimension, largest);
+    }
+
+    private static synchronized ForkJoinPool getEncodePool() {
+        if (encodePool == null) {
+            encodePool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+        }
+        return encodePool;
+    }
+}
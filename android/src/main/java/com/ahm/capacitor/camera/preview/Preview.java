@@ -2,6 +2,7 @@ package com.ahm.capacitor.camera.preview;
 
 import android.app.Activity;
 import android.content.Context;
+import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.util.DisplayMetrics;
@@ -32,6 +33,10 @@ class Preview extends RelativeLayout implements SurfaceHolder.Callback, TextureV
     int viewHeight;
     private boolean enableOpacity = false;
     private float opacity = 1F;
+    private boolean preferLargestPreviewSize = false;
+    private PreviewFrameRing frameRing;
+    // Part of the preview frame that is visible in the view, normalized to [0, 1] in display orientation
+    private volatile RectF visibleRegion;
 
     Preview(Context context) {
         this(context, false);
@@ -61,7 +66,33 @@ class Preview extends RelativeLayout implements SurfaceHolder.Callback, TextureV
         }
     }
 
+    /**
+     * When set, the preview uses the largest supported size with the aspect ratio that best fits the view instead of the
+     * size closest to the view, so that preview frames can be used as full resolution stills.
+     */
+    public void setPreferLargestPreviewSize(boolean preferLargestPreviewSize) {
+        this.preferLargestPreviewSize = preferLargestPreviewSize;
+    }
+
+    /**
+     * Sets the ring the preview frames are delivered to. The ring is attached to the camera every time the preview
+     * size is (re)configured.
+     */
+    public void setFrameRing(PreviewFrameRing frameRing) {
+        this.frameRing = frameRing;
+    }
+
+    private void attachFrameRing() {
+        if (frameRing != null && mCamera != null) {
+            frameRing.attach(mCamera);
+        }
+    }
+
     public void setCamera(Camera camera, int cameraId) {
+        if (camera == null && frameRing != null) {
+            frameRing.detach();
+        }
+
         if (camera != null) {
             mCamera = camera;
             this.cameraId = cameraId;
@@ -82,6 +113,28 @@ class Preview extends RelativeLayout implements SurfaceHolder.Callback, TextureV
         }
     }
 
+    /**
+     * Returns the part of the preview frame that is visible in the view, normalized to [0, 1] in display orientation,
+     * or null when the preview has not been laid out yet.
+     */
+    public RectF getVisibleRegion() {
+        return visibleRegion;
+    }
+
+    private static RectF visibleRegion(int left, int top, int right, int bottom, int width, int height) {
+        float childWidth = right - left;
+        float childHeight = bottom - top;
+        if (childWidth <= 0 || childHeight <= 0) {
+            return null;
+        }
+        return new RectF(
+            Math.max(0f, -left / childWidth),
+            Math.max(0f, -top / childHeight),
+            Math.min(1f, (width - left) / childWidth),
+            Math.min(1f, (height - top) / childHeight)
+        );
+    }
+
     public int getDisplayOrientation() {
         return displayOrientation;
     }
@@ -172,6 +225,7 @@ class Preview extends RelativeLayout implements SurfaceHolder.Callback, TextureV
             Log.d(TAG, mPreviewSize.width + " " + mPreviewSize.height);
 
             camera.setParameters(parameters);
+            attachFrameRing();
         } catch (IOException exception) {
             Log.e(TAG, exception.getMessage());
         }
@@ -237,6 +291,7 @@ class Preview extends RelativeLayout implements SurfaceHolder.Callback, TextureV
                 left = 0;
             }
             child.layout(left, top, nW, nH);
+            visibleRegion = visibleRegion(left, top, nW, nH, width, height);
 
             Log.d("layout", "left:" + left);
             Log.d("layout", "top:" + top);
@@ -306,6 +361,18 @@ class Preview extends RelativeLayout implements SurfaceHolder.Callback, TextureV
             }
         }
 
+        // Keep the aspect ratio of the optimal size but use the largest size available for it
+        if (preferLargestPreviewSize && optimalSize != null) {
+            double optimalRatio = (double) optimalSize.width / optimalSize.height;
+            for (Camera.Size size : sizes) {
+                double ratio = (double) size.width / size.height;
+                if (Math.abs(ratio - optimalRatio) > ASPECT_TOLERANCE) continue;
+                if (size.width * size.height > optimalSize.width * optimalSize.height) {
+                    optimalSize = size;
+                }
+            }
+        }
+
         Log.d(TAG, "optimal preview size: w: " + optimalSize.width + " h: " + optimalSize.height);
         return optimalSize;
     }
@@ -332,6 +399,7 @@ class Preview extends RelativeLayout implements SurfaceHolder.Callback, TextureV
         requestLayout();
         //mCamera.setDisplayOrientation(90);
         mCamera.setParameters(parameters);
+        attachFrameRing();
         mCamera.startPreview();
     }
 
@@ -0,0 +1,269 @@
+package com.ahm.capacitor.camera.preview;
+
+import android.graphics.ImageFormat;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * H.264 encoder of NV21 preview frames, with ByteBuffer input. Not thread safe: every method must be called from the
+ * same thread, the access units are handed to the Output on that thread. The codec is started on the first frame and
+ * started again whenever the frame size changes.
+ */
+class PreviewEncoder {
+
+    interface Output {
+        /**
+         * Called once per codec start, before its first access unit, with the format holding the SPS and PPS.
+         */
+        void onFormat(MediaFormat format);
+
+        /**
+         * Called with an encoded access unit, data is only valid during the call.
+         */
+        void onAccessUnit(ByteBuffer data, MediaCodec.BufferInfo info);
+    }
+
+    static class Config {
+
+        // bits per second, 0 to derive it from the frame size
+        int bitrate = 0;
+        int frameRate = 30;
+        int keyFrameIntervalSeconds = 1;
+        // one of MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_*, -1 for the encoder default
+        int bitrateMode = -1;
+    }
+
+    static final String MIME_TYPE = MediaFormat.MIMETYPE_VIDEO_AVC;
+    static final String BITRATE_MODE_CBR = "cbr";
+    static final String BITRATE_MODE_VBR = "vbr";
+    static final String BITRATE_MODE_CQ = "cq";
+
+    private static final String TAG = "PreviewEncoder";
+    private static final double DEFAULT_BITS_PER_PIXEL = 0.1;
+    private static final long END_OF_STREAM_TIMEOUT_US = 10000;
+    private static final int END_OF_STREAM_ATTEMPTS = 100;
+
+    private final Config config;
+    private final Output output;
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+
+    private MediaCodec codec;
+    private int width;
+    private int height;
+    private int colorFormat;
+    private byte[] chroma;
+    private long framesEncoded;
+    private long bytesEncoded;
+    private long encodeTimeNs;
+
+    static boolean isSupportedBitrateMode(String mode) {
+        return BITRATE_MODE_CBR.equals(mode) || BITRATE_MODE_VBR.equals(mode) || BITRATE_MODE_CQ.equals(mode);
+    }
+
+    /**
+     * Returns the MediaCodecInfo.EncoderCapabilities constant of mode, -1 when mode is not set.
+     */
+    static int bitrateMode(String mode) {
+        if (BITRATE_MODE_CBR.equals(mode)) {
+            return MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR;
+        } else if (BITRATE_MODE_VBR.equals(mode)) {
+            return MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR;
+        } else if (BITRATE_MODE_CQ.equals(mode)) {
+            return MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ;
+        }
+        return -1;
+    }
+
+    PreviewEncoder(Config config, Output output) {
+        this.config = config;
+        this.output = output;
+    }
+
+    /**
+     * Queues frame to the encoder and hands the access units that are ready to the output. Returns false when the
+     * frame was skipped, because the encoder had no free input buffer or the frame is not NV21.
+     */
+    boolean encode(PreviewFrame frame) throws IOException {
+        if (frame.format != ImageFormat.NV21) {
+            return false;
+        }
+        long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            if (codec == null || frame.width != width || frame.height != height) {
+                start(frame.width, frame.height);
+            }
+
+            int index = codec.dequeueInputBuffer(0);
+            if (index >= 0) {
+                ByteBuffer input = codec.getInputBuffer(index);
+                input.clear();
+                int size = fillInput(frame.data, input);
+                codec.queueInputBuffer(index, 0, size, frame.timestampNs / 1000, 0);
+                framesEncoded++;
+            }
+            drain(0);
+            return index >= 0;
+        } finally {
+            encodeTimeNs += SystemClock.elapsedRealtimeNanos() - start;
+        }
+    }
+
+    /**
+     * Signals the end of the stream and hands the remaining access units to the output.
+     */
+    void finish() {
+        if (codec == null) {
+            return;
+        }
+        int index = -1;
+        for (int i = 0; i < END_OF_STREAM_ATTEMPTS && index < 0; i++) {
+            index = codec.dequeueInputBuffer(END_OF_STREAM_TIMEOUT_US);
+            if (index < 0) {
+                drain(0);
+            }
+        }
+        if (index < 0) {
+            Log.d(TAG, "No input buffer for the end of stream");
+            return;
+        }
+        codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        drain(END_OF_STREAM_TIMEOUT_US);
+    }
+
+    void release() {
+        if (codec == null) {
+            return;
+        }
+        try {
+            codec.stop();
+        } catch (RuntimeException e) {
+            // already in error state
+        }
+        codec.release();
+        codec = null;
+    }
+
+    long getFramesEncoded() {
+        return framesEncoded;
+    }
+
+    long getBytesEncoded() {
+        return bytesEncoded;
+    }
+
+    long getEncodeTimeNs() {
+        return encodeTimeNs;
+    }
+
+    private void start(int width, int height) throws IOException {
+        release();
+
+        codec = MediaCodec.createEncoderByType(MIME_TYPE);
+        try {
+            MediaCodecInfo.CodecCapabilities capabilities = codec.getCodecInfo().getCapabilitiesForType(MIME_TYPE);
+            colorFormat = selectColorFormat(capabilities.colorFormats);
+            MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+            format.setInteger(
+                MediaFormat.KEY_BIT_RATE,
+                config.bitrate > 0 ? config.bitrate : (int) (DEFAULT_BITS_PER_PIXEL * width * height * config.frameRate)
+            );
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, config.frameRate);
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, config.keyFrameIntervalSeconds);
+            if (config.bitrateMode >= 0) {
+                MediaCodecInfo.EncoderCapabilities encoder = capabilities.getEncoderCapabilities();
+                if (encoder != null && encoder.isBitrateModeSupported(config.bitrateMode)) {
+                    format.setInteger(MediaFormat.KEY_BITRATE_MODE, config.bitrateMode);
+                } else {
+                    Log.d(TAG, "Bitrate mode " + config.bitrateMode + " not supported, using the encoder default");
+                }
+            }
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            codec.start();
+        } catch (IOException | RuntimeException e) {
+            codec.release();
+            codec = null;
+            throw e;
+        }
+        this.width = width;
+        this.height = height;
+        chroma = new byte[width * height / 2];
+        Log.d(TAG, "Encoding " + width + "x" + height + ", color format " + colorFormat);
+    }
+
+    private static int selectColorFormat(int[] colorFormats) throws IOException {
+        boolean planar = false;
+        for (int colorFormat : colorFormats) {
+            if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar) {
+                return colorFormat;
+            }
+            planar |= colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar;
+        }
+        if (planar) {
+            return MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar;
+        }
+        throw new IOException("No supported color format");
+    }
+
+    /**
+     * Copies an NV21 frame to the encoder input: NV12 (U first) for the semi-planar format, I420 for the planar one.
+     */
+    private int fillInput(byte[] nv21, ByteBuffer input) {
+        int lumaSize = width * height;
+        int chromaSize = lumaSize / 2;
+        input.put(nv21, 0, lumaSize);
+        if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar) {
+            for (int i = 0; i < chromaSize; i += 2) {
+                chroma[i] = nv21[lumaSize + i + 1];
+                chroma[i + 1] = nv21[lumaSize + i];
+            }
+        } else {
+            int quarter = chromaSize / 2;
+            for (int i = 0; i < quarter; i++) {
+                chroma[i] = nv21[lumaSize + i * 2 + 1];
+                chroma[quarter + i] = nv21[lumaSize + i * 2];
+            }
+        }
+        input.put(chroma, 0, chromaSize);
+        return lumaSize + chromaSize;
+    }
+
+    /**
+     * Hands the available access units to the output. With a timeout, waits for the end of stream.
+     */
+    private void drain(long timeoutUs) {
+        while (true) {
+            int index = codec.dequeueOutputBuffer(bufferInfo, timeoutUs);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (timeoutUs > 0) {
+                    Log.d(TAG, "Timed out waiting for the end of stream");
+                }
+                return;
+            }
+            if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                output.onFormat(codec.getOutputFormat());
+                continue;
+            }
+            if (index < 0) {
+                continue;
+            }
+
+            if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && bufferInfo.size > 0) {
+                ByteBuffer data = codec.getOutputBuffer(index);
+                data.position(bufferInfo.offset);
+                data.limit(bufferInfo.offset + bufferInfo.size);
+                bytesEncoded += bufferInfo.size;
+                output.onAccessUnit(data, bufferInfo);
+            }
+            codec.releaseOutputBuffer(index, false);
+            if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.ahm.capacitor.camera.preview;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A preview frame backed by one of the preallocated camera callback buffers. The buffer is handed back to the camera
+ * once every holder of the frame has released it, so holders must not keep a reference to data after release().
+ */
+class PreviewFrame {
+
+    interface Recycler {
+        void recycle(PreviewFrame frame);
+    }
+
+    final byte[] data;
+    final int width;
+    final int height;
+    final int format;
+    long timestampNs;
+
+    private final AtomicInteger refCount = new AtomicInteger();
+    private final Recycler recycler;
+
+    PreviewFrame(int width, int height, int format, int bufferSize, Recycler recycler) {
+        this.data = new byte[bufferSize];
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.recycler = recycler;
+    }
+
+    void retain() {
+        refCount.incrementAndGet();
+    }
+
+    void release() {
+        if (refCount.decrementAndGet() == 0) {
+            recycler.recycle(this);
+        }
+    }
+
+    boolean isInUse() {
+        return refCount.get() > 0;
+    }
+}
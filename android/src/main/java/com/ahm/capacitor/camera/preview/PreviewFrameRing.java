@@ -0,0 +1,290 @@
+package com.ahm.capacitor.camera.preview;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.os.SystemClock;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the last frames of the camera preview in a ring backed by preallocated callback buffers, so that a still can be
+ * produced from a frame that was already on screen instead of going through takePicture() or waiting for the next
+ * preview frame.
+ *
+ * The ring holds a reference on each of its frames. Two extra buffers are allocated on top of the ring capacity so the
+ * camera always has a buffer to write the next frame into while the ring is full.
+ */
+class PreviewFrameRing implements Camera.PreviewCallback, PreviewFrame.Recycler {
+
+    interface FrameCallback {
+        /**
+         * Called on the camera thread with a frame the callback is responsible for releasing.
+         */
+        void onFrame(PreviewFrame frame);
+    }
+
+    interface NextFrameCallback extends FrameCallback {
+        /**
+         * Called instead of onFrame when the ring is detached before the next frame is received.
+         */
+        void onCancel();
+    }
+
+    private static final String TAG = "PreviewFrameRing";
+    private static final int SPARE_BUFFERS = 2;
+
+    private final int capacity;
+    private final PreviewFrame[] ring;
+    private int head = 0;
+    private int size = 0;
+
+    private final Map<byte[], PreviewFrame> frames = new IdentityHashMap<>();
+    private final List<NextFrameCallback> nextFrameCallbacks = new ArrayList<>();
+    // called with every frame, unlike the callbacks of acquireNext
+    private final List<FrameCallback> frameListeners = new ArrayList<>();
+    // buffers reserved by each listener that holds frames, allocated on top of the ring capacity and the spare buffers
+    private final Map<FrameCallback, Integer> reservations = new IdentityHashMap<>();
+    private int extraBuffers = 0;
+    private Camera.Size bufferSize;
+    private int bufferFormat;
+    private int bufferLength;
+    private Camera camera;
+
+    PreviewFrameRing(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.ring = new PreviewFrame[this.capacity];
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Allocates the callback buffers for the current preview size of the camera and starts receiving frames. Must be
+     * called again whenever the preview size changes.
+     */
+    synchronized void attach(Camera camera) {
+        // a new preview size keeps the readers of acquireNext waiting for the next frame
+        List<NextFrameCallback> pending = new ArrayList<>(nextFrameCallbacks);
+        nextFrameCallbacks.clear();
+        detach();
+        nextFrameCallbacks.addAll(pending);
+
+        Camera.Parameters parameters = camera.getParameters();
+        bufferSize = parameters.getPreviewSize();
+        bufferFormat = parameters.getPreviewFormat();
+        bufferLength = (bufferSize.width * bufferSize.height * ImageFormat.getBitsPerPixel(bufferFormat)) / 8;
+
+        this.camera = camera;
+        allocate(capacity + SPARE_BUFFERS + extraBuffers);
+        camera.setPreviewCallbackWithBuffer(this);
+        Log.d(TAG, "attached " + frames.size() + " buffers of " + bufferSize.width + "x" + bufferSize.height);
+    }
+
+    private void allocate(int count) {
+        for (int i = 0; i < count; i++) {
+            PreviewFrame frame = new PreviewFrame(bufferSize.width, bufferSize.height, bufferFormat, bufferLength, this);
+            frames.put(frame.data, frame);
+            camera.addCallbackBuffer(frame.data);
+        }
+    }
+
+    /**
+     * Installs the callback again after another preview callback replaced it, handing back to the camera every buffer
+     * that is not held by the ring or a reader.
+     */
+    synchronized void resume() {
+        if (camera == null) {
+            return;
+        }
+
+        for (PreviewFrame frame : frames.values()) {
+            if (!frame.isInUse()) {
+                camera.addCallbackBuffer(frame.data);
+            }
+        }
+        camera.setPreviewCallbackWithBuffer(this);
+    }
+
+    /**
+     * Stops receiving frames and drops every frame. Frames still held by readers stay valid until they are released but
+     * their buffers are not handed back to the camera. The callbacks still waiting for the next frame are cancelled.
+     */
+    void detach() {
+        List<NextFrameCallback> cancelled;
+        synchronized (this) {
+            if (camera != null) {
+                camera.setPreviewCallbackWithBuffer(null);
+                camera = null;
+            }
+            while (size > 0) {
+                removeOldest().release();
+            }
+            frames.clear();
+            cancelled = new ArrayList<>(nextFrameCallbacks);
+            nextFrameCallbacks.clear();
+        }
+        for (NextFrameCallback callback : cancelled) {
+            callback.onCancel();
+        }
+    }
+
+    /**
+     * Delivers every frame received from the camera to listener, which must release each frame once done with it.
+     */
+    synchronized void addFrameListener(FrameCallback listener) {
+        addFrameListener(listener, 0);
+    }
+
+    /**
+     * Same as addFrameListener(listener) for a listener that holds up to reservedBuffers frames: as many buffers are added
+     * on top of those of the ring and the other listeners, so the camera is never left without a buffer. The buffers are
+     * allocated right away when the ring is attached and given up when the listener is removed.
+     */
+    synchronized void addFrameListener(FrameCallback listener, int reservedBuffers) {
+        frameListeners.add(listener);
+        if (reservedBuffers <= 0) {
+            return;
+        }
+        Integer previous = reservations.put(listener, reservedBuffers);
+        int added = reservedBuffers - (previous != null ? previous : 0);
+        extraBuffers += added;
+        if (camera != null && added > 0) {
+            allocate(added);
+        }
+    }
+
+    synchronized void removeFrameListener(FrameCallback listener) {
+        frameListeners.remove(listener);
+        Integer reserved = reservations.remove(listener);
+        if (reserved != null) {
+            // the surplus buffers are dropped as they come back, see recycle()
+            extraBuffers -= reserved;
+        }
+    }
+
+    synchronized boolean isAttached() {
+        return camera != null;
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        PreviewFrame received;
+        PreviewFrame evicted = null;
+        List<FrameCallback> callbacks = null;
+        List<FrameCallback> listeners = null;
+
+        synchronized (this) {
+            PreviewFrame frame = frames.get(data);
+            if (frame == null) {
+                // buffer from a previous attach, let it go
+                return;
+            }
+
+            frame.timestampNs = SystemClock.elapsedRealtimeNanos();
+            frame.retain();
+            if (size == capacity) {
+                evicted = removeOldest();
+            }
+            ring[(head + size) % capacity] = frame;
+            size++;
+            received = frame;
+
+            if (!nextFrameCallbacks.isEmpty()) {
+                callbacks = new ArrayList<>(nextFrameCallbacks);
+                nextFrameCallbacks.clear();
+                for (int i = 0; i < callbacks.size(); i++) {
+                    frame.retain();
+                }
+            }
+            if (!frameListeners.isEmpty()) {
+                listeners = new ArrayList<>(frameListeners);
+                for (int i = 0; i < listeners.size(); i++) {
+                    frame.retain();
+                }
+            }
+        }
+
+        if (evicted != null) {
+            evicted.release();
+        }
+
+        if (callbacks != null) {
+            for (FrameCallback callback : callbacks) {
+                callback.onFrame(received);
+            }
+        }
+        if (listeners != null) {
+            for (FrameCallback listener : listeners) {
+                listener.onFrame(received);
+            }
+        }
+    }
+
+    /**
+     * Returns the most recent frame, or null when no frame has been received yet. The caller must release the frame
+     * once done with it.
+     */
+    synchronized PreviewFrame acquireLatest() {
+        if (size == 0) {
+            return null;
+        }
+
+        PreviewFrame latest = ring[(head + size - 1) % capacity];
+        latest.retain();
+        return latest;
+    }
+
+    /**
+     * Delivers the next frame received from the camera to callback, once, or cancels it when the ring is detached first.
+     */
+    synchronized void acquireNext(NextFrameCallback callback) {
+        nextFrameCallbacks.add(callback);
+    }
+
+    /**
+     * Returns the frame whose timestamp is the closest to timestampNs (as returned by SystemClock.elapsedRealtimeNanos)
+     * or null when no frame has been received yet. The caller must release the frame once done with it.
+     */
+    synchronized PreviewFrame acquireNearest(long timestampNs) {
+        PreviewFrame nearest = null;
+        long bestDistance = Long.MAX_VALUE;
+
+        for (int i = 0; i < size; i++) {
+            PreviewFrame frame = ring[(head + i) % capacity];
+            long distance = Math.abs(frame.timestampNs - timestampNs);
+            if (distance < bestDistance) {
+                nearest = frame;
+                bestDistance = distance;
+            }
+        }
+
+        if (nearest != null) {
+            nearest.retain();
+        }
+        return nearest;
+    }
+
+    @Override
+    public synchronized void recycle(PreviewFrame frame) {
+        if (camera != null && frames.get(frame.data) == frame) {
+            if (frames.size() > capacity + SPARE_BUFFERS + extraBuffers) {
+                // a reservation was given up, keep the buffer out of the camera
+                frames.remove(frame.data);
+                return;
+            }
+            camera.addCallbackBuffer(frame.data);
+        }
+    }
+
+    private PreviewFrame removeOldest() {
+        PreviewFrame oldest = ring[head];
+        ring[head] = null;
+        head = (head + 1) % capacity;
+        size--;
+        return oldest;
+    }
+}
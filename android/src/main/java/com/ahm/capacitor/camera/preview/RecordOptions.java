@@ -0,0 +1,62 @@
+package com.ahm.capacitor.camera.preview;
+
+/**
+ * Options of a single startRecordVideo() call. A width or height of 0 keeps the size of the selected profile, the
+ * bitrate options are exclusive and checked in the order videoBitrate, bitsPerPixel, maxBytesPerMinute. Time-lapse
+ * recordings have no audio.
+ */
+class RecordOptions {
+
+    static final String ENGINE_MEDIA_RECORDER = "mediarecorder";
+    static final String ENGINE_MEDIA_CODEC = "mediacodec";
+
+    final int width;
+    final int height;
+    final int quality;
+    // Move the moov box ahead of the media data once a file is complete, see Mp4FastStart
+    boolean fastStart = false;
+    // Roll the recording to a new file every segmentSeconds and/or segmentMaxBytes, 0 to disable
+    int segmentSeconds = 0;
+    long segmentMaxBytes = 0;
+    // Video bitrate in bits per second, 0 for the profile bitrate
+    int videoBitrate = 0;
+    // Frame rate, 0 for the profile frame rate
+    int frameRate = 0;
+    // Video bits per pixel and frame, 0 to disable
+    double bitsPerPixel = 0;
+    // Target size of a minute of recording (video and audio), 0 to disable
+    long maxBytesPerMinute = 0;
+    // Frames captured per second in time-lapse, played back at the frame rate of the profile, 0 to disable
+    double timeLapseFps = 0;
+    // Cap of the preview frame rate while recording, which also caps the video frame rate, 0 to disable
+    int maxPreviewFps = 0;
+    // MediaRecorder, or preview frames encoded with MediaCodec, see CodecRecorder
+    String engine = ENGINE_MEDIA_RECORDER;
+    // mediacodec engine: seconds between key frames, bitrate mode and encoder queue
+    int keyFrameInterval = 1;
+    int bitrateMode = -1;
+    int maxPendingFrames = 3;
+    String dropPolicy = CodecRecorder.DROP_OLDEST;
+
+    RecordOptions(int width, int height, int quality) {
+        this.width = width;
+        this.height = height;
+        this.quality = quality;
+    }
+
+    static boolean isSupportedEngine(String engine) {
+        return ENGINE_MEDIA_RECORDER.equals(engine) || ENGINE_MEDIA_CODEC.equals(engine);
+    }
+
+    boolean usesMediaCodec() {
+        return ENGINE_MEDIA_CODEC.equals(engine);
+    }
+
+    boolean isTimeLapse() {
+        return timeLapseFps > 0;
+    }
+
+    boolean isSegmented() {
+        return segmentSeconds > 0 || segmentMaxBytes > 0;
+    }
+}
@@ -0,0 +1,269 @@
+package com.ahm.capacitor.camera.preview;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the last seconds of the preview as H.264 access units, so a clip of what just happened can be saved without
+ * recording all the time. Preview frames are encoded with MediaCodec on a dedicated thread and the access units kept in
+ * a ring bounded by a byte budget; the oldest group of pictures is dropped first so the ring always starts on a key
+ * frame. save() muxes the last seconds into an MP4 file with MediaMuxer on another thread.
+ */
+class ReplayBuffer implements PreviewFrameRing.FrameCallback {
+
+    interface Callback {
+        /**
+         * Called on the muxer thread once the clip is written.
+         */
+        void onSaved(String path, long durationMs, long bytes);
+
+        void onError(String message);
+    }
+
+    private static class AccessUnit {
+
+        final byte[] data;
+        final long presentationTimeUs;
+        final boolean keyFrame;
+
+        AccessUnit(byte[] data, long presentationTimeUs, boolean keyFrame) {
+            this.data = data;
+            this.presentationTimeUs = presentationTimeUs;
+            this.keyFrame = keyFrame;
+        }
+    }
+
+    static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+    private static final String TAG = "ReplayBuffer";
+    // the frame ring keeps two spare buffers, holding more than one would leave the camera without a buffer to fill
+    private static final int MAX_PENDING_FRAMES = 1;
+
+    private final long maxBytes;
+    private final ExecutorService encodeExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService muxExecutor = Executors.newSingleThreadExecutor();
+    private final AtomicInteger pendingFrames = new AtomicInteger();
+    private volatile boolean released;
+
+    // only touched from the encode thread
+    private final PreviewEncoder encoder;
+
+    // guarded by this
+    private final ArrayDeque<AccessUnit> units = new ArrayDeque<>();
+    private long bufferedBytes;
+    private MediaFormat outputFormat;
+    private long droppedFrames;
+
+    /**
+     * maxBytes bounds the encoded access units kept, bitrate is the encoder bitrate in bits per second, 0 to derive it
+     * from the preview size.
+     */
+    ReplayBuffer(long maxBytes, int bitrate) {
+        this.maxBytes = maxBytes > 0 ? maxBytes : DEFAULT_MAX_BYTES;
+        PreviewEncoder.Config config = new PreviewEncoder.Config();
+        config.bitrate = bitrate;
+        // a clip starts on a key frame, so this is also the granularity of its start
+        config.keyFrameIntervalSeconds = 1;
+        encoder = new PreviewEncoder(
+            config,
+            new PreviewEncoder.Output() {
+                @Override
+                public void onFormat(MediaFormat format) {
+                    synchronized (ReplayBuffer.this) {
+                        // access units of another codec start (another frame size) can't go in the same clip
+                        units.clear();
+                        bufferedBytes = 0;
+                        outputFormat = format;
+                    }
+                }
+
+                @Override
+                public void onAccessUnit(ByteBuffer data, MediaCodec.BufferInfo info) {
+                    byte[] copy = new byte[data.remaining()];
+                    data.get(copy);
+                    add(new AccessUnit(copy, info.presentationTimeUs, (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0));
+                }
+            }
+        );
+    }
+
+    @Override
+    public void onFrame(final PreviewFrame frame) {
+        if (released) {
+            frame.release();
+            return;
+        }
+        if (pendingFrames.incrementAndGet() > MAX_PENDING_FRAMES) {
+            // the encoder is behind, skip the frame rather than delay the camera
+            pendingFrames.decrementAndGet();
+            synchronized (this) {
+                droppedFrames++;
+            }
+            frame.release();
+            return;
+        }
+
+        try {
+            encodeExecutor.execute(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (!encoder.encode(frame)) {
+                                synchronized (ReplayBuffer.this) {
+                                    droppedFrames++;
+                                }
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            Log.d(TAG, "Could not encode frame: " + e.getMessage());
+                            encoder.release();
+                        } finally {
+                            frame.release();
+                            pendingFrames.decrementAndGet();
+                        }
+                    }
+                }
+            );
+        } catch (RejectedExecutionException e) {
+            // released in the meantime
+            pendingFrames.decrementAndGet();
+            frame.release();
+        }
+    }
+
+    /**
+     * Writes the last seconds of the buffer to path, starting from the key frame at or before the start of the clip.
+     */
+    void save(int seconds, final String path, final int orientationHint, final Callback callback) {
+        final List<AccessUnit> clip;
+        final MediaFormat format;
+        synchronized (this) {
+            format = outputFormat;
+            clip = selectClip(seconds * 1000000L);
+        }
+        if (format == null || clip.isEmpty()) {
+            callback.onError("No replay available yet");
+            return;
+        }
+
+        muxExecutor.execute(
+            new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        long bytes = mux(clip, format, path, orientationHint);
+                        long durationUs = clip.get(clip.size() - 1).presentationTimeUs - clip.get(0).presentationTimeUs;
+                        callback.onSaved(path, durationUs / 1000, bytes);
+                    } catch (IOException | RuntimeException e) {
+                        callback.onError("Could not save replay: " + e.getMessage());
+                    }
+                }
+            }
+        );
+    }
+
+    synchronized long getBufferedBytes() {
+        return bufferedBytes;
+    }
+
+    synchronized long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Stops encoding and drops the buffer, clips being saved are still written.
+     */
+    void release() {
+        released = true;
+        encodeExecutor.execute(
+            new Runnable() {
+                @Override
+                public void run() {
+                    encoder.release();
+                }
+            }
+        );
+        encodeExecutor.shutdown();
+        muxExecutor.shutdown();
+        synchronized (this) {
+            units.clear();
+            bufferedBytes = 0;
+        }
+    }
+
+    private synchronized void add(AccessUnit unit) {
+        if (units.isEmpty() && !unit.keyFrame) {
+            // can't be decoded without the frames that were dropped
+            return;
+        }
+        units.addLast(unit);
+        bufferedBytes += unit.data.length;
+
+        // drop whole groups of pictures so the ring still starts on a key frame
+        while (bufferedBytes > maxBytes && !units.isEmpty()) {
+            bufferedBytes -= units.removeFirst().data.length;
+            while (!units.isEmpty() && !units.peekFirst().keyFrame) {
+                bufferedBytes -= units.removeFirst().data.length;
+            }
+        }
+    }
+
+    private List<AccessUnit> selectClip(long durationUs) {
+        List<AccessUnit> clip = new ArrayList<>();
+        if (units.isEmpty()) {
+            return clip;
+        }
+        long startUs = units.peekLast().presentationTimeUs - durationUs;
+        AccessUnit start = units.peekFirst();
+        for (AccessUnit unit : units) {
+            if (unit.presentationTimeUs > startUs) {
+                break;
+            }
+            if (unit.keyFrame) {
+                start = unit;
+            }
+        }
+
+        boolean started = false;
+        for (AccessUnit unit : units) {
+            started |= unit == start;
+            if (started) {
+                clip.add(unit);
+            }
+        }
+        return clip;
+    }
+
+    private static long mux(List<AccessUnit> clip, MediaFormat format, String path, int orientationHint) throws IOException {
+        MediaMuxer muxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        try {
+            muxer.setOrientationHint(orientationHint);
+            int track = muxer.addTrack(format);
+            muxer.start();
+
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            long firstUs = clip.get(0).presentationTimeUs;
+            long bytes = 0;
+            for (AccessUnit unit : clip) {
+                info.set(0, unit.data.length, unit.presentationTimeUs - firstUs, unit.keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                muxer.writeSampleData(track, ByteBuffer.wrap(unit.data), info);
+                bytes += unit.data.length;
+            }
+            muxer.stop();
+            return bytes;
+        } finally {
+            muxer.release();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.ahm.capacitor.camera.preview;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Scores the focus quality of a picture as the variance of the Laplacian of a downscaled luma tile taken from its
+ * center: edges of a sharp picture give a strong response, blur from hand shake or missed focus flattens it. Scores
+ * only compare pictures of the same scene and size, they have no absolute scale.
+ *
+ * Not thread safe, the tile buffer is reused from one score to the next.
+ */
+class SharpnessScorer {
+
+    static final int TILE_SIZE = 128;
+    // decoded pictures are sampled down to about this size before their tile is taken
+    private static final int DECODE_SIZE = 1024;
+
+    private final int[] tile = new int[TILE_SIZE * TILE_SIZE];
+
+    /**
+     * Scores the width x height luma plane at the start of data, e.g. an NV21 preview frame.
+     */
+    double score(byte[] data, int width, int height) {
+        int side = Math.min(width, height) / 2;
+        int step = Math.max(1, side / TILE_SIZE);
+        int size = Math.min(TILE_SIZE, side / step);
+        if (size < 3) {
+            return 0;
+        }
+        int left = (width - size * step) / 2;
+        int top = (height - size * step) / 2;
+        for (int y = 0; y < size; y++) {
+            int row = (top + y * step) * width + left;
+            for (int x = 0; x < size; x++) {
+                tile[y * size + x] = data[row + x * step] & 0xff;
+            }
+        }
+        return laplacianVariance(tile, size);
+    }
+
+    double score(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int side = Math.min(width, height) / 2;
+        int step = Math.max(1, side / TILE_SIZE);
+        int size = Math.min(TILE_SIZE, side / step);
+        if (size < 3) {
+            return 0;
+        }
+        int left = (width - size * step) / 2;
+        int top = (height - size * step) / 2;
+        int[] row = new int[size * step];
+        for (int y = 0; y < size; y++) {
+            bitmap.getPixels(row, 0, row.length, left, top + y * step, row.length, 1);
+            for (int x = 0; x < size; x++) {
+                int color = row[x * step];
+                // BT.601 luma
+                tile[y * size + x] = (77 * ((color >> 16) & 0xff) + 150 * ((color >> 8) & 0xff) + 29 * (color & 0xff)) >> 8;
+            }
+        }
+        return laplacianVariance(tile, size);
+    }
+
+    /**
+     * Scores an encoded picture, decoded at a reduced size. Returns -1 when it can't be decoded.
+     */
+    double score(byte[] jpeg) {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, bounds);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 1;
+        while (Math.max(bounds.outWidth, bounds.outHeight) / (options.inSampleSize * 2) >= DECODE_SIZE) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        if (bitmap == null) {
+            return -1;
+        }
+        try {
+            return score(bitmap);
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Variance of the 4-neighbour Laplacian over the inner pixels of the size x size tile.
+     */
+    static double laplacianVariance(int[] tile, int size) {
+        long sum = 0;
+        long sumOfSquares = 0;
+        int count = 0;
+        for (int y = 1; y < size - 1; y++) {
+            int row = y * size;
+            for (int x = 1; x < size - 1; x++) {
+                int i = row + x;
+                int laplacian = 4 * tile[i] - tile[i - 1] - tile[i + 1] - tile[i - size] - tile[i + size];
+                sum += laplacian;
+                sumOfSquares += (long) laplacian * laplacian;
+                count++;
+            }
+        }
+        double mean = (double) sum / count;
+        return Math.max(0, (double) sumOfSquares / count - mean * mean);
+    }
+}
@@ -0,0 +1,174 @@
+package com.ahm.capacitor.camera.preview;
+
+import android.graphics.Bitmap;
+import android.media.MediaMetadataRetriever;
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the metadata of finished recordings and extracts their poster frame with MediaMetadataRetriever on a worker
+ * thread, so the app gets them together with the file path instead of loading the video again. The recorder is already
+ * released when a video gets here, the next recording does not wait for it.
+ */
+class VideoPostProcessor {
+
+    static class Options {
+
+        boolean metadata = false;
+        boolean poster = false;
+        long posterTimeMs = 0;
+        int posterQuality = 85;
+        int posterMaxDimension = 0;
+
+        boolean isEnabled() {
+            return metadata || poster;
+        }
+    }
+
+    static class VideoInfo {
+
+        final String path;
+        long durationMs = -1;
+        int width = -1;
+        int height = -1;
+        int bitrate = -1;
+        int rotation = 0;
+        String posterPath;
+        boolean cancelled;
+
+        VideoInfo(String path) {
+            this.path = path;
+        }
+    }
+
+    interface Callback {
+        /**
+         * Called on the worker thread. When cancelled, info only holds what was extracted before the cancellation.
+         */
+        void onProcessed(VideoInfo info);
+    }
+
+    interface PathAllocator {
+        String allocate(String extension);
+    }
+
+    private static final String TAG = "VideoPostProcessor";
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    // incremented by cancel(), a task started before it stops at its next step
+    private final AtomicInteger generation = new AtomicInteger();
+
+    /**
+     * Queues the post-processing of the video at path. The poster is written to a path of allocator.
+     */
+    void process(final String path, final Options options, final PathAllocator allocator, final Callback callback) {
+        final int taskGeneration = generation.get();
+        executor.execute(
+            new Runnable() {
+                @Override
+                public void run() {
+                    VideoInfo info = new VideoInfo(path);
+                    if (generation.get() != taskGeneration) {
+                        info.cancelled = true;
+                        callback.onProcessed(info);
+                        return;
+                    }
+                    long start = SystemClock.elapsedRealtime();
+                    extract(info, options, allocator, taskGeneration);
+                    Log.d(TAG, "Processed " + path + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
+                    callback.onProcessed(info);
+                }
+            }
+        );
+    }
+
+    /**
+     * Cancels the videos queued so far. A video being processed stops before its next step, the poster frame is the
+     * slowest one.
+     */
+    void cancel() {
+        generation.incrementAndGet();
+    }
+
+    void shutdown() {
+        cancel();
+        executor.shutdown();
+    }
+
+    private void extract(VideoInfo info, Options options, PathAllocator allocator, int taskGeneration) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(info.path);
+            info.durationMs = parseLong(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION), -1);
+            info.width = (int) parseLong(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH), -1);
+            info.height = (int) parseLong(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT), -1);
+            info.bitrate = (int) parseLong(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_BITRATE), -1);
+            info.rotation = (int) parseLong(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION), 0);
+
+            if (!options.poster) {
+                return;
+            }
+            if (generation.get() != taskGeneration) {
+                info.cancelled = true;
+                return;
+            }
+            long timeMs = info.durationMs > 0 ? Math.min(options.posterTimeMs, info.durationMs) : options.posterTimeMs;
+            Bitmap frame = retriever.getFrameAtTime(Math.max(0, timeMs) * 1000, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+            if (frame == null) {
+                Log.d(TAG, "No frame at " + timeMs + "ms in " + info.path);
+                return;
+            }
+            if (generation.get() != taskGeneration) {
+                frame.recycle();
+                info.cancelled = true;
+                return;
+            }
+            info.posterPath = writePoster(frame, options, allocator);
+        } catch (IOException | RuntimeException e) {
+            // setDataSource throws IllegalArgumentException for files it can't read
+            Log.d(TAG, "Could not process " + info.path + ": " + e.getMessage());
+        } finally {
+            try {
+                retriever.release();
+            } catch (IOException e) {
+                // nothing left to release
+            }
+        }
+    }
+
+    private static String writePoster(Bitmap frame, Options options, PathAllocator allocator) throws IOException {
+        Bitmap poster = PictureEncoder.downscale(frame, options.posterMaxDimension);
+        String path = allocator.allocate(".jpg");
+        FileOutputStream out = new FileOutputStream(path);
+        try {
+            poster.compress(Bitmap.CompressFormat.JPEG, options.posterQuality, out);
+        } catch (RuntimeException e) {
+            new File(path).delete();
+            throw e;
+        } finally {
+            out.close();
+            if (poster != frame) {
+                poster.recycle();
+            }
+            frame.recycle();
+        }
+        return path;
+    }
+
+    private static long parseLong(String value, long fallback) {
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+}
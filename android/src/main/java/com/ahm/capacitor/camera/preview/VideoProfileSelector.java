@@ -0,0 +1,257 @@
+package com.ahm.capacitor.camera.preview;
+
+import android.hardware.Camera;
+import android.media.CamcorderProfile;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Chooses the CamcorderProfile of a recording: the supported profile of the camera closest to the requested size,
+ * whose video size, frame rate and bitrate are then overridden from the RecordOptions.
+ */
+class VideoProfileSelector {
+
+    private static final String TAG = "VideoProfileSelector";
+
+    // below this the encoder output gets visibly blocky, the resolution is lowered instead
+    static final double MIN_BITS_PER_PIXEL = 0.04;
+
+    private static final int[] TIME_LAPSE_QUALITIES = {
+        CamcorderProfile.QUALITY_TIME_LAPSE_2160P,
+        CamcorderProfile.QUALITY_TIME_LAPSE_1080P,
+        CamcorderProfile.QUALITY_TIME_LAPSE_720P,
+        CamcorderProfile.QUALITY_TIME_LAPSE_480P,
+        CamcorderProfile.QUALITY_TIME_LAPSE_CIF,
+        CamcorderProfile.QUALITY_TIME_LAPSE_QVGA,
+        CamcorderProfile.QUALITY_TIME_LAPSE_QCIF
+    };
+
+    private static final int[] QUALITIES = {
+        CamcorderProfile.QUALITY_2160P,
+        CamcorderProfile.QUALITY_1080P,
+        CamcorderProfile.QUALITY_720P,
+        CamcorderProfile.QUALITY_480P,
+        CamcorderProfile.QUALITY_CIF,
+        CamcorderProfile.QUALITY_QVGA,
+        CamcorderProfile.QUALITY_QCIF
+    };
+
+    private VideoProfileSelector() {}
+
+    static CamcorderProfile select(int cameraId, Camera.Parameters parameters, RecordOptions options) {
+        CamcorderProfile profile = closestProfile(cameraId, options.width, options.height, options.isTimeLapse());
+        long basePixelRate = pixelRate(profile);
+        int baseBitrate = profile.videoBitRate;
+
+        List<Camera.Size> sizes = videoSizes(parameters);
+        if (options.width > 0 && options.height > 0 && !sizes.isEmpty()) {
+            Camera.Size size = closestSize(sizes, options.width, options.height);
+            profile.videoFrameWidth = size.width;
+            profile.videoFrameHeight = size.height;
+        }
+
+        if (options.frameRate > 0) {
+            profile.videoFrameRate = Math.min(options.frameRate, maxFrameRate(parameters, profile.videoFrameRate));
+        }
+        // in time-lapse the frame rate is the playback rate, the preview rate only bounds the capture rate
+        int[] previewRange = options.maxPreviewFps > 0 ? previewFpsRange(parameters, options.maxPreviewFps) : null;
+        if (previewRange != null && !options.isTimeLapse()) {
+            int previewFps = Math.max(1, previewRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] / 1000);
+            profile.videoFrameRate = Math.min(profile.videoFrameRate, previewFps);
+        }
+
+        if (options.videoBitrate > 0) {
+            profile.videoBitRate = options.videoBitrate;
+        } else if (options.bitsPerPixel > 0) {
+            profile.videoBitRate = bitrate(options.bitsPerPixel, profile);
+        } else if (options.maxBytesPerMinute > 0) {
+            long totalBitrate = options.maxBytesPerMinute * 8 / 60;
+            long videoBitrate = totalBitrate - profile.audioBitRate;
+            if (options.isTimeLapse()) {
+                // no audio, and a minute of recording only holds timeLapseFps frames per second
+                videoBitrate = (long) (totalBitrate * profile.videoFrameRate / options.timeLapseFps);
+            }
+            profile.videoBitRate = (int) Math.max(1, Math.min(Integer.MAX_VALUE, videoBitrate));
+            // spend the budget on fewer pixels rather than starving every pixel
+            double ratio = (double) profile.videoFrameWidth / profile.videoFrameHeight;
+            for (Camera.Size size : sizes) {
+                if (bitsPerPixel(profile) >= MIN_BITS_PER_PIXEL) {
+                    break;
+                }
+                boolean sameRatio = Math.abs((double) size.width / size.height - ratio) < 0.01 * ratio;
+                if (sameRatio && (long) size.width * size.height < (long) profile.videoFrameWidth * profile.videoFrameHeight) {
+                    profile.videoFrameWidth = size.width;
+                    profile.videoFrameHeight = size.height;
+                }
+            }
+        } else if (pixelRate(profile) != basePixelRate && basePixelRate > 0) {
+            // keep the bits per pixel of the profile
+            profile.videoBitRate = (int) Math.max(1, (long) baseBitrate * pixelRate(profile) / basePixelRate);
+        }
+
+        Log.d(
+            TAG,
+            "Selected " +
+            profile.videoFrameWidth +
+            "x" +
+            profile.videoFrameHeight +
+            "@" +
+            profile.videoFrameRate +
+            " " +
+            profile.videoBitRate +
+            "bps (" +
+            String.format("%.3f", bitsPerPixel(profile)) +
+            " bits per pixel)"
+        );
+        return profile;
+    }
+
+    /**
+     * Returns the supported profile whose size is the closest to width x height, QUALITY_HIGH when no size is set.
+     * With timeLapse, the time-lapse qualities are preferred, falling back to the regular ones when the camera has none.
+     */
+    static CamcorderProfile closestProfile(int cameraId, int width, int height, boolean timeLapse) {
+        if (timeLapse) {
+            CamcorderProfile profile = closestProfile(
+                cameraId,
+                width,
+                height,
+                TIME_LAPSE_QUALITIES,
+                CamcorderProfile.QUALITY_TIME_LAPSE_HIGH
+            );
+            if (profile != null) {
+                return profile;
+            }
+        }
+        CamcorderProfile profile = closestProfile(cameraId, width, height, QUALITIES, CamcorderProfile.QUALITY_HIGH);
+        return profile != null ? profile : CamcorderProfile.get(cameraId, CamcorderProfile.QUALITY_LOW);
+    }
+
+    private static CamcorderProfile closestProfile(int cameraId, int width, int height, int[] qualities, int high) {
+        if (width <= 0 || height <= 0) {
+            return CamcorderProfile.hasProfile(cameraId, high) ? CamcorderProfile.get(cameraId, high) : null;
+        }
+
+        long area = (long) width * height;
+        CamcorderProfile best = null;
+        long bestDistance = Long.MAX_VALUE;
+        for (int quality : qualities) {
+            if (!CamcorderProfile.hasProfile(cameraId, quality)) {
+                continue;
+            }
+            CamcorderProfile profile = CamcorderProfile.get(cameraId, quality);
+            long distance = Math.abs((long) profile.videoFrameWidth * profile.videoFrameHeight - area);
+            if (distance < bestDistance) {
+                best = profile;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the supported preview fps range with the highest maximum not above maxFps, the slowest range when every
+     * range is faster. Among ranges of the same maximum, the lowest minimum leaves the most room to the exposure.
+     */
+    static int[] previewFpsRange(Camera.Parameters parameters, int maxFps) {
+        List<int[]> ranges = parameters.getSupportedPreviewFpsRange();
+        if (ranges == null || ranges.isEmpty()) {
+            return null;
+        }
+        int cap = maxFps * 1000;
+        int[] best = null;
+        for (int[] range : ranges) {
+            if (best == null || isBetterRange(range, best, cap)) {
+                best = range;
+            }
+        }
+        return best;
+    }
+
+    private static boolean isBetterRange(int[] range, int[] best, int cap) {
+        int max = range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
+        int bestMax = best[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
+        boolean fits = max <= cap;
+        boolean bestFits = bestMax <= cap;
+        if (fits != bestFits) {
+            return fits;
+        }
+        if (max != bestMax) {
+            return fits ? max > bestMax : max < bestMax;
+        }
+        return range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX] < best[Camera.Parameters.PREVIEW_FPS_MIN_INDEX];
+    }
+
+    /**
+     * Returns the video sizes of the camera, largest first. Cameras without separate video sizes record at the preview
+     * sizes.
+     */
+    private static List<Camera.Size> videoSizes(Camera.Parameters parameters) {
+        List<Camera.Size> supported = parameters.getSupportedVideoSizes();
+        if (supported == null) {
+            supported = parameters.getSupportedPreviewSizes();
+        }
+        List<Camera.Size> sizes = supported == null ? new ArrayList<Camera.Size>() : new ArrayList<>(supported);
+        Collections.sort(
+            sizes,
+            new Comparator<Camera.Size>() {
+                @Override
+                public int compare(Camera.Size a, Camera.Size b) {
+                    return Long.compare((long) b.width * b.height, (long) a.width * a.height);
+                }
+            }
+        );
+        return sizes;
+    }
+
+    /**
+     * Returns the size closest to width x height in aspect ratio first, then in area. The requested size may be in
+     * portrait while video sizes are in landscape, only the orientation-independent shape is compared.
+     */
+    private static Camera.Size closestSize(List<Camera.Size> sizes, int width, int height) {
+        double ratio = (double) Math.max(width, height) / Math.min(width, height);
+        long area = (long) width * height;
+        Camera.Size best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (Camera.Size size : sizes) {
+            double sizeRatio = (double) Math.max(size.width, size.height) / Math.min(size.width, size.height);
+            double ratioDistance = Math.abs(Math.log(sizeRatio / ratio));
+            double areaDistance = Math.abs(Math.log((double) size.width * size.height / area));
+            double score = ratioDistance * 4 + areaDistance;
+            if (score < bestScore) {
+                best = size;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    private static int maxFrameRate(Camera.Parameters parameters, int fallback) {
+        List<int[]> ranges = parameters.getSupportedPreviewFpsRange();
+        if (ranges == null || ranges.isEmpty()) {
+            return fallback;
+        }
+        int max = 0;
+        for (int[] range : ranges) {
+            max = Math.max(max, range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] / 1000);
+        }
+        return max;
+    }
+
+    private static int bitrate(double bitsPerPixel, CamcorderProfile profile) {
+        double bitrate = bitsPerPixel * profile.videoFrameWidth * profile.videoFrameHeight * profile.videoFrameRate;
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, bitrate));
+    }
+
+    private static long pixelRate(CamcorderProfile profile) {
+        return (long) profile.videoFrameWidth * profile.videoFrameHeight * profile.videoFrameRate;
+    }
+
+    static double bitsPerPixel(CamcorderProfile profile) {
+        double pixelsPerSecond = (double) profile.videoFrameWidth * profile.videoFrameHeight * profile.videoFrameRate;
+        return pixelsPerSecond > 0 ? profile.videoBitRate / pixelsPerSecond : 0;
+    }
+}
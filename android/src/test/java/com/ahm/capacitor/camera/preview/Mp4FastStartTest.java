@@ -0,0 +1,236 @@
+package com.ahm.capacitor.camera.preview;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs Mp4FastStart on small synthetic MP4 files laid out like MediaRecorder output (ftyp, mdat, moov) and checks
+ * that every chunk offset still points at the same media bytes after moov has been moved.
+ */
+public class Mp4FastStartTest {
+
+    private static final String[] CHUNKS = { "chunk-one", "chunk-two", "chunk-three" };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void movesMoovAheadOfMdatAndShiftsStco() throws Exception {
+        File file = writeSample(false, false, false);
+        long size = file.length();
+
+        assertTrue(Mp4FastStart.process(file));
+
+        assertEquals(size, file.length());
+        assertEquals(Arrays.asList("ftyp", "free", "moov", "mdat"), topLevelTypes(file));
+        assertChunksResolve(file, "stco");
+    }
+
+    @Test
+    public void shiftsCo64Offsets() throws Exception {
+        File file = writeSample(true, false, false);
+
+        assertTrue(Mp4FastStart.process(file));
+
+        assertEquals(Arrays.asList("ftyp", "free", "moov", "mdat"), topLevelTypes(file));
+        assertChunksResolve(file, "co64");
+    }
+
+    @Test
+    public void handlesLargeSizeMdatHeader() throws Exception {
+        File file = writeSample(false, true, false);
+
+        assertTrue(Mp4FastStart.process(file));
+
+        assertEquals(Arrays.asList("ftyp", "free", "moov", "mdat"), topLevelTypes(file));
+        assertChunksResolve(file, "stco");
+    }
+
+    @Test
+    public void leavesFastStartFileUntouched() throws Exception {
+        File file = writeSample(false, false, true);
+        byte[] before = Files.readAllBytes(file.toPath());
+
+        assertFalse(Mp4FastStart.process(file));
+
+        assertArrayEquals(before, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void rejectsFileWithoutMoov() throws Exception {
+        File file = folder.newFile("no-moov.mp4");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(box("ftyp", "isom".getBytes(StandardCharsets.US_ASCII)));
+        out.write(box("mdat", "payload".getBytes(StandardCharsets.US_ASCII)));
+        out.close();
+        byte[] before = Files.readAllBytes(file.toPath());
+
+        try {
+            Mp4FastStart.process(file);
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertArrayEquals(before, Files.readAllBytes(file.toPath()));
+        assertFalse(new File(file.getPath() + ".faststart").exists());
+    }
+
+    @Test
+    public void rejectsTruncatedFile() throws Exception {
+        File file = writeSample(false, false, false);
+        byte[] data = Files.readAllBytes(file.toPath());
+        Files.write(file.toPath(), Arrays.copyOf(data, data.length - 5));
+
+        try {
+            Mp4FastStart.process(file);
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Writes ftyp, free, mdat holding CHUNKS and moov whose chunk offset table points at every chunk. With fastStart,
+     * moov is written before mdat.
+     */
+    private File writeSample(boolean co64, boolean largeMdat, boolean fastStart) throws IOException {
+        byte[] ftyp = box("ftyp", "isom\0\0\0\0isomiso2mp41".getBytes(StandardCharsets.US_ASCII));
+        byte[] free = box("free", new byte[12]);
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        List<Integer> relativeOffsets = new ArrayList<>();
+        for (String chunk : CHUNKS) {
+            relativeOffsets.add(payload.size());
+            payload.write(chunk.getBytes(StandardCharsets.US_ASCII));
+            // padding between chunks, like interleaved audio samples
+            payload.write(new byte[7]);
+        }
+        int mdatHeader = largeMdat ? 16 : 8;
+
+        // the moov size does not depend on the offsets, build it once to know where mdat starts
+        int moovSize = moov(co64, relativeOffsets, 0).length;
+        long mdatStart = ftyp.length + free.length + (fastStart ? moovSize : 0);
+        byte[] moov = moov(co64, relativeOffsets, mdatStart + mdatHeader);
+
+        byte[] mdat;
+        if (largeMdat) {
+            ByteBuffer buffer = ByteBuffer.allocate(16 + payload.size());
+            buffer.putInt(1);
+            buffer.put("mdat".getBytes(StandardCharsets.US_ASCII));
+            buffer.putLong(16 + payload.size());
+            buffer.put(payload.toByteArray());
+            mdat = buffer.array();
+        } else {
+            mdat = box("mdat", payload.toByteArray());
+        }
+
+        File file = folder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(ftyp);
+        out.write(free);
+        if (fastStart) {
+            out.write(moov);
+            out.write(mdat);
+        } else {
+            out.write(mdat);
+            out.write(moov);
+        }
+        out.close();
+        return file;
+    }
+
+    private static byte[] moov(boolean co64, List<Integer> relativeOffsets, long base) throws IOException {
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(table);
+        // version and flags
+        data.writeInt(0);
+        data.writeInt(relativeOffsets.size());
+        for (int offset : relativeOffsets) {
+            if (co64) {
+                data.writeLong(base + offset);
+            } else {
+                data.writeInt((int) (base + offset));
+            }
+        }
+
+        byte[] stbl = box("stbl", concat(box("stsd", new byte[8]), box(co64 ? "co64" : "stco", table.toByteArray())));
+        byte[] minf = box("minf", stbl);
+        byte[] mdia = box("mdia", concat(box("mdhd", new byte[24]), minf));
+        byte[] trak = box("trak", concat(box("tkhd", new byte[84]), mdia));
+        return box("moov", concat(box("mvhd", new byte[100]), trak));
+    }
+
+    private static byte[] box(String type, byte[] body) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + body.length);
+        buffer.putInt(8 + body.length);
+        buffer.put(type.getBytes(StandardCharsets.US_ASCII));
+        buffer.put(body);
+        return buffer.array();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static List<String> topLevelTypes(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            List<String> types = new ArrayList<>();
+            for (Mp4FastStart.Box box : Mp4FastStart.readTopLevelBoxes(in.getChannel())) {
+                types.add(box.type);
+            }
+            return types;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void assertChunksResolve(File file, String tableType) throws IOException {
+        byte[] data = Files.readAllBytes(file.toPath());
+        int table = indexOf(data, tableType.getBytes(StandardCharsets.US_ASCII));
+        assertTrue("no " + tableType + " box", table > 0);
+
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        // skip the type, version and flags
+        int count = buffer.getInt(table + 8);
+        assertEquals(CHUNKS.length, count);
+        for (int i = 0; i < count; i++) {
+            long offset = "co64".equals(tableType) ? buffer.getLong(table + 12 + i * 8) : buffer.getInt(table + 12 + i * 4) & 0xffffffffL;
+            byte[] expected = CHUNKS[i].getBytes(StandardCharsets.US_ASCII);
+            assertArrayEquals(expected, Arrays.copyOfRange(data, (int) offset, (int) offset + expected.length));
+        }
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern) {
+        for (int i = 0; i <= data.length - pattern.length; i++) {
+            boolean match = true;
+            for (int j = 0; j < pattern.length && match; j++) {
+                match = data[i + j] == pattern[j];
+            }
+            if (match) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
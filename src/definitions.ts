@@ -1,3 +1,5 @@
+import type { PluginListenerHandle } from '@capacitor/core';
+
 export type CameraPosition = 'rear' | 'front';
 export interface CameraPreviewOptions {
   /** Parent element to attach the video preview element to (applicable to the web platform only) */
@@ -34,6 +36,62 @@ export interface CameraPreviewOptions {
   enableOpacity?: boolean;
   /** Defaults to false - Android only.  Set if camera preview will support pinch to zoom. */
   enableZoom?: boolean;
+  /** Defaults to false - Android only.  Keep the last preview frames, at the largest supported preview size, so that `capture` returns the frame closest to the call instead of going through the shutter. The preview is not interrupted and the picture has the preview resolution (`width` and `height` are ignored). */
+  zeroShutterLag?: boolean;
+  /** Defaults to 4 - Android only.  Number of preview frames kept when `zeroShutterLag` is enabled. */
+  zeroShutterLagFrames?: number;
+  /** Defaults to false - Android only.  Continuously keep the latest preview frame so that `captureSample` can encode it right away instead of waiting for the next frame. */
+  enableFrameCache?: boolean;
+  /** Defaults to 512 MB - Android only.  Maximum total size in bytes of the pictures and videos kept in the capture cache, the least recently used unpinned entries are deleted beyond it. */
+  captureCacheMaxBytes?: number;
+  /** Defaults to 200 - Android only.  Maximum number of pictures and videos kept in the capture cache. */
+  captureCacheMaxEntries?: number;
+  /** Defaults to false - Android only.  With `storeToFile`, resolve captures with the file path as soon as the write is queued. A `captureWritten` event reports when the file is written. */
+  writeBehind?: boolean;
+  /** Defaults to 'none' - Android only.  When written files are synced to the storage: 'none' leaves it to the system, 'always' syncs every file before it is reported written, 'batch' syncs the pending files once the write queue drains. */
+  fileSyncPolicy?: 'none' | 'always' | 'batch';
+  /** Defaults to false - Android only.  Continuously encode the preview into an in-memory H.264 buffer so `saveReplay` can save the last seconds. */
+  instantReplay?: boolean;
+  /** Defaults to 32 MB - Android only.  Maximum size in bytes of the encoded video kept for `instantReplay`. */
+  replayMaxBytes?: number;
+  /** Android only.  Bitrate of the `instantReplay` encoder in bits per second, derived from the preview size by default. */
+  replayBitrate?: number;
+  /** Android only.  Run the `FrameProcessor`s registered from native code on the preview frames, see `getFrameProcessorStats`. */
+  enableFrameProcessing?: boolean;
+  /** Defaults to false - Android only.  Hash every capture and snapshot with a perceptual hash and flag the ones close to a recent capture as `duplicate`. */
+  detectDuplicates?: boolean;
+  /** Defaults to 6 - Android only.  Maximum number of differing bits, out of 64, between the hashes of two duplicate captures. */
+  duplicateThreshold?: number;
+  /** Defaults to false - Android only.  With `detectDuplicates`, don't encode or store duplicates: they resolve with an empty `value` and `dropped` set. */
+  dropDuplicates?: boolean;
+  /** Defaults to false - Android only, `startRecordVideo` only.  Move the index (`moov` box) of the video ahead of its media data when the recording stops, so it can be played while it is still downloading. */
+  fastStart?: boolean;
+  /** Android 8.0+ only, `startRecordVideo` only.  Roll the recording to a new file about every `segmentSeconds` seconds, estimated from the bit rate of the recording. A `videoSegment` event is emitted as each segment completes. */
+  segmentSeconds?: number;
+  /** Android 8.0+ only, `startRecordVideo` only.  Roll the recording to a new file every `segmentMaxBytes` bytes. A `videoSegment` event is emitted as each segment completes. */
+  segmentMaxBytes?: number;
+  /** Android only, `startRecordVideo` only.  The video bitrate in bits per second, defaults to the bitrate of the profile closest to `width` x `height`. */
+  videoBitrate?: number;
+  /** Android only, `startRecordVideo` only.  The video frame rate, capped at the highest frame rate of the camera. */
+  frameRate?: number;
+  /** Android only, `startRecordVideo` only.  Sets the video bitrate from the number of bits per pixel and frame, e.g. 0.1. */
+  bitsPerPixel?: number;
+  /** Android only, `startRecordVideo` only.  Target size in bytes of a minute of recording. The resolution is lowered when the budget would leave too few bits per pixel. */
+  maxBytesPerMinute?: number;
+  /** Android only, `startRecordVideo` only.  Record a time-lapse capturing `timeLapseFps` frames per second (e.g. 0.5 for a frame every 2 seconds), played back at the frame rate of the profile. Time-lapse videos have no audio. */
+  timeLapseFps?: number;
+  /** Android only, `startRecordVideo` only.  Cap the preview frame rate while recording, which also caps the video frame rate and lowers the bitrate accordingly. */
+  maxPreviewFps?: number;
+  /** Defaults to 'mediarecorder' - Android only, `startRecordVideo` only.  'mediacodec' encodes the preview frames with MediaCodec instead of MediaRecorder: the video is recorded at the preview size, without audio, and the encoder settings below apply. */
+  engine?: 'mediarecorder' | 'mediacodec';
+  /** Defaults to 1 - Android only, `engine: 'mediacodec'` only.  Seconds between two key frames. */
+  keyFrameInterval?: number;
+  /** Android only, `engine: 'mediacodec'` only.  Bitrate mode of the encoder: 'cbr' (constant), 'vbr' (variable) or 'cq' (constant quality), the encoder default when not set or not supported. */
+  bitrateMode?: 'cbr' | 'vbr' | 'cq';
+  /** Defaults to 3 - Android only, `engine: 'mediacodec'` only.  Maximum number of frames waiting for the encoder. */
+  maxPendingFrames?: number;
+  /** Defaults to 'oldest' - Android only, `engine: 'mediacodec'` only.  Frame dropped when the encoder queue is full: the oldest queued frame or the incoming one. */
+  dropPolicy?: 'oldest' | 'newest';
 }
 export interface CameraPreviewPictureOptions {
   /** The picture height, optional, default 0 (Device default) */
@@ -44,11 +102,431 @@ export interface CameraPreviewPictureOptions {
    *
    * If left undefined, the `web` implementation will export a PNG, otherwise a JPEG will be generated */
   quality?: number;
+  /** Android only - Additional outputs produced from a single decode of the picture, returned in `renditions` in the same order */
+  renditions?: CameraRendition[];
+  /** Android only - The maximum size in bytes of the picture (of each rendition when renditions are requested). The quality is lowered, and the picture downscaled if needed, to fit */
+  maxBytes?: number;
+  /** Android only - The output format, default 'jpeg'. WebP is usually smaller than JPEG at the same perceived quality, for lossless formats `quality` is the compression effort */
+  format?: CameraPictureFormat;
+  /** Android only - Crop the picture to the part of the preview that is visible on screen, default false */
+  cropToPreview?: boolean;
+}
+
+export type CameraPictureFormat = 'jpeg' | 'png' | 'webp-lossy' | 'webp-lossless';
+
+export interface CameraRendition {
+  /** The maximum size in pixels of the largest side of the picture, default 0 (full size) */
+  maxDimension?: number;
+  /** The picture quality, 0 - 100, defaults to the capture quality */
+  quality?: number;
+  /** The output format, defaults to the capture format */
+  format?: CameraPictureFormat;
+}
+
+export interface CameraRenditionResult {
+  width: number;
+  height: number;
+  format: CameraPictureFormat;
+  /** The base64 encoded picture, or its file path when `storeToFile` is set */
+  value: string;
+}
+
+export interface CameraPreviewPictureResult {
+  /** The base64 encoded picture, or its file path when `storeToFile` is set. When renditions are requested, the first rendition */
+  value: string;
+  /** Android only - The format of `value` */
+  format?: CameraPictureFormat;
+  /** The requested renditions, in the order they were requested */
+  renditions?: CameraRenditionResult[];
+  /** The number of encodes it took to fit `maxBytes`, only set when `maxBytes` is */
+  encodeIterations?: number;
+  /** Android only - The focus quality of the picture when it was scored, higher is sharper. Only comparable between pictures of the same scene */
+  sharpness?: number;
+  /** Android only - The 64 bit perceptual hash of the picture as 16 hex digits, only set with `detectDuplicates` */
+  hash?: string;
+  /** Android only - Whether the picture is a near-duplicate of a recent capture, only set with `detectDuplicates` */
+  duplicate?: boolean;
+  /** Android only - Whether the picture was dropped as a duplicate, `value` is empty then. Only set with `detectDuplicates` */
+  dropped?: boolean;
+  /** Android only - The number of bits between `hash` and the nearest recent capture */
+  hashDistance?: number;
 }
 
 export interface CameraSampleOptions {
   /** The picture quality, 0 - 100, default 85 */
   quality?: number;
+  /** Android only - The maximum age in milliseconds of the cached preview frame when `enableFrameCache` is set. When the cached frame is older, the next frame is used. Defaults to any age */
+  maxAgeMs?: number;
+  /** Android only - The maximum size in bytes of the picture. The quality is lowered, and the picture downscaled if needed, to fit */
+  maxBytes?: number;
+  /** Android only - The output format, default 'jpeg' */
+  format?: CameraPictureFormat;
+  /** Android only - Crop the picture to the part of the preview that is visible on screen, default false */
+  cropToPreview?: boolean;
+}
+
+export interface CameraBurstOptions {
+  /** The number of pictures to take, default 3 */
+  count?: number;
+  /** The minimum delay in milliseconds between two shots, default 0 (as fast as the camera allows) */
+  intervalMs?: number;
+  /** The picture height, optional, default 0 (Device default) */
+  height?: number;
+  /** The picture width, optional, default 0 (Device default) */
+  width?: number;
+  /** The picture quality, 0 - 100, default 85 */
+  quality?: number;
+  /** Score the sharpness of every shot, reported with each picture and as `sharpestIndex`, default false */
+  scoreSharpness?: boolean;
+}
+
+export interface CameraBurstPicture {
+  /** The position of the shot in the burst, starting at 0. Shots may be delivered out of order */
+  index: number;
+  /** The base64 encoded picture, or its file path when `storeToFile` is set */
+  value: string;
+  /** The focus quality of the shot, higher is sharper. Only set with `scoreSharpness` */
+  sharpness?: number;
+}
+
+export interface CameraBurstResult {
+  /** The number of pictures taken */
+  count: number;
+  /** The time in milliseconds from the first shot until the last picture was post-processed */
+  elapsedMs: number;
+  /** The achieved capture rate, in shots per second */
+  shotsPerSecond: number;
+  /** The index of the sharpest shot. Only set with `scoreSharpness` */
+  sharpestIndex?: number;
+}
+
+export interface CameraBestOptions {
+  /** The time in milliseconds during which the preview frames are scored, default 1000 */
+  windowMs?: number;
+  /** The picture quality, 0 - 100, default 85 */
+  quality?: number;
+  /** The maximum size in bytes of the picture. The quality is lowered, and the picture downscaled if needed, to fit */
+  maxBytes?: number;
+  /** The output format, default 'jpeg' */
+  format?: CameraPictureFormat;
+  /** Crop the picture to the part of the preview that is visible on screen, default false */
+  cropToPreview?: boolean;
+}
+
+export interface CameraBestResult extends CameraPreviewPictureResult {
+  /** The number of preview frames scored during the window */
+  framesScored: number;
+}
+
+export interface CameraCapture {
+  /** The file path of the picture or video */
+  path: string;
+  /** The file size in bytes */
+  size: number;
+  /** Creation time, in milliseconds since the epoch */
+  createdAt: number;
+  /** Last access time, in milliseconds since the epoch */
+  lastAccessedAt: number;
+  /** Pinned captures are never evicted */
+  pinned: boolean;
+}
+
+export interface CameraCaptureList {
+  /** The captures, least recently used first */
+  captures: CameraCapture[];
+  /** The total size in bytes of the captures */
+  totalBytes: number;
+}
+
+export interface CameraCaptureChunkOptions {
+  /** The path of a capture listed by `listCaptures` */
+  path: string;
+  /** The position of the first byte to read, default 0 */
+  offset?: number;
+  /** The maximum number of bytes to read, default 1 MB, capped at 4 MB */
+  length?: number;
+}
+
+export interface CameraCaptureChunk {
+  /** The base64 encoded bytes */
+  data: string;
+  /** The position of the first byte read */
+  offset: number;
+  /** The number of bytes read */
+  length: number;
+  /** The size of the file in bytes */
+  size: number;
+  /** True when the chunk reaches the end of the file */
+  eof: boolean;
+}
+
+export interface CameraCaptureStreamOptions {
+  /** The path of a capture listed by `listCaptures` */
+  path: string;
+  /** The position of the first byte to stream, default 0 */
+  offset?: number;
+  /** The size of every chunk in bytes, default 1 MB, capped at 4 MB */
+  chunkSize?: number;
+  /** The maximum number of chunks delivered and not yet acknowledged with `ackCaptureChunk`, default 2 */
+  window?: number;
+}
+
+export interface CameraCaptureStreamChunk {
+  streamId: number;
+  /** The position of the first byte of the chunk */
+  offset: number;
+  /** The base64 encoded bytes */
+  data: string;
+  /** True on the last chunk of the stream */
+  eof: boolean;
+}
+
+export interface CameraCaptureWritten {
+  /** The file path of the picture */
+  path: string;
+  /** The number of bytes written */
+  bytes: number;
+  /** Set when the write failed, the file is then deleted */
+  error?: string;
+}
+
+export interface CameraWriteStats {
+  filesWritten: number;
+  bytesWritten: number;
+  /** Time spent writing and syncing, in milliseconds */
+  writeTimeMs: number;
+  /** Write throughput, in bytes per second of write time */
+  bytesPerSecond: number;
+  /** Number of files waiting to be written */
+  queueDepth: number;
+  /** Largest number of files that have been waiting to be written */
+  maxQueueDepth: number;
+}
+
+export interface CameraVideoSegment {
+  /** The position of the segment in the recording, starting at 0 */
+  index: number;
+  /** The file path of the segment */
+  videoFilePath: string;
+  /** True for the last segment, emitted when the recording stops */
+  last: boolean;
+}
+
+export interface CameraRecordStarted {
+  /** True when the recording started on a recorder prepared by `armRecorder` */
+  armed: boolean;
+  /** Time from the `startRecordVideo` call on the camera thread to the recorder running, in milliseconds */
+  startLatencyMs: number;
+  /** How long the recorder had been armed, 0 when it was not */
+  armedForMs: number;
+}
+
+export interface CameraReplayOptions {
+  /** Length of the clip to save in seconds, default 10 */
+  seconds?: number;
+}
+
+export interface CameraReplayResult {
+  /** The file path of the clip */
+  videoFilePath: string;
+  /** The duration of the clip, in milliseconds */
+  durationMs: number;
+  /** The size of the encoded video, in bytes */
+  bytes: number;
+}
+
+export interface CameraRecordingStats {
+  /** Number of preview frames received since the recording started */
+  framesReceived: number;
+  /** Number of frames queued to the encoder */
+  framesEncoded: number;
+  /** Number of frames dropped because the encoder queue was full or the encoder had no free input buffer */
+  framesDropped: number;
+  /** Total size of the encoded video, in bytes */
+  bytesWritten: number;
+  /** Time spent encoding, in milliseconds */
+  encodeTimeMs: number;
+  /** Duration of the recording so far, in milliseconds */
+  elapsedMs: number;
+  /** Frames the encoder can take per second of encode time */
+  encodeFramesPerSecond: number;
+  /** Number of frames waiting for the encoder */
+  queueDepth: number;
+  /** Largest number of frames that have been waiting for the encoder */
+  maxQueueDepth: number;
+}
+
+export interface CameraStopRecordOptions {
+  /** Android only. Reads the duration, resolution, rotation and bitrate of the video before resolving */
+  metadata?: boolean;
+  /** Android only. Extracts a poster frame of the video as a JPEG file before resolving */
+  poster?: boolean;
+  /** Android only. Position of the poster frame in milliseconds, the closest key frame is used, default 0 */
+  posterTimeMs?: number;
+  /** Android only. JPEG quality of the poster, 0-100, default 85 */
+  posterQuality?: number;
+  /** Android only. Downscales the poster so its largest side fits, 0 for the video size, default 0 */
+  posterMaxDimension?: number;
+}
+
+export interface CameraVideoResult {
+  videoFilePath: string;
+  /** Duration of the video in milliseconds, with `metadata` */
+  durationMs?: number;
+  /** Stored width of the video, with `metadata` */
+  width?: number;
+  /** Stored height of the video, with `metadata` */
+  height?: number;
+  /** Rotation the player applies to the video in degrees, with `metadata` */
+  rotation?: number;
+  /** Average bitrate of the file in bits per second, with `metadata` */
+  bitrate?: number;
+  /** Path of the poster JPEG, with `poster` */
+  posterFilePath?: string;
+  /** True when `cancelVideoProcessing` was called before the processing finished */
+  cancelled?: boolean;
+}
+
+export interface CameraFrameProcessorResult {
+  /** Name of the processor */
+  processor: string;
+  /** Time the analysed frame was received, in milliseconds since epoch */
+  timestampMs: number;
+  /** Result returned by the processor */
+  result: Record<string, unknown>;
+}
+
+export interface CameraFrameProcessorStats {
+  name: string;
+  /** Highest rate the processor asked for, 0 for every frame */
+  maxFps: number;
+  framesProcessed: number;
+  /** Frames skipped because the processor or the worker pool was busy */
+  framesSkippedBusy: number;
+  /** Frames skipped to stay within `maxFps` */
+  framesSkippedRate: number;
+  /** Number of frames the processor threw on */
+  errors: number;
+  averageProcessMs: number;
+  maxProcessMs: number;
+  lastProcessMs: number;
+  /** Average time from the arrival of a frame to the end of its processing, in milliseconds */
+  averageLatencyMs: number;
+  /** Number of results sent in `frameProcessorResults` events */
+  resultsPublished: number;
+  /** Number of results replaced by a newer one before they were sent */
+  resultsCoalesced: number;
+}
+
+export interface CameraScanOptions {
+  /** ZXing formats to decode, e.g. 'QR_CODE', 'EAN_13', 'CODE_128'. Every format by default */
+  formats?: string[];
+  /** Part of the upright preview to decode, in fractions of its width and height. The whole frame by default */
+  regionOfInterest?: { x: number; y: number; width: number; height: number };
+  /** Highest number of frames decoded per second, default 10, 0 for every frame */
+  maxFps?: number;
+  /** A code seen again within this many milliseconds is not reported again, default 1000 */
+  dedupeMs?: number;
+  /** Spends more time per frame looking for codes, default false */
+  tryHarder?: boolean;
+}
+
+export interface CameraBarcode {
+  /** Decoded content */
+  text: string;
+  /** ZXing format of the code, e.g. 'QR_CODE' */
+  format: string;
+  /** Time the frame holding the code was received, in milliseconds since epoch */
+  timestampMs: number;
+}
+
+export interface CameraScanStats {
+  /** False once `stopScan` was called, the stats are those of the last scan */
+  scanning: boolean;
+  /** Number of frames a decode was run on */
+  framesDecoded: number;
+  decodesPerSecond: number;
+  averageDecodeMs: number;
+  /** Number of codes decoded, including the duplicates */
+  codesDecoded: number;
+  /** Number of `barcodeScanned` events */
+  codesReported: number;
+  duplicatesSuppressed: number;
+  /** Frames skipped because a decode was in flight */
+  framesSkippedBusy: number;
+  /** Frames skipped to stay within `maxFps` */
+  framesSkippedRate: number;
+}
+
+export interface CameraFrameStatsOptions {
+  /** Highest number of frames measured per second, default 15, 0 for every frame */
+  maxFps?: number;
+  /** Samples every n-th pixel of every n-th row, default 4 */
+  subsample?: number;
+  /** Shortest time between two `frameStats` events in milliseconds, default 500 */
+  eventIntervalMs?: number;
+  /** Luma at or below which a pixel counts as a clipped shadow, default 4 */
+  shadowClip?: number;
+  /** Luma at or above which a pixel counts as a clipped highlight, default 251 */
+  highlightClip?: number;
+}
+
+export interface CameraFrameStats {
+  /** Number of sampled pixels per luma value, 256 bins */
+  histogram: number[];
+  /** Number of sampled pixels */
+  samples: number;
+  /** Mean luma, 0-255 */
+  mean: number;
+  /** Standard deviation of the luma over 255 (RMS contrast) */
+  contrast: number;
+  /** Ratio of the sampled pixels at or below `shadowClip` */
+  shadowRatio: number;
+  /** Ratio of the sampled pixels at or above `highlightClip` */
+  highlightRatio: number;
+  /** Time the frame was received, in milliseconds since epoch */
+  timestampMs: number;
+  /** Time spent computing the stats of the frame */
+  computeMs: number;
+}
+
+export interface CameraMotionOptions {
+  /** Highest number of frames analysed per second, default 15, 0 for every frame */
+  maxFps?: number;
+  /** Width of the downscaled luma the frames are compared at, default 64 */
+  analysisWidth?: number;
+  /** Change of luma (0-255) of a pixel that counts as motion, default 25 */
+  pixelThreshold?: number;
+  /** Ratio of the pixels that must change for a frame to count as moving, default 0.02 */
+  motionThreshold?: number;
+  /** Time without a moving frame before the scene is still, in milliseconds, default 1000 */
+  holdMs?: number;
+  /** Takes a picture each time the scene turns still, sent in an `autoCapture` event, default false */
+  autoCapture?: boolean;
+  /** JPEG quality of the automatic captures, default 85 */
+  autoCaptureQuality?: number;
+}
+
+export interface CameraMotionEvent {
+  state: 'moving' | 'still';
+  /** Ratio of the pixels that changed in the frame that changed the state */
+  score: number;
+  /** Time the frame was received, in milliseconds since epoch */
+  timestampMs: number;
+  /** Time from the arrival of the frame to the detection, in milliseconds */
+  latencyMs: number;
+}
+
+export interface CameraMotionStats {
+  moving: boolean;
+  /** Ratio of the pixels that changed in the last analysed frame */
+  score: number;
+  framesAnalyzed: number;
+  /** Number of `motion` events */
+  transitions: number;
+  averageAnalyzeMs: number;
+  lastLatencyMs: number;
+  maxLatencyMs: number;
 }
 
 export type CameraPreviewFlashMode = 'off' | 'on' | 'auto' | 'red-eye' | 'torch';
@@ -62,9 +540,15 @@ export interface CameraPreviewPlugin {
   start(options: CameraPreviewOptions): Promise<void>;
   startRecordVideo(options: CameraPreviewOptions): Promise<void>;
   stop(): Promise<void>;
-  stopRecordVideo(): Promise<void>;
-  capture(options: CameraPreviewPictureOptions): Promise<{ value: string }>;
-  captureSample(options: CameraSampleOptions): Promise<{ value: string }>;
+  stopRecordVideo(options?: CameraStopRecordOptions): Promise<CameraVideoResult>;
+  cancelVideoProcessing(): Promise<void>;
+  armRecorder(options: CameraPreviewOptions): Promise<void>;
+  disarmRecorder(): Promise<void>;
+  capture(options: CameraPreviewPictureOptions): Promise<CameraPreviewPictureResult>;
+  captureSample(options: CameraSampleOptions): Promise<CameraPreviewPictureResult>;
+  captureBurst(options: CameraBurstOptions): Promise<CameraBurstResult>;
+  captureBest(options?: CameraBestOptions): Promise<CameraBestResult>;
+  clearDuplicates(): Promise<void>;
   getSupportedFlashModes(): Promise<{
     result: CameraPreviewFlashMode[];
   }>;
@@ -72,4 +556,72 @@ export interface CameraPreviewPlugin {
   flip(): Promise<void>;
   setOpacity(options: CameraOpacityOptions): Promise<void>;
   isCameraStarted(): Promise<{ value: boolean }>;
+  getWriteStats(): Promise<CameraWriteStats>;
+  getRecordingStats(): Promise<CameraRecordingStats>;
+  saveReplay(options: CameraReplayOptions): Promise<CameraReplayResult>;
+  getFrameProcessorStats(): Promise<{ processors: CameraFrameProcessorStats[] }>;
+  startScan(options: CameraScanOptions): Promise<void>;
+  stopScan(): Promise<void>;
+  getScanStats(): Promise<CameraScanStats>;
+  startFrameStats(options: CameraFrameStatsOptions): Promise<void>;
+  stopFrameStats(): Promise<void>;
+  getFrameStats(): Promise<CameraFrameStats>;
+  startMotionDetection(options: CameraMotionOptions): Promise<void>;
+  stopMotionDetection(): Promise<void>;
+  getMotionStats(): Promise<CameraMotionStats>;
+  listCaptures(): Promise<CameraCaptureList>;
+  pinCapture(options: { path: string; pinned?: boolean }): Promise<void>;
+  deleteCapture(options: { path: string }): Promise<void>;
+  readCaptureChunk(options: CameraCaptureChunkOptions): Promise<CameraCaptureChunk>;
+  streamCapture(options: CameraCaptureStreamOptions): Promise<{ streamId: number }>;
+  ackCaptureChunk(options: { streamId: number }): Promise<void>;
+  cancelCaptureStream(options: { streamId: number }): Promise<void>;
+  addListener(
+    eventName: 'burstPictureTaken',
+    listenerFunc: (picture: CameraBurstPicture) => void,
+  ): Promise<PluginListenerHandle>;
+  addListener(
+    eventName: 'videoSegment',
+    listenerFunc: (segment: CameraVideoSegment) => void,
+  ): Promise<PluginListenerHandle>;
+  addListener(
+    eventName: 'recordStopped',
+    listenerFunc: (stopped: { videoFilePath: string }) => void,
+  ): Promise<PluginListenerHandle>;
+  addListener(
+    eventName: 'recordStarted',
+    listenerFunc: (started: CameraRecordStarted) => void,
+  ): Promise<PluginListenerHandle>;
+  addListener(
+    eventName: 'captureWritten',
+    listenerFunc: (written: CameraCaptureWritten) => void,
+  ): Promise<PluginListenerHandle>;
+  addListener(
+    eventName: 'captureChunk',
+    listenerFunc: (chunk: CameraCaptureStreamChunk) => void,
+  ): Promise<PluginListenerHandle>;
+  addListener(
+    eventName: 'frameProcessorResults',
+    listenerFunc: (event: { results: CameraFrameProcessorResult[] }) => void,
+  ): Promise<PluginListenerHandle>;
+  addListener(
+    eventName: 'barcodeScanned',
+    listenerFunc: (barcode: CameraBarcode) => void,
+  ): Promise<PluginListenerHandle>;
+  addListener(
+    eventName: 'frameStats',
+    listenerFunc: (stats: CameraFrameStats) => void,
+  ): Promise<PluginListenerHandle>;
+  addListener(
+    eventName: 'motion',
+    listenerFunc: (motion: CameraMotionEvent) => void,
+  ): Promise<PluginListenerHandle>;
+  addListener(
+    eventName: 'autoCapture',
+    listenerFunc: (picture: Partial<CameraPreviewPictureResult> & { error?: string }) => void,
+  ): Promise<PluginListenerHandle>;
+  addListener(
+    eventName: 'captureStreamError',
+    listenerFunc: (error: { streamId: number; message: string }) => void,
+  ): Promise<PluginListenerHandle>;
 }
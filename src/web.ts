@@ -7,6 +7,27 @@ import type {
   CameraPreviewFlashMode,
   CameraSampleOptions,
   CameraOpacityOptions,
+  CameraBestOptions,
+  CameraBestResult,
+  CameraBurstOptions,
+  CameraBurstResult,
+  CameraCaptureList,
+  CameraWriteStats,
+  CameraCaptureChunkOptions,
+  CameraCaptureChunk,
+  CameraCaptureStreamOptions,
+  CameraReplayOptions,
+  CameraReplayResult,
+  CameraRecordingStats,
+  CameraStopRecordOptions,
+  CameraVideoResult,
+  CameraFrameProcessorStats,
+  CameraScanOptions,
+  CameraScanStats,
+  CameraFrameStatsOptions,
+  CameraFrameStats,
+  CameraMotionOptions,
+  CameraMotionStats,
 } from './definitions';
 
 export class CameraPreviewWeb extends WebPlugin implements CameraPreviewPlugin {
@@ -96,7 +117,20 @@ export class CameraPreviewWeb extends WebPlugin implements CameraPreviewPlugin {
     throw this.unimplemented('Not implemented on web.');
   }
 
-  async stopRecordVideo(): Promise<void> {
+  // eslint-disable-next-line @typescript-eslint/no-unused-vars
+  async stopRecordVideo(_options?: CameraStopRecordOptions): Promise<CameraVideoResult> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async cancelVideoProcessing(): Promise<void> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async armRecorder(): Promise<void> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async disarmRecorder(): Promise<void> {
     throw this.unimplemented('Not implemented on web.');
   }
 
@@ -153,6 +187,20 @@ export class CameraPreviewWeb extends WebPlugin implements CameraPreviewPlugin {
     return this.capture(_options);
   }
 
+  // eslint-disable-next-line @typescript-eslint/no-unused-vars
+  async captureBurst(_options: CameraBurstOptions): Promise<CameraBurstResult> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  // eslint-disable-next-line @typescript-eslint/no-unused-vars
+  async captureBest(_options?: CameraBestOptions): Promise<CameraBestResult> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async clearDuplicates(): Promise<void> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
   async getSupportedFlashModes(): Promise<{
     result: CameraPreviewFlashMode[];
   }> {
@@ -178,4 +226,94 @@ export class CameraPreviewWeb extends WebPlugin implements CameraPreviewPlugin {
   async isCameraStarted(): Promise<{ value: boolean }> {
     throw this.unimplemented('Not implemented on web.');
   }
+
+  async getWriteStats(): Promise<CameraWriteStats> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async getRecordingStats(): Promise<CameraRecordingStats> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  // eslint-disable-next-line @typescript-eslint/no-unused-vars
+  async saveReplay(_options: CameraReplayOptions): Promise<CameraReplayResult> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async getFrameProcessorStats(): Promise<{ processors: CameraFrameProcessorStats[] }> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  // eslint-disable-next-line @typescript-eslint/no-unused-vars
+  async startScan(_options: CameraScanOptions): Promise<void> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async stopScan(): Promise<void> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async getScanStats(): Promise<CameraScanStats> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  // eslint-disable-next-line @typescript-eslint/no-unused-vars
+  async startFrameStats(_options: CameraFrameStatsOptions): Promise<void> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async stopFrameStats(): Promise<void> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async getFrameStats(): Promise<CameraFrameStats> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  // eslint-disable-next-line @typescript-eslint/no-unused-vars
+  async startMotionDetection(_options: CameraMotionOptions): Promise<void> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async stopMotionDetection(): Promise<void> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async getMotionStats(): Promise<CameraMotionStats> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  async listCaptures(): Promise<CameraCaptureList> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  // eslint-disable-next-line @typescript-eslint/no-unused-vars
+  async pinCapture(_options: { path: string; pinned?: boolean }): Promise<void> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  // eslint-disable-next-line @typescript-eslint/no-unused-vars
+  async deleteCapture(_options: { path: string }): Promise<void> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  // eslint-disable-next-line @typescript-eslint/no-unused-vars
+  async readCaptureChunk(_options: CameraCaptureChunkOptions): Promise<CameraCaptureChunk> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  // eslint-disable-next-line @typescript-eslint/no-unused-vars
+  async streamCapture(_options: CameraCaptureStreamOptions): Promise<{ streamId: number }> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  // eslint-disable-next-line @typescript-eslint/no-unused-vars
+  async ackCaptureChunk(_options: { streamId: number }): Promise<void> {
+    throw this.unimplemented('Not implemented on web.');
+  }
+
+  // eslint-disable-next-line @typescript-eslint/no-unused-vars
+  async cancelCaptureStream(_options: { streamId: number }): Promise<void> {
+    throw this.unimplemented('Not implemented on web.');
+  }
 }